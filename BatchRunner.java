@@ -0,0 +1,182 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Replays a stream of commands for many sessions without the interactive REPL.
+ *
+ * Every input line is {@code <session id> <command>}; blank lines and lines starting
+ * with {@code #} are skipped. Each session id gets its own {@link Query} on the shared
+ * engine. Commands of one session run strictly in input order, while different sessions
+ * run in parallel on a fixed thread pool. A session starts executing as soon as its
+ * first command is read, so reading and execution overlap.
+ *
+ * Responses are written in input order as they complete, so two runs over the same input
+ * produce the same output. A line {@code # session <id>} precedes every run of responses
+ * of one session. At most {@value #WINDOW} commands are read ahead of the oldest one not
+ * yet written, which bounds the memory held by responses however long the input is.
+ */
+public class BatchRunner
+{
+  // Commands read but not yet written
+  static final int WINDOW = 1024;
+
+  private final QueryEngine engine;
+  private final ExecutorService executor;
+
+  /**
+   * @param engine engine the sessions run on
+   * @param threads number of sessions executing at the same time
+   */
+  public BatchRunner(QueryEngine engine, int threads)
+  {
+    this.engine = engine;
+    this.executor = Executors.newFixedThreadPool(threads);
+  }
+
+  /**
+   * Runs every command read from {@code input} and writes the responses to {@code output}.
+   * The runner cannot be reused afterwards.
+   */
+  public void run(BufferedReader input, Writer output) throws IOException, InterruptedException
+  {
+    Map<String, Session> sessions = new HashMap<String, Session>();
+    ArrayDeque<Command> window = new ArrayDeque<Command>();
+    try
+    {
+      String line;
+      while ((line = input.readLine()) != null)
+      {
+        line = line.trim();
+        if (line.isEmpty() || line.charAt(0) == '#') continue;
+
+        int split = line.indexOf(' ');
+        String id = split < 0 ? line : line.substring(0, split);
+        String command = split < 0 ? "" : line.substring(split + 1);
+
+        Session session = sessions.get(id);
+        if (session == null)
+        {
+          session = new Session(id, engine.newSession());
+          sessions.put(id, session);
+        }
+        window.add(session.submit(command));
+        if (window.size() == WINDOW) write(window.poll(), output);
+      }
+      while (!window.isEmpty())
+        write(window.poll(), output);
+      output.flush();
+    }
+    finally
+    {
+      executor.shutdown();
+      executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+  }
+
+  // Session of the last response written
+  private Session written;
+
+  // Waits for the command's response and writes it, after a header if another session's came before
+  private void write(Command c, Writer output) throws IOException, InterruptedException
+  {
+    // what was written so far should not wait for a command still running
+    if (!c.response.isDone()) output.flush();
+    String response;
+    try
+    {
+      response = c.response.get();
+    }
+    catch (ExecutionException e)
+    {
+      throw new IllegalStateException("Session " + c.session.id + " stopped", e.getCause());
+    }
+
+    if (c.session != written) output.write("# session " + c.session.id + "\n");
+    written = c.session;
+    output.write(response);
+  }
+
+  /** A command and, once it has run, its response. */
+  private static final class Command
+  {
+    final Session session;
+    final String line;
+    final CompletableFuture<String> response = new CompletableFuture<String>();
+
+    Command(Session session, String line)
+    {
+      this.session = session;
+      this.line = line;
+    }
+  }
+
+  /**
+   * Commands of one session. At most one thread drains a session at a time; the flag
+   * hand-off also publishes the session's state left by the previous drain.
+   */
+  private final class Session implements Runnable
+  {
+    final String id;
+    final Query q;
+    final ConcurrentLinkedQueue<Command> pending = new ConcurrentLinkedQueue<Command>();
+    final AtomicBoolean scheduled = new AtomicBoolean();
+
+    Session(String id, Query q)
+    {
+      this.id = id;
+      this.q = q;
+    }
+
+    Command submit(String line)
+    {
+      Command command = new Command(this, line);
+      pending.add(command);
+      if (scheduled.compareAndSet(false, true))
+        executor.execute(this);
+      return command;
+    }
+
+    @Override
+    public void run()
+    {
+      do
+      {
+        Command command;
+        while ((command = pending.poll()) != null)
+        {
+          String response;
+          try
+          {
+            response = FlightService.execute(q, command.line);
+          }
+          catch (RuntimeException e)
+          {
+            // a malformed command must not stall the rest of the session
+            e.printStackTrace();
+            response = FlightService.failure(q, command.line);
+          }
+          catch (Error e)
+          {
+            // the writer stops at this command instead of waiting for it forever
+            command.response.completeExceptionally(e);
+            throw e;
+          }
+          command.response.complete(response);
+        }
+        scheduled.set(false);
+        // a command may have been queued after the last poll but before the flag was cleared
+      } while (!pending.isEmpty() && scheduled.compareAndSet(false, true));
+    }
+  }
+}
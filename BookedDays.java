@@ -0,0 +1,38 @@
+/**
+ * The days on which one user holds a reservation, as a bitmap with one bit per
+ * (month, day of month).
+ *
+ * A user may have at most one reservation per day, so a day's bit is set by the booking
+ * that takes it and cleared by the cancellation that frees it. Instances are not thread
+ * safe; they are only touched while holding the user's lock.
+ */
+public class BookedDays
+{
+  private static final int DAYS_PER_MONTH = 32;
+
+  // 13 months * 32 days, month 0 and day 0 unused
+  private final long[] words = new long[13 * DAYS_PER_MONTH / 64 + 1];
+
+  private static int bit(int monthId, int dayOfMonth)
+  {
+    return monthId * DAYS_PER_MONTH + dayOfMonth;
+  }
+
+  public boolean isBooked(int monthId, int dayOfMonth)
+  {
+    int bit = bit(monthId, dayOfMonth);
+    return (words[bit >>> 6] & (1L << bit)) != 0;
+  }
+
+  public void book(int monthId, int dayOfMonth)
+  {
+    int bit = bit(monthId, dayOfMonth);
+    words[bit >>> 6] |= 1L << bit;
+  }
+
+  public void release(int monthId, int dayOfMonth)
+  {
+    int bit = bit(monthId, dayOfMonth);
+    words[bit >>> 6] &= ~(1L << bit);
+  }
+}
@@ -0,0 +1,232 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Inserts the reservations of concurrent bookings together, in one statement batch and
+ * one transaction, so that a burst of bookings pays for one commit instead of one each.
+ *
+ * The first booking to arrive leads a batch: while an earlier batch is still being
+ * written it waits, for at most the window, for more bookings to join, then writes the
+ * batch and wakes every member with its own outcome. A booking that arrives while
+ * nothing is being written is written at once, so a lone booking is never delayed, and
+ * the batches grow with the load up to {@code maxBatch}. If a batch fails as a whole,
+ * its reservations are inserted one by one so that one bad row only fails its own booking.
+ *
+ * Bookings are checked against seat counts and the user's booked days before they are
+ * submitted, under the flight and user locks, and hold their seat while they wait; the
+ * locks themselves are released before waiting, so a batch can hold several bookings of
+ * the same flight.
+ */
+public class BookingCoalescer
+{
+  private final FlightStore store;
+  private final TransactionRunner transactions;
+  private final int maxBatch;
+  private final long windowNanos;
+
+  private final ReentrantLock lock = new ReentrantLock();
+  // Signalled when a batch fills up or a write ends
+  private final Condition changed = lock.newCondition();
+  // Batch collecting bookings, null when none is
+  private Batch open;
+  // Batches being written
+  private int writing;
+
+  /**
+   * @param store store the reservations are inserted into
+   * @param transactions runner of the batch transactions
+   * @param maxBatch most reservations inserted together, 1 to insert every one alone
+   * @param windowMicros longest a booking waits for others to join its batch
+   */
+  public BookingCoalescer(FlightStore store, TransactionRunner transactions, int maxBatch, long windowMicros)
+  {
+    if (maxBatch < 1) throw new IllegalArgumentException("maxBatch must be positive");
+    this.store = store;
+    this.transactions = transactions;
+    this.maxBatch = maxBatch;
+    this.windowNanos = TimeUnit.MICROSECONDS.toNanos(windowMicros);
+  }
+
+  /** Bookings written together, and the outcome of each. */
+  private static final class Batch
+  {
+    final List<FlightStore.Booking> bookings = new ArrayList<FlightStore.Booking>();
+    SQLException[] failures;
+    final CountDownLatch written = new CountDownLatch(1);
+  }
+
+  /**
+   * Inserts an unpaid reservation, together with those of other bookings submitted at
+   * about the same time, and returns once it is committed.
+   *
+   * @param fid2 second flight, or -1 for a direct itinerary
+   * @throws SQLException if the reservation was not inserted
+   */
+  public void insert(int id, String username, int fid1, int fid2) throws SQLException
+  {
+    final FlightStore.Booking booking = new FlightStore.Booking(id, username, fid1, fid2);
+    if (maxBatch == 1)
+    {
+      insertAlone(booking);
+      return;
+    }
+
+    Batch batch;
+    int index;
+    boolean leader;
+    lock.lock();
+    try
+    {
+      leader = open == null;
+      if (leader) open = new Batch();
+      batch = open;
+      index = batch.bookings.size();
+      batch.bookings.add(booking);
+      if (batch.bookings.size() >= maxBatch)
+      {
+        // full: later bookings start the next batch
+        open = null;
+        changed.signalAll();
+      }
+      if (leader) collect(batch);
+    }
+    finally
+    {
+      lock.unlock();
+    }
+
+    if (leader)
+      write(batch);
+    else
+      awaitWritten(batch);
+
+    SQLException failure = batch.failures == null ? null : batch.failures[index];
+    if (failure != null) throw failure;
+  }
+
+  // Waits, holding the lock, until the batch is full, nothing is being written or the window ends
+  private void collect(Batch batch)
+  {
+    long deadline = System.nanoTime() + windowNanos;
+    boolean interrupted = false;
+    long left;
+    while (open == batch && writing > 0 && (left = deadline - System.nanoTime()) > 0)
+    {
+      try
+      {
+        changed.awaitNanos(left);
+      }
+      catch (InterruptedException e)
+      {
+        interrupted = true;
+        break;
+      }
+    }
+    if (open == batch) open = null;
+    writing++;
+    if (interrupted) Thread.currentThread().interrupt();
+  }
+
+  private void write(Batch batch)
+  {
+    final List<FlightStore.Booking> bookings = batch.bookings;
+    SQLException[] failures = null;
+    try
+    {
+      if (bookings.size() == 1)
+        insertAlone(bookings.get(0));
+      else
+      {
+        transactions.run(new TransactionRunner.Work<Void>()
+        {
+          @Override
+          public Void run() throws SQLException
+          {
+            store.insertReservations(bookings);
+            return null;
+          }
+        });
+      }
+    }
+    catch (SQLException e)
+    {
+      failures = new SQLException[bookings.size()];
+      if (bookings.size() == 1)
+        failures[0] = e;
+      else
+      {
+        // find out which bookings cannot be inserted
+        for (int i = 0; i < bookings.size(); i++)
+        {
+          try
+          {
+            insertAlone(bookings.get(i));
+          }
+          catch (SQLException single)
+          {
+            failures[i] = single;
+          }
+        }
+      }
+    }
+    catch (RuntimeException e)
+    {
+      failures = new SQLException[bookings.size()];
+      for (int i = 0; i < failures.length; i++)
+        failures[i] = new SQLException("Inserting reservations failed", e);
+    }
+    finally
+    {
+      batch.failures = failures;
+      // the latch publishes the failures to the other members
+      batch.written.countDown();
+      lock.lock();
+      try
+      {
+        writing--;
+        changed.signalAll();
+      }
+      finally
+      {
+        lock.unlock();
+      }
+    }
+  }
+
+  private void insertAlone(final FlightStore.Booking booking) throws SQLException
+  {
+    transactions.retry(new TransactionRunner.Work<Void>()
+    {
+      @Override
+      public Void run() throws SQLException
+      {
+        store.insertReservation(booking.id, booking.username, booking.fid1, booking.fid2);
+        return null;
+      }
+    });
+  }
+
+  // The leader always finishes the batch, so waiting cannot be given up halfway
+  private static void awaitWritten(Batch batch)
+  {
+    boolean interrupted = false;
+    while (true)
+    {
+      try
+      {
+        batch.written.await();
+        break;
+      }
+      catch (InterruptedException e)
+      {
+        interrupted = true;
+      }
+    }
+    if (interrupted) Thread.currentThread().interrupt();
+  }
+}
@@ -0,0 +1,287 @@
+import java.util.Arrays;
+
+/**
+ * Splits a command line into tokens and recognizes the command, without regular
+ * expressions and without creating objects for anything but the arguments asked for.
+ *
+ * A token is either a double-quoted string, whose value is the text between the quotes,
+ * or a run of non-whitespace characters, as the regular expression {@code "([^"]*)"|(\S+)}
+ * matches them. The line is copied into a buffer reused for every
+ * command and tokens are kept as offsets into it. The first token is looked up in a
+ * table of opcodes indexed by its length and first and last characters.
+ *
+ * Numeric arguments are parsed straight from the buffer and report bad input through
+ * their return value instead of an exception. A decoder is used by one thread at a time;
+ * each {@link Query} session owns one.
+ */
+public final class CommandDecoder
+{
+  public static final int LOGIN = 0;
+  public static final int CREATE = 1;
+  public static final int SEARCH = 2;
+  public static final int BOOK = 3;
+  public static final int PAY = 4;
+  public static final int RESERVATIONS = 5;
+  public static final int CANCEL = 6;
+  public static final int STATS = 7;
+  public static final int QUIT = 8;
+  public static final int SEARCH_RANGE = 9;
+  public static final int ROUTE = 10;
+
+  /** The line has no tokens. */
+  public static final int EMPTY = -1;
+  /** The first token is not a command. */
+  public static final int UNKNOWN = -2;
+
+  /** Command names by opcode. */
+  static final String[] NAMES = {"login", "create", "search", "book", "pay", "reservations", "cancel", "stats", "quit",
+                                 "searchrange", "route"};
+
+  /** Returned by {@link #intArg(int)} for a token that is not an int. */
+  public static final long NOT_AN_INT = Long.MIN_VALUE;
+
+  // Opcode + 1 by hash of the command word, 0 for none; collision free for NAMES
+  private static final int TABLE_BITS = 5;
+  private static final byte[] OPCODES = new byte[1 << TABLE_BITS];
+
+  // Powers of ten that doubles hold exactly, for the fast decimal path
+  private static final double[] POWERS_OF_TEN = {
+    1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19,
+    1e20, 1e21, 1e22
+  };
+
+  static
+  {
+    for (int op = 0; op < NAMES.length; op++)
+    {
+      int slot = slot(NAMES[op], 0, NAMES[op].length());
+      if (OPCODES[slot] != 0) throw new ExceptionInInitializerError("Command table collision on " + NAMES[op]);
+      OPCODES[slot] = (byte) (op + 1);
+    }
+  }
+
+  private char[] chars = new char[256];
+  private int[] starts = new int[8];
+  private int[] ends = new int[8];
+  private int tokens;
+
+  private static int slot(String s, int start, int end)
+  {
+    return slot(s.toCharArray(), start, end);
+  }
+
+  private static int slot(char[] s, int start, int end)
+  {
+    int length = end - start;
+    int h = length + (s[start] << 1) + s[end - 1];
+    return h & ((1 << TABLE_BITS) - 1);
+  }
+
+  /**
+   * Decodes one command line.
+   *
+   * @return the command's opcode, {@link #EMPTY} or {@link #UNKNOWN}
+   */
+  public int decode(CharSequence line)
+  {
+    int length = line.length();
+    if (chars.length < length) chars = new char[Math.max(length, chars.length * 2)];
+    if (line instanceof String)
+      ((String) line).getChars(0, length, chars, 0);
+    else
+      for (int i = 0; i < length; i++)
+        chars[i] = line.charAt(i);
+    return decode(0, length);
+  }
+
+  /**
+   * Decodes the command line in {@code line[offset, offset + length)}, which is copied.
+   *
+   * @return the command's opcode, {@link #EMPTY} or {@link #UNKNOWN}
+   */
+  public int decode(char[] line, int offset, int length)
+  {
+    if (chars.length < length) chars = new char[Math.max(length, chars.length * 2)];
+    System.arraycopy(line, offset, chars, 0, length);
+    return decode(0, length);
+  }
+
+  private int decode(int from, int to)
+  {
+    // Like String.trim, then tokens are separated by regex whitespace
+    while (from < to && chars[from] <= ' ') from++;
+    while (to > from && chars[to - 1] <= ' ') to--;
+
+    tokens = 0;
+    int i = from;
+    while (i < to)
+    {
+      char c = chars[i];
+      if (isWhitespace(c))
+      {
+        i++;
+        continue;
+      }
+      if (c == '"')
+      {
+        int close = i + 1;
+        while (close < to && chars[close] != '"') close++;
+        if (close < to)
+        {
+          add(i + 1, close);
+          i = close + 1;
+          continue;
+        }
+      }
+      int end = i + 1;
+      while (end < to && !isWhitespace(chars[end])) end++;
+      add(i, end);
+      i = end;
+    }
+
+    if (tokens == 0) return EMPTY;
+    int start = starts[0];
+    int end = ends[0];
+    if (start == end) return UNKNOWN;
+    int op = OPCODES[slot(chars, start, end)] - 1;
+    return op >= 0 && tokenEquals(0, NAMES[op]) ? op : UNKNOWN;
+  }
+
+  // The characters \s matches
+  private static boolean isWhitespace(char c)
+  {
+    return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+  }
+
+  private void add(int start, int end)
+  {
+    if (tokens == starts.length)
+    {
+      starts = Arrays.copyOf(starts, tokens * 2);
+      ends = Arrays.copyOf(ends, tokens * 2);
+    }
+    starts[tokens] = start;
+    ends[tokens] = end;
+    tokens++;
+  }
+
+  /** Number of tokens, including the command. */
+  public int tokens()
+  {
+    return tokens;
+  }
+
+  /** Token {@code i} as a string; token 0 is the command. */
+  public String token(int i)
+  {
+    return new String(chars, starts[i], ends[i] - starts[i]);
+  }
+
+  /** Whether token {@code i} is exactly {@code s}. */
+  public boolean tokenEquals(int i, String s)
+  {
+    int length = ends[i] - starts[i];
+    if (length != s.length()) return false;
+    for (int k = 0; k < length; k++)
+      if (chars[starts[i] + k] != s.charAt(k)) return false;
+    return true;
+  }
+
+  /**
+   * Parses token {@code i} as {@link Integer#parseInt(String)} would.
+   *
+   * @return the value, or {@link #NOT_AN_INT} if the token is not an int
+   */
+  public long intArg(int i)
+  {
+    int pos = starts[i];
+    int end = ends[i];
+    if (pos == end) return NOT_AN_INT;
+
+    boolean negative = false;
+    char first = chars[pos];
+    if (first == '-' || first == '+')
+    {
+      negative = first == '-';
+      if (++pos == end) return NOT_AN_INT;
+    }
+
+    long value = 0;
+    for (; pos < end; pos++)
+    {
+      char c = chars[pos];
+      if (c < '0' || c > '9') return slowIntArg(i);
+      value = value * 10 + (c - '0');
+      if (value > (long) Integer.MAX_VALUE + 1) return NOT_AN_INT;
+    }
+    value = negative ? -value : value;
+    return value > Integer.MAX_VALUE ? NOT_AN_INT : value;
+  }
+
+  // Integer.parseInt also takes digits of other scripts
+  private long slowIntArg(int i)
+  {
+    try
+    {
+      return Integer.parseInt(token(i));
+    }
+    catch (NumberFormatException e)
+    {
+      return NOT_AN_INT;
+    }
+  }
+
+  /**
+   * Parses token {@code i} as {@link Double#parseDouble(String)} would.
+   *
+   * @return the value, or NaN if the token is not a number
+   */
+  public double doubleArg(int i)
+  {
+    int pos = starts[i];
+    int end = ends[i];
+    boolean negative = false;
+    if (pos < end && (chars[pos] == '-' || chars[pos] == '+'))
+    {
+      negative = chars[pos] == '-';
+      pos++;
+    }
+
+    // Fast path for plain decimals whose digits and scale a double holds exactly; dividing
+    // two exact doubles rounds correctly, which is the result parseDouble gives
+    long mantissa = 0;
+    int digits = 0;
+    int scale = -1;
+    for (; pos < end; pos++)
+    {
+      char c = chars[pos];
+      if (c >= '0' && c <= '9')
+      {
+        mantissa = mantissa * 10 + (c - '0');
+        if (++digits > 15) return slowDoubleArg(i);
+        if (scale >= 0) scale++;
+      }
+      else if (c == '.' && scale < 0)
+        scale = 0;
+      else
+        return slowDoubleArg(i);
+    }
+    if (digits == 0) return slowDoubleArg(i);
+
+    double value = scale > 0 ? mantissa / POWERS_OF_TEN[scale] : mantissa;
+    return negative ? -value : value;
+  }
+
+  // Exponents, hexadecimal, Infinity, type suffixes and long mantissas
+  private double slowDoubleArg(int i)
+  {
+    try
+    {
+      return Double.parseDouble(token(i));
+    }
+    catch (NumberFormatException e)
+    {
+      return Double.NaN;
+    }
+  }
+}
@@ -0,0 +1,48 @@
+import java.util.Locale;
+
+/**
+ * Latency of each service command, recorded by {@link FlightService#execute} for every
+ * session of an engine.
+ */
+public class CommandStats
+{
+  private final LatencyHistogram[] histograms = new LatencyHistogram[CommandDecoder.NAMES.length];
+
+  public CommandStats()
+  {
+    for (int i = 0; i < histograms.length; i++)
+      histograms[i] = new LatencyHistogram();
+  }
+
+  /**
+   * Records that a command took {@code nanos}.
+   *
+   * @param opcode the command's {@link CommandDecoder} opcode
+   */
+  public void record(int opcode, long nanos)
+  {
+    if (opcode >= 0 && opcode < histograms.length) histograms[opcode].record(nanos);
+  }
+
+  // stats and quit say nothing about the service
+  private static boolean reported(int opcode)
+  {
+    return opcode != CommandDecoder.STATS && opcode != CommandDecoder.QUIT;
+  }
+
+  /** Appends a line per command: count, then mean, median, 90th, 99th percentile and max in microseconds. */
+  public StringBuilder appendTo(StringBuilder sb)
+  {
+    sb.append(String.format(Locale.US, "%-13s %10s %10s %10s %10s %10s %10s\n",
+                            "command", "count", "mean_us", "p50_us", "p90_us", "p99_us", "max_us"));
+    for (int i = 0; i < histograms.length; i++)
+    {
+      if (!reported(i)) continue;
+      LatencyHistogram h = histograms[i];
+      sb.append(String.format(Locale.US, "%-13s %10d %10.1f %10.1f %10.1f %10.1f %10.1f\n", CommandDecoder.NAMES[i], h.count(),
+                              h.mean() / 1e3, h.percentile(0.5) / 1e3, h.percentile(0.9) / 1e3,
+                              h.percentile(0.99) / 1e3, h.max() / 1e3));
+    }
+    return sb;
+  }
+}
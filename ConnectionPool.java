@@ -0,0 +1,125 @@
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+
+/**
+ * A bounded pool of JDBC connections.
+ *
+ * At most {@code maxSize} connections are leased at once; further callers wait for one
+ * to be returned. Connections are opened lazily and reused most-recently-returned first,
+ * so a lightly loaded pool keeps working on a few warm connections and their cached
+ * prepared statements.
+ */
+public class ConnectionPool implements AutoCloseable
+{
+  private final String url;
+  private final String user;
+  private final String password;
+  private final int maxSize;
+
+  private final Semaphore permits;
+  private final ConcurrentLinkedDeque<PooledConnection> idle = new ConcurrentLinkedDeque<PooledConnection>();
+  private final Set<PooledConnection> open = ConcurrentHashMap.newKeySet();
+  private final StatementStats statementStats = new StatementStats();
+  private volatile boolean closed;
+
+  /**
+   * @param url JDBC url of the database
+   * @param user database user
+   * @param password database password
+   * @param maxSize maximum number of connections leased at the same time
+   */
+  public ConnectionPool(String url, String user, String password, int maxSize)
+  {
+    if (maxSize < 1) throw new IllegalArgumentException("maxSize must be positive");
+    this.url = url;
+    this.user = user;
+    this.password = password;
+    this.maxSize = maxSize;
+    this.permits = new Semaphore(maxSize, true);
+  }
+
+  /**
+   * Leases a connection, waiting for one to be returned if all of them are in use.
+   * The caller must {@link PooledConnection#close() close} it when done.
+   */
+  public PooledConnection acquire() throws SQLException
+  {
+    if (closed) throw new SQLException("Connection pool is closed");
+    try
+    {
+      permits.acquire();
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      throw new SQLException("Interrupted while waiting for a connection", e);
+    }
+
+    try
+    {
+      PooledConnection c;
+      while ((c = idle.pollFirst()) != null)
+      {
+        if (c.reset()) return c.retain();
+        discard(c);
+      }
+
+      c = new PooledConnection(this, DriverManager.getConnection(url, user, password));
+      c.connection().setAutoCommit(true);
+      open.add(c);
+      return c.retain();
+    }
+    catch (SQLException | RuntimeException e)
+    {
+      permits.release();
+      throw e;
+    }
+  }
+
+  void release(PooledConnection c)
+  {
+    if (closed || !c.reset())
+      discard(c);
+    else
+      idle.offerFirst(c);
+    permits.release();
+  }
+
+  private void discard(PooledConnection c)
+  {
+    open.remove(c);
+    c.closeQuietly();
+  }
+
+  /** Executions and time of every statement prepared on the pool's connections. */
+  public StatementStats statementStats()
+  {
+    return statementStats;
+  }
+
+  /** Maximum number of connections leased at the same time. */
+  public int maxSize()
+  {
+    return maxSize;
+  }
+
+  /** Number of connections currently open, leased or idle. */
+  public int openCount()
+  {
+    return open.size();
+  }
+
+  /** Closes idle connections now and leased ones as they are returned. */
+  @Override
+  public void close()
+  {
+    closed = true;
+    PooledConnection c;
+    while ((c = idle.pollFirst()) != null)
+      discard(c);
+  }
+}
@@ -0,0 +1,251 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * One-stop itinerary search over the in-memory flights.
+ *
+ * For every day the engine keeps the flights leaving each city (outbound), sorted by
+ * (actual_time, fid). A search probes the {@link FlightIndex} route from each outbound
+ * flight's destination to the searched destination, which lists the possible second
+ * legs in the same order, and keeps the best {@code k} pairs in a bounded heap ordered
+ * by (time1 + time2, fid1, fid2). This is the order FLIGHT_SEARCH_2 returned, without
+ * the self-join and sort of the whole table.
+ *
+ * Like the index, the search works on {@link FlightSnapshot} rows and only creates
+ * flight objects for the connections it returns.
+ */
+public class ConnectionSearch
+{
+  private final FlightSnapshot flights;
+  private final FlightIndex routes;
+
+  // Rows leaving each (city, day), in (actual_time, fid) order
+  private final Map<Long, int[]> outbound;
+
+  // Shortest actual_time of the flights arriving in each (city, day)
+  private final Map<Long, Double> fastestInbound;
+
+  /** Orders connections, given as {first row, second row}, by total time, then first fid, then second fid. */
+  private final Comparator<int[]> byTotalTime = new Comparator<int[]>()
+  {
+    @Override
+    public int compare(int[] a, int[] b)
+    {
+      return compareConnection(a[0], a[1], b);
+    }
+  };
+
+  private final Comparator<int[]> worstFirst = Collections.reverseOrder(byTotalTime);
+
+  /**
+   * @param flights every searchable flight
+   * @param routes direct routes over the same flights
+   */
+  ConnectionSearch(FlightSnapshot flights, FlightIndex routes)
+  {
+    this.flights = flights;
+    this.routes = routes;
+
+    long[] keys = new long[flights.rows()];
+    Map<Long, Double> fastest = new HashMap<Long, Double>();
+    for (int row = 0; row < keys.length; row++)
+    {
+      int day = flights.dayOfMonth(row);
+      keys[row] = FlightIndex.cityDayKey(flights.origin(row), day);
+
+      Long arrival = FlightIndex.cityDayKey(flights.dest(row), day);
+      Double best = fastest.get(arrival);
+      if (best == null || flights.time(row) < best)
+        fastest.put(arrival, flights.time(row));
+    }
+    this.outbound = FlightIndex.group(flights, keys);
+    this.fastestInbound = fastest;
+  }
+
+  /**
+   * Returns up to {@code k} one-stop connections from {@code originCity} to {@code destCity}
+   * where both legs fly on {@code dayOfMonth}. Each element holds the first leg at index 0
+   * and the second leg at index 1, in (time1 + time2, fid1, fid2) order.
+   */
+  public List<Query.Flight[]> search(String originCity, String destCity, int dayOfMonth, int k)
+  {
+    return search(originCity, destCity, FlightIndex.ANY, FlightIndex.ANY, dayOfMonth, k);
+  }
+
+  /**
+   * Returns up to {@code k} one-stop connections as {@link #search(String, String, int, int)}
+   * does, with both legs in the given year and month.
+   *
+   * @param year year of both legs, or {@link FlightIndex#ANY}
+   * @param monthId month of both legs, or {@link FlightIndex#ANY}
+   */
+  public List<Query.Flight[]> search(String originCity, String destCity, int year, int monthId, int dayOfMonth, int k)
+  {
+    int origin = flights.cityCode(originCity);
+    int dest = flights.cityCode(destCity);
+    if (origin < 0 || dest < 0 || k <= 0 || !FlightIndex.validDay(dayOfMonth)) return Collections.emptyList();
+
+    int[] out = outbound.get(FlightIndex.cityDayKey(origin, dayOfMonth));
+    Double fastestSecondLeg = fastestInbound.get(FlightIndex.cityDayKey(dest, dayOfMonth));
+    if (out == null || fastestSecondLeg == null) return Collections.emptyList();
+
+    // k comes from the user, the heap grows as connections are found
+    PriorityQueue<int[]> best = new PriorityQueue<int[]>(Math.min(k, out.length) + 1, worstFirst);
+    for (int first : out)
+    {
+      // first legs only get slower, nothing after this can beat the current k-th result
+      if (best.size() == k && flights.time(first) + fastestSecondLeg > total(best.peek()))
+        break;
+      if (!routes.inMonth(first, year, monthId)) continue;
+
+      int[] legs = routes.route(flights.dest(first), dest, dayOfMonth);
+      if (legs == null) continue;
+
+      for (int second : legs)
+      {
+        if (!routes.inMonth(second, year, monthId)) continue;
+        if (best.size() == k)
+        {
+          if (compareConnection(first, second, best.peek()) >= 0)
+            break;
+          best.poll();
+        }
+        best.add(new int[] {first, second});
+      }
+    }
+
+    List<int[]> connections = new ArrayList<int[]>(best);
+    Collections.sort(connections, byTotalTime);
+    List<Query.Flight[]> result = new ArrayList<Query.Flight[]>(connections.size());
+    for (int[] c : connections)
+      result.add(new Query.Flight[] {flights.flight(c[0]), flights.flight(c[1])});
+    return result;
+  }
+
+  /**
+   * Returns up to {@code k} one-stop connections from {@code originCity} to {@code destCity}
+   * where both legs fly on {@code dayOfMonth}, in (price1 + price2, fid1, fid2) order.
+   *
+   * Each stopover city pairs its two price-sorted routes, origin to stopover and stopover
+   * to destination. The pair of the two cheapest legs is the cheapest of a stopover, and
+   * every other pair costs at least as much as the pair one step back in either route,
+   * so a heap holding only the frontier of each stopover yields all pairs cheapest first.
+   * The search stops once {@code k} pairs are out and the frontier costs more, having
+   * looked at about {@code k} pairs per stopover instead of every combination of legs.
+   */
+  public List<Query.Flight[]> cheapest(String originCity, String destCity, int dayOfMonth, int k)
+  {
+    int origin = flights.cityCode(originCity);
+    int dest = flights.cityCode(destCity);
+    if (origin < 0 || dest < 0 || k <= 0 || !FlightIndex.validDay(dayOfMonth)) return Collections.emptyList();
+
+    int[] out = outbound.get(FlightIndex.cityDayKey(origin, dayOfMonth));
+    if (out == null) return Collections.emptyList();
+
+    // First and second legs of every stopover, each in (price, fid) order
+    final List<int[][]> stopovers = new ArrayList<int[][]>();
+    Set<Integer> seen = new HashSet<Integer>();
+    for (int first : out)
+    {
+      int stop = flights.dest(first);
+      if (!seen.add(stop)) continue;
+      int[] seconds = routes.routeByPrice(stop, dest, dayOfMonth);
+      if (seconds == null) continue;
+      stopovers.add(new int[][] {routes.routeByPrice(origin, stop, dayOfMonth), seconds});
+    }
+
+    // Frontier pairs, given as {stopover, first leg index, second leg index}
+    Comparator<int[]> cheapestFirst = new Comparator<int[]>()
+    {
+      @Override
+      public int compare(int[] a, int[] b)
+      {
+        int[][] sa = stopovers.get(a[0]);
+        int[][] sb = stopovers.get(b[0]);
+        return compareFare(sa[0][a[1]], sa[1][a[2]], sb[0][b[1]], sb[1][b[2]]);
+      }
+    };
+    PriorityQueue<int[]> frontier = new PriorityQueue<int[]>(Math.max(1, stopovers.size()), cheapestFirst);
+    for (int s = 0; s < stopovers.size(); s++)
+      frontier.add(new int[] {s, 0, 0});
+
+    // k comes from the user; ties at the k-th fare make the list grow past it anyway
+    List<int[]> taken = new ArrayList<int[]>(Math.min(k, stopovers.size()));
+    while (!frontier.isEmpty())
+    {
+      int[] next = frontier.poll();
+      int[][] legs = stopovers.get(next[0]);
+      int first = legs[0][next[1]];
+      int second = legs[1][next[2]];
+      // pairs tied with the k-th in price still compete for its place on fids
+      if (taken.size() >= k && fare(first, second) > fare(taken.get(taken.size() - 1)[0], taken.get(taken.size() - 1)[1]))
+        break;
+      taken.add(new int[] {first, second});
+
+      if (next[2] + 1 < legs[1].length)
+        frontier.add(new int[] {next[0], next[1], next[2] + 1});
+      if (next[2] == 0 && next[1] + 1 < legs[0].length)
+        frontier.add(new int[] {next[0], next[1] + 1, 0});
+    }
+
+    Collections.sort(taken, new Comparator<int[]>()
+    {
+      @Override
+      public int compare(int[] a, int[] b)
+      {
+        return compareFare(a[0], a[1], b[0], b[1]);
+      }
+    });
+    List<Query.Flight[]> result = new ArrayList<Query.Flight[]>(Math.min(k, taken.size()));
+    for (int i = 0; i < taken.size() && i < k; i++)
+      result.add(new Query.Flight[] {flights.flight(taken.get(i)[0]), flights.flight(taken.get(i)[1])});
+    return result;
+  }
+
+  private double fare(int first, int second)
+  {
+    return flights.price(first) + flights.price(second);
+  }
+
+  // Rows are in fid order, so comparing rows compares fids
+  private int compareFare(int first, int second, int otherFirst, int otherSecond)
+  {
+    int c = Double.compare(fare(first, second), fare(otherFirst, otherSecond));
+    if (c != 0) return c;
+    c = Integer.compare(first, otherFirst);
+    return c != 0 ? c : Integer.compare(second, otherSecond);
+  }
+
+  /** Rows leaving city code {@code city} on {@code dayOfMonth} in (actual_time, fid) order, or null if none. */
+  int[] outbound(int city, int dayOfMonth)
+  {
+    return outbound.get(FlightIndex.cityDayKey(city, dayOfMonth));
+  }
+
+  /** Shortest actual_time of the flights arriving in city code {@code city} on {@code dayOfMonth}, or null if none. */
+  Double fastestInbound(int city, int dayOfMonth)
+  {
+    return fastestInbound.get(FlightIndex.cityDayKey(city, dayOfMonth));
+  }
+
+  private double total(int[] connection)
+  {
+    return flights.time(connection[0]) + flights.time(connection[1]);
+  }
+
+  // Rows are in fid order, so comparing rows compares fids
+  private int compareConnection(int first, int second, int[] other)
+  {
+    int c = Double.compare(flights.time(first) + flights.time(second), total(other));
+    if (c != 0) return c;
+    c = Integer.compare(first, other[0]);
+    return c != 0 ? c : Integer.compare(second, other[1]);
+  }
+}
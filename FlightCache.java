@@ -0,0 +1,93 @@
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of Flights rows by fid, shared by every session.
+ *
+ * Flight rows never change while the service runs, so cached entries are never stale
+ * and only need evicting to bound memory (least recently used first). Misses are read
+ * from the {@link FlightStore}, all misses of one lookup together.
+ */
+public class FlightCache
+{
+  private final FlightStore store;
+  private final LruCache<Integer, Query.Flight> flights;
+
+  /**
+   * @param store where misses are read from
+   * @param capacity maximum number of flights cached
+   */
+  public FlightCache(FlightStore store, int capacity)
+  {
+    this.store = store;
+    this.flights = new LruCache<Integer, Query.Flight>(capacity, 64);
+  }
+
+  /**
+   * Returns the flight with the given fid, or null if there is none.
+   */
+  public Query.Flight get(int fid) throws SQLException
+  {
+    Query.Flight f = flights.get(fid);
+    if (f != null) return f;
+
+    f = store.flight(fid);
+    if (f != null) flights.put(fid, f);
+    return f;
+  }
+
+  /**
+   * Returns the flights with the given fids, reading all misses from the store at once.
+   * Fids that do not exist are missing from the result.
+   */
+  public Map<Integer, Query.Flight> getAll(int[] fids) throws SQLException
+  {
+    Map<Integer, Query.Flight> result = new HashMap<Integer, Query.Flight>(fids.length * 2);
+    int[] missing = new int[fids.length];
+    int missed = 0;
+    for (int fid : fids)
+    {
+      if (result.containsKey(fid)) continue;
+      Query.Flight f = flights.get(fid);
+      if (f != null)
+        result.put(fid, f);
+      else
+        missing[missed++] = fid;
+    }
+
+    if (missed > 0)
+    {
+      for (Query.Flight f : store.flights(Arrays.copyOf(missing, missed)).values())
+      {
+        flights.put(f.fid, f);
+        result.put(f.fid, f);
+      }
+    }
+
+    return result;
+  }
+
+  /** Caches a flight that was read elsewhere, e.g. by a search. */
+  public void put(Query.Flight f)
+  {
+    flights.put(f.fid, f);
+  }
+
+  public long hits()
+  {
+    return flights.hits();
+  }
+
+  public long misses()
+  {
+    return flights.misses();
+  }
+
+  /** Number of flights currently cached. */
+  public int size()
+  {
+    return flights.size();
+  }
+}
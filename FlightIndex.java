@@ -0,0 +1,248 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * In-memory index of the Flights table used to answer direct-flight searches.
+ *
+ * Flights are bucketed by (origin_city, dest_city, day_of_month) and every bucket
+ * is sorted by (actual_time, fid), which is the order FLIGHT_SEARCH used to return.
+ * A second copy of the buckets is sorted by (price, fid) for cheapest-fare searches.
+ * A search is then a hash lookup plus a top-k slice of the bucket. Flights are never
+ * written by the service, so one index is loaded per JVM and shared by all sessions.
+ * The same flights also back the {@link ConnectionSearch} used for one-stop searches
+ * and the {@link RouteSearch} used for longer routes.
+ *
+ * Buckets hold row numbers of a {@link FlightSnapshot} rather than flight objects;
+ * flight fields are read from the snapshot's columns, and {@code Query.Flight} objects
+ * are only created for the flights a search returns.
+ */
+public class FlightIndex
+{
+  // Cities are keyed by dictionary code, which must fit in 24 bits; all ones is the null city
+  private static final int MAX_NAMES = (1 << 24) - 1;
+  private static final int CODE_MASK = (1 << 24) - 1;
+  static final int MAX_DAY = 0xff;
+
+  /** Stands for any year or any month in a search. */
+  public static final int ANY = 0;
+
+  private final FlightSnapshot flights;
+  private final Map<Long, int[]> routes;
+  private final Map<Long, int[]> routesByPrice;
+  private final ConnectionSearch connections;
+  private final RouteSearch routeSearch;
+
+  private FlightIndex(FlightSnapshot flights)
+  {
+    if (flights.names() > MAX_NAMES) throw new IllegalArgumentException("Too many distinct names: " + flights.names());
+    this.flights = flights;
+
+    long[] keys = new long[flights.rows()];
+    for (int row = 0; row < keys.length; row++)
+      keys[row] = routeKey(flights.origin(row), flights.dest(row), flights.dayOfMonth(row));
+    this.routes = group(flights, keys);
+    this.routesByPrice = groupByPrice(flights, keys);
+    this.connections = new ConnectionSearch(flights, this);
+    this.routeSearch = new RouteSearch(flights, connections);
+  }
+
+  /**
+   * Reads every searchable flight (non-null actual_time) and builds the index.
+   *
+   * @param store store to read the Flights table from
+   */
+  public static FlightIndex load(FlightStore store) throws SQLException
+  {
+    return new FlightIndex(store.flightSnapshot());
+  }
+
+  // Day goes in the low byte, which callers must check with validDay first
+  static long routeKey(int origin, int dest, int dayOfMonth)
+  {
+    return ((long) (origin & CODE_MASK) << 32) | ((long) (dest & CODE_MASK) << 8) | dayOfMonth;
+  }
+
+  static long cityDayKey(int city, int dayOfMonth)
+  {
+    return ((long) (city & CODE_MASK) << 8) | dayOfMonth;
+  }
+
+  static boolean validDay(int dayOfMonth)
+  {
+    return dayOfMonth >= 0 && dayOfMonth <= MAX_DAY;
+  }
+
+  /**
+   * Groups rows by key; each group lists its rows in (actual_time, fid) order.
+   *
+   * @param keys key of every row
+   */
+  static Map<Long, int[]> group(final FlightSnapshot flights, long[] keys)
+  {
+    return group(keys, new Comparator<Integer>()
+    {
+      @Override
+      public int compare(Integer a, Integer b)
+      {
+        return Double.compare(flights.time(a), flights.time(b));
+      }
+    });
+  }
+
+  /**
+   * Groups rows by key; each group lists its rows in (price, fid) order.
+   *
+   * @param keys key of every row
+   */
+  static Map<Long, int[]> groupByPrice(final FlightSnapshot flights, long[] keys)
+  {
+    return group(keys, new Comparator<Integer>()
+    {
+      @Override
+      public int compare(Integer a, Integer b)
+      {
+        return Double.compare(flights.price(a), flights.price(b));
+      }
+    });
+  }
+
+  // Rows are in fid order, so a stable sort by the comparator leaves ties in fid order
+  private static Map<Long, int[]> group(long[] keys, Comparator<Integer> order)
+  {
+    Map<Long, int[]> counts = new HashMap<Long, int[]>();
+    for (long key : keys)
+    {
+      int[] count = counts.get(key);
+      if (count == null)
+      {
+        count = new int[1];
+        counts.put(key, count);
+      }
+      count[0]++;
+    }
+
+    Map<Long, int[]> groups = new HashMap<Long, int[]>(counts.size() * 2);
+    for (Map.Entry<Long, int[]> e : counts.entrySet())
+    {
+      groups.put(e.getKey(), new int[e.getValue()[0]]);
+      e.getValue()[0] = 0;
+    }
+    for (int row = 0; row < keys.length; row++)
+    {
+      int[] filled = counts.get(keys[row]);
+      groups.get(keys[row])[filled[0]++] = row;
+    }
+
+    for (int[] rows : groups.values())
+    {
+      Integer[] boxed = new Integer[rows.length];
+      for (int i = 0; i < rows.length; i++)
+        boxed[i] = rows[i];
+      Arrays.sort(boxed, order);
+      for (int i = 0; i < rows.length; i++)
+        rows[i] = boxed[i];
+    }
+    return groups;
+  }
+
+  /**
+   * Returns up to {@code k} direct flights from {@code originCity} to {@code destCity}
+   * on {@code dayOfMonth}, ordered by (actual_time, fid).
+   */
+  public List<Query.Flight> direct(String originCity, String destCity, int dayOfMonth, int k)
+  {
+    return direct(originCity, destCity, ANY, ANY, dayOfMonth, k);
+  }
+
+  /**
+   * Returns up to {@code k} direct flights from {@code originCity} to {@code destCity}
+   * on the given date, ordered by (actual_time, fid).
+   *
+   * @param year year of the flights, or {@link #ANY}
+   * @param monthId month of the flights, or {@link #ANY}
+   */
+  public List<Query.Flight> direct(String originCity, String destCity, int year, int monthId, int dayOfMonth, int k)
+  {
+    int[] rows = route(flights.cityCode(originCity), flights.cityCode(destCity), dayOfMonth);
+    if (rows == null || k <= 0) return Collections.emptyList();
+
+    List<Query.Flight> result = new ArrayList<Query.Flight>(Math.min(k, rows.length));
+    for (int i = 0; i < rows.length && result.size() < k; i++)
+    {
+      if (inMonth(rows[i], year, monthId))
+        result.add(flights.flight(rows[i]));
+    }
+    return result;
+  }
+
+  // Routes are keyed by day of month only, months are told apart by reading the row
+  boolean inMonth(int row, int year, int monthId)
+  {
+    return (year == ANY || flights.year(row) == year) && (monthId == ANY || flights.monthId(row) == monthId);
+  }
+
+  /**
+   * Returns up to {@code k} direct flights from {@code originCity} to {@code destCity}
+   * on {@code dayOfMonth}, ordered by (price, fid).
+   */
+  public List<Query.Flight> cheapestDirect(String originCity, String destCity, int dayOfMonth, int k)
+  {
+    int[] rows = routeByPrice(flights.cityCode(originCity), flights.cityCode(destCity), dayOfMonth);
+    if (rows == null || k <= 0) return Collections.emptyList();
+
+    List<Query.Flight> result = new ArrayList<Query.Flight>(Math.min(k, rows.length));
+    for (int i = 0; i < rows.length && i < k; i++)
+      result.add(flights.flight(rows[i]));
+    return result;
+  }
+
+  /**
+   * Rows of the flights from city code {@code origin} to city code {@code dest} on
+   * {@code dayOfMonth} in (price, fid) order, or null if there are none.
+   */
+  int[] routeByPrice(int origin, int dest, int dayOfMonth)
+  {
+    if (origin < 0 || dest < 0 || !validDay(dayOfMonth)) return null;
+    return routesByPrice.get(routeKey(origin, dest, dayOfMonth));
+  }
+
+  /**
+   * Rows of the flights from city code {@code origin} to city code {@code dest} on
+   * {@code dayOfMonth} in (actual_time, fid) order, or null if there are none.
+   */
+  int[] route(int origin, int dest, int dayOfMonth)
+  {
+    if (origin < 0 || dest < 0 || !validDay(dayOfMonth)) return null;
+    return routes.get(routeKey(origin, dest, dayOfMonth));
+  }
+
+  /** One-stop search over the same flights. */
+  public ConnectionSearch connections()
+  {
+    return connections;
+  }
+
+  /** Search for itineraries of any number of legs over the same flights. */
+  public RouteSearch routeSearch()
+  {
+    return routeSearch;
+  }
+
+  /** The flights the index refers to. */
+  public FlightSnapshot flights()
+  {
+    return flights;
+  }
+
+  /** Number of flights held by the index. */
+  public int size()
+  {
+    return flights.rows();
+  }
+}
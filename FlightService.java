@@ -1,14 +1,18 @@
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileReader;
+import java.io.IOException;
 import java.io.InputStreamReader;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.io.OutputStreamWriter;
+import java.nio.file.Paths;
 
 public class FlightService
 {
   public static final String DBCONFIG_FILENAME = "dbconn.properties";
 
+  // Most flights in a route; the search grows quickly with every leg allowed
+  private static final int MAX_ROUTE_LEGS = 6;
+
   public static void usage()
   {
     /* prints the choices for commands and parameters */
@@ -16,150 +20,263 @@ public class FlightService
     System.out.println(" *** Please enter one of the following commands *** ");
     System.out.println("> create <username> <password> <initial amount>");
     System.out.println("> login <username> <password>");
-    System.out.println("> search <origin city> <destination city> <direct> <date> <num itineraries>");
+    System.out.println("> search <origin city> <destination city> <direct> <date> <num itineraries> [cheapest]");
+    System.out.println("> searchrange <origin city> <destination city> <direct> <first day> <last day> <num itineraries> [<month> <year>]");
+    System.out.println("> route <origin city> <destination city> <max flights> <date> <num itineraries>");
     System.out.println("> book <itinerary id>");
     System.out.println("> pay <reservation id>");
     System.out.println("> reservations");
     System.out.println("> cancel <reservation id>");
+    System.out.println("> stats");
     System.out.println("> quit");
   }
 
-  public static String[] tokenize(String command)
+  /** Runs one decoded command on a session. */
+  private interface Command
   {
-    String regex = "\"([^\"]*)\"|(\\S+)";
-    Matcher m = Pattern.compile(regex).matcher(command);
-    List<String> tokens = new ArrayList<>();
-    while (m.find())
-    {
-      if (m.group(1) != null)
-        tokens.add(m.group(1));
-      else
-        tokens.add(m.group(2));
-    }
-    return tokens.toArray(new String[0]);
+    String run(Query q, CommandDecoder args);
   }
 
-  public static String execute (Query q, String command)
+  // Handler of each command by opcode, see CommandDecoder
+  private static final Command[] COMMANDS = new Command[CommandDecoder.NAMES.length];
+
+  static
   {
-    String response;
+    COMMANDS[CommandDecoder.LOGIN] = new Command()
+    {
+      @Override
+      public String run(Query q, CommandDecoder args)
+      {
+        if (args.tokens() != 3) return "Error: Please provide a username and password";
+        /* authenticate the user */
+        return q.transaction_login(args.token(1), args.token(2));
+      }
+    };
 
-    String[] tokens = tokenize(command.trim());
-    if (tokens.length == 0)
-      response = "Please enter a command";
+    COMMANDS[CommandDecoder.CREATE] = new Command()
+    {
+      @Override
+      public String run(Query q, CommandDecoder args)
+      {
+        if (args.tokens() != 4)
+          return "Error: Please provide a username, password, and initial amount in the account";
+        /* create a new customer */
+        double initAmount = args.doubleArg(3);
+        if (Double.isNaN(initAmount)) return "Failed to parse amount";
+        return q.transaction_createCustomer(args.token(1), args.token(2), initAmount);
+      }
+    };
 
-    else if (tokens[0].equals("login"))
+    COMMANDS[CommandDecoder.SEARCH] = new Command()
     {
-      if (tokens.length == 3)
+      @Override
+      public String run(Query q, CommandDecoder args)
       {
-        /* authenticate the user */
-        String username = tokens[1];
-        String password = tokens[2];
-        response = q.transaction_login(username, password);
+        if (args.tokens() != 6 && args.tokens() != 7)
+          return "Error: Please provide all search parameters <origin_city> <destination_city> <direct> <date> <nb itineraries>";
+        if (args.tokens() == 7 && !args.tokenEquals(6, "cheapest"))
+          return "Error: unrecognized search order '" + args.token(6) + "'";
+        /* search for flights */
+        boolean direct = args.tokenEquals(3, "1");
+        long day = args.intArg(4);
+        long count = args.intArg(5);
+        if (day == CommandDecoder.NOT_AN_INT || count == CommandDecoder.NOT_AN_INT) return "Failed to parse integer";
+        return q.transaction_search(args.token(1), args.token(2), direct, (int) day, (int) count, args.tokens() == 7);
       }
-      else
-        response = "Error: Please provide a username and password";
-    }
+    };
 
-    else if (tokens[0].equals("create"))
+    COMMANDS[CommandDecoder.SEARCH_RANGE] = new Command()
     {
-      /* create a new customer */
-      if (tokens.length == 4)
+      @Override
+      public String run(Query q, CommandDecoder args)
       {
-        String username = tokens[1];
-        String password = tokens[2];
-        double initAmount = Double.parseDouble(tokens[3]);
-        response = q.transaction_createCustomer(username, password, initAmount);
+        if (args.tokens() != 7 && args.tokens() != 9)
+          return "Error: Please provide all search parameters <origin_city> <destination_city> <direct> <first_day> <last_day> <nb itineraries> [<month> <year>]";
+        /* search for flights over a range of days */
+        boolean direct = args.tokenEquals(3, "1");
+        long firstDay = args.intArg(4);
+        long lastDay = args.intArg(5);
+        long count = args.intArg(6);
+        long month = args.tokens() == 9 ? args.intArg(7) : FlightIndex.ANY;
+        long year = args.tokens() == 9 ? args.intArg(8) : FlightIndex.ANY;
+        if (firstDay == CommandDecoder.NOT_AN_INT || lastDay == CommandDecoder.NOT_AN_INT || count == CommandDecoder.NOT_AN_INT
+            || month == CommandDecoder.NOT_AN_INT || year == CommandDecoder.NOT_AN_INT)
+          return "Failed to parse integer";
+        if (firstDay < 1 || lastDay > 31 || firstDay > lastDay)
+          return "Error: Days must be between 1 and 31, the first no later than the last";
+        if (args.tokens() == 9 && (month < 1 || month > 12 || year < 1))
+          return "Error: Please provide a month between 1 and 12 and a year";
+        return q.transaction_searchRange(args.token(1), args.token(2), direct, (int) firstDay, (int) lastDay, (int) count,
+                                         (int) month, (int) year);
       }
-      else
-        response = "Error: Please provide a username, password, and initial amount in the account";
-    }
+    };
 
-    else if (tokens[0].equals("search"))
+    COMMANDS[CommandDecoder.ROUTE] = new Command()
     {
-				/* search for flights */
-      if (tokens.length == 6)
+      @Override
+      public String run(Query q, CommandDecoder args)
       {
-        String originCity = tokens[1];
-        String destinationCity = tokens[2];
-        boolean direct = tokens[3].equals("1");
-        Integer day;
-        Integer count;
-        try
-        {
-          day = Integer.valueOf(tokens[4]);
-          count = Integer.valueOf(tokens[5]);
-          //System.out.println("Searching for flights");
-          //response = q.transaction_search_unsafe(originCity, destinationCity, direct, day, count);
-          response = q.transaction_search(originCity, destinationCity, direct, day, count);
-        }
-        catch (NumberFormatException e) { response = "Failed to parse integer"; }
+        if (args.tokens() != 6)
+          return "Error: Please provide all route parameters <origin_city> <destination_city> <max flights> <date> <nb itineraries>";
+        /* search for routes of several flights */
+        long maxLegs = args.intArg(3);
+        long day = args.intArg(4);
+        long count = args.intArg(5);
+        if (maxLegs == CommandDecoder.NOT_AN_INT || day == CommandDecoder.NOT_AN_INT || count == CommandDecoder.NOT_AN_INT)
+          return "Failed to parse integer";
+        if (maxLegs < 1 || maxLegs > MAX_ROUTE_LEGS)
+          return "Error: A route has between 1 and " + MAX_ROUTE_LEGS + " flights";
+        return q.transaction_route(args.token(1), args.token(2), (int) maxLegs, (int) day, (int) count);
       }
-      else
-        response = "Error: Please provide all search parameters <origin_city> <destination_city> <direct> <date> <nb itineraries>";
-    }
+    };
 
-    else if (tokens[0].equals("book"))
+    COMMANDS[CommandDecoder.BOOK] = new Command()
     {
-				/* book a flight ticket */
-      if (tokens.length == 2)
+      @Override
+      public String run(Query q, CommandDecoder args)
       {
-        int itinerary_id = Integer.parseInt(tokens[1]);
-        //System.out.println("Booking itinerary.");
-        response = q.transaction_book(itinerary_id);
+        if (args.tokens() != 2) return "Error: Please provide an itinerary_id";
+        /* book a flight ticket */
+        long itineraryId = args.intArg(1);
+        if (itineraryId == CommandDecoder.NOT_AN_INT) return "Failed to parse integer";
+        return q.transaction_book((int) itineraryId);
       }
-      else
-        response = "Error: Please provide an itinerary_id";
-    }
+    };
 
-    else if (tokens[0].equals("reservations"))
+    COMMANDS[CommandDecoder.RESERVATIONS] = new Command()
     {
-				/* list all reservations */
-      response = q.transaction_reservations();
-    }
+      @Override
+      public String run(Query q, CommandDecoder args)
+      {
+        /* list all reservations */
+        return q.transaction_reservations();
+      }
+    };
 
-    else if (tokens[0].equals("pay"))
+    COMMANDS[CommandDecoder.PAY] = new Command()
     {
-      /* pay for an unpaid reservation */
-      if (tokens.length == 2)
+      @Override
+      public String run(Query q, CommandDecoder args)
       {
-        int reservation_id = Integer.parseInt(tokens[1]);
-        //System.out.println("Paying reservation.");
-        response = q.transaction_pay(reservation_id);
+        if (args.tokens() != 2) return "Error: Please provide a reservation_id";
+        /* pay for an unpaid reservation */
+        long reservationId = args.intArg(1);
+        if (reservationId == CommandDecoder.NOT_AN_INT) return "Failed to parse integer";
+        return q.transaction_pay((int) reservationId);
       }
-      else
-        response = "Error: Please provide a reservation_id";
-    }
+    };
 
-    else if (tokens[0].equals("cancel"))
+    COMMANDS[CommandDecoder.CANCEL] = new Command()
     {
-				/* cancel a reservation */
-      if (tokens.length == 2)
+      @Override
+      public String run(Query q, CommandDecoder args)
       {
-        int reservation_id = Integer.parseInt(tokens[1]);
-        //System.out.println("Canceling reservation.");
-        response = q.transaction_cancel(reservation_id);
+        if (args.tokens() != 2) return "Error: Please provide a reservation_id";
+        /* cancel a reservation */
+        long reservationId = args.intArg(1);
+        if (reservationId == CommandDecoder.NOT_AN_INT) return "Failed to parse integer";
+        return q.transaction_cancel((int) reservationId);
       }
-      else
-        response = "Error: Please provide a reservation_id";
-    }
+    };
 
-    else if (tokens[0].equals("quit"))
-      response = "Goodbye\n";
+    COMMANDS[CommandDecoder.STATS] = new Command()
+    {
+      @Override
+      public String run(Query q, CommandDecoder args)
+      {
+        /* latency and database statistics of every session so far */
+        return q.engine().statsReport();
+      }
+    };
 
-    else
-      response = "Error: unrecognized command '" + tokens[0] + "'";
+    COMMANDS[CommandDecoder.QUIT] = new Command()
+    {
+      @Override
+      public String run(Query q, CommandDecoder args)
+      {
+        try
+        {
+          q.engine().dumpStats();
+        }
+        catch (IOException e) {e.printStackTrace();}
+        return "Goodbye\n";
+      }
+    };
+  }
 
+  /**
+   * Runs one command line on a session and returns the response. The line is decoded by
+   * the session's {@link CommandDecoder}, so a session runs one command at a time.
+   */
+  public static String execute (Query q, String command)
+  {
+    long start = System.nanoTime();
+    CommandDecoder args = q.decoder();
+    int op = args.decode(command);
+
+    if (op == CommandDecoder.EMPTY)
+      return "Please enter a command";
+    if (op == CommandDecoder.UNKNOWN)
+      return "Error: unrecognized command '" + args.token(0) + "'";
+
+    String response;
+    try
+    {
+      response = COMMANDS[op].run(q, args);
+    }
+    catch (RuntimeException e)
+    {
+      // the session goes on and the details stay in the server's log
+      e.printStackTrace();
+      response = failure(op, args);
+    }
+    q.engine().commandStats().record(op, System.nanoTime() - start);
     return response;
   }
 
-  /* REPL (Read-Execute-Print-Loop) */
+  /**
+   * Response of a command line that threw while running on the session, worded as the
+   * command's own failures are.
+   */
+  static String failure(Query q, String command)
+  {
+    CommandDecoder args = q.decoder();
+    return failure(args.decode(command), args);
+  }
+
+  // Response of a command whose handler threw, worded as the command's own failures are
+  private static String failure(int op, CommandDecoder args)
+  {
+    switch (op)
+    {
+      case CommandDecoder.LOGIN:
+        return "Login failed\n";
+      case CommandDecoder.CREATE:
+        return "Failed to create user\n";
+      case CommandDecoder.BOOK:
+        return "Booking failed\n";
+      case CommandDecoder.PAY:
+        return "Failed to pay for reservation " + args.token(1) + "\n";
+      case CommandDecoder.RESERVATIONS:
+        return "Failed to retrieve reservations\n";
+      case CommandDecoder.CANCEL:
+        return "Failed to cancel reservation " + args.token(1) + "\n";
+      case CommandDecoder.STATS:
+        return "Failed to collect statistics\n";
+      case CommandDecoder.QUIT:
+        return "Goodbye\n";
+      default:
+        return "Failed to search\n";
+    }
+  }
+
   public static void menu(Query q) throws Exception
   {
+    BufferedReader r = new BufferedReader(new InputStreamReader(System.in));
     while (true)
     {
       usage();
 
-      BufferedReader r = new BufferedReader(new InputStreamReader(System.in));
       System.out.print("> ");
 
       String command = r.readLine();
@@ -171,14 +288,71 @@ public class FlightService
     }
   }
 
+  /* Non-interactive mode: replays "<session id> <command>" lines from a file, or stdin for "-" */
+  public static void batch(QueryEngine engine, String source) throws Exception
+  {
+    BufferedReader in = source.equals("-")
+            ? new BufferedReader(new InputStreamReader(System.in))
+            : new BufferedReader(new FileReader(source));
+    BufferedWriter out = new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16);
+    try
+    {
+      new BatchRunner(engine, engine.store().parallelism()).run(in, out);
+    }
+    finally
+    {
+      in.close();
+    }
+  }
+
+  /**
+   * Writes the searchable flights to a {@link FlightSnapshot} file, which
+   * flightservice.flights_snapshot can then map at startup.
+   */
+  public static void exportSnapshot(QueryEngine engine, String file) throws Exception
+  {
+    FlightSnapshot snapshot = engine.store().flightSnapshot();
+    snapshot.write(Paths.get(file));
+    System.out.println("Wrote " + snapshot.rows() + " flights and " + snapshot.names() + " names to " + file);
+  }
+
+  /**
+   * Serves sessions on {@code port} of the loopback address until the process is
+   * stopped; see {@link SessionServer}.
+   */
+  public static void serve(QueryEngine engine, int port) throws Exception
+  {
+    engine.store().warmUp();
+    SessionServer server = SessionServer.fromConfig(engine, port);
+    try
+    {
+      System.out.println("Serving sessions on port " + server.port()
+                         + (server.virtualThreads() ? " (virtual threads)" : " (platform threads)"));
+      server.serve();
+    }
+    finally
+    {
+      server.close();
+    }
+  }
+
   public static void main(String[] args) throws Exception
   {
 		/* prepare the database connection stuff */
-    Query q = new Query(DBCONFIG_FILENAME);
-    q.openConnection();
-    q.prepareStatements();
-    menu(q); /* menu(...) does the real work */
-    q.closeConnection();
+    QueryEngine engine = QueryEngine.open(DBCONFIG_FILENAME);
+    if (args.length > 1 && args[0].equals("--export-snapshot"))
+      exportSnapshot(engine, args[1]);
+    else if (args.length > 0 && args[0].equals("--batch"))
+      batch(engine, args.length > 1 ? args[1] : "-");
+    else if (args.length > 1 && args[0].equals("--serve"))
+      serve(engine, Integer.parseInt(args[1]));
+    else
+    {
+      Query q = engine.newSession();
+      q.prepareStatements();
+      menu(q); /* menu(...) does the real work */
+    }
+    engine.close();
   }
 
 }
\ No newline at end of file
@@ -0,0 +1,377 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The searchable flights in a compact, read-only, column oriented binary format.
+ *
+ * Rows are sorted by fid and every column is a fixed-width array with one element per
+ * row. Carrier names, flight numbers and city names are dictionary encoded: the columns
+ * hold codes into a table of distinct strings, or -1 for null, so every row keeps its own
+ * spelling. Searches look cities up regardless of case, as the database's collation
+ * compares them: {@link #origin(int)}, {@link #dest(int)} and {@link #cityCode(String)}
+ * return one code for all spellings of a city. The same bytes are used
+ * in memory and on disk, so a snapshot written by {@link #write(Path)} can be memory
+ * mapped by {@link #map(Path)} and read in place, without parsing the file or creating
+ * an object per flight. Only the string table is decoded onto the heap.
+ *
+ * Layout, little endian, every section starting on an 8 byte boundary:
+ * <pre>
+ * header      magic "FLTSNAP1", int version, int rows, int names
+ * int[rows]   fid, year, month_id, day_of_month, carrier, flight_num, origin_city, dest_city, capacity
+ * double[rows] actual_time, price
+ * int[names + 1] offsets of each name in the UTF-8 bytes that follow, then the end offset
+ * byte[]      UTF-8 bytes of every name
+ * </pre>
+ */
+public final class FlightSnapshot
+{
+  private static final long MAGIC = 0x3150414e53544c46L; // "FLTSNAP1" read little endian
+  private static final int VERSION = 1;
+  private static final int HEADER_BYTES = 24;
+
+  private static final int INT_COLUMNS = 9;
+  private static final int DOUBLE_COLUMNS = 2;
+
+  // Code stored for a null carrier, flight number or city
+  private static final int NULL_NAME = -1;
+
+  private static final Comparator<Query.Flight> BY_FID = new Comparator<Query.Flight>()
+  {
+    @Override
+    public int compare(Query.Flight a, Query.Flight b)
+    {
+      return Integer.compare(a.fid, b.fid);
+    }
+  };
+
+  private final ByteBuffer bytes;
+  private final int rows;
+
+  private final IntBuffer fids;
+  private final IntBuffer years;
+  private final IntBuffer monthIds;
+  private final IntBuffer daysOfMonth;
+  private final IntBuffer carriers;
+  private final IntBuffer flightNums;
+  private final IntBuffer origins;
+  private final IntBuffer dests;
+  private final IntBuffer capacities;
+  private final DoubleBuffer times;
+  private final DoubleBuffer prices;
+
+  // The string table, the city code of each string's case-folded form, and the city code of each string
+  private final String[] names;
+  private final Map<String, Integer> cityCodes;
+  private final int[] cities;
+
+  private FlightSnapshot(ByteBuffer bytes)
+  {
+    this.bytes = bytes.order(ByteOrder.LITTLE_ENDIAN);
+    if (bytes.capacity() < HEADER_BYTES || bytes.getLong(0) != MAGIC)
+      throw new IllegalArgumentException("Not a flight snapshot");
+    if (bytes.getInt(8) != VERSION)
+      throw new IllegalArgumentException("Unsupported flight snapshot version " + bytes.getInt(8));
+    rows = bytes.getInt(12);
+    int nameCount = bytes.getInt(16);
+
+    int offset = HEADER_BYTES;
+    IntBuffer[] ints = new IntBuffer[INT_COLUMNS];
+    for (int i = 0; i < INT_COLUMNS; i++)
+    {
+      ints[i] = section(offset, rows * 4).asIntBuffer();
+      offset = align(offset + rows * 4);
+    }
+    DoubleBuffer[] doubles = new DoubleBuffer[DOUBLE_COLUMNS];
+    for (int i = 0; i < DOUBLE_COLUMNS; i++)
+    {
+      doubles[i] = section(offset, rows * 8).asDoubleBuffer();
+      offset = align(offset + rows * 8);
+    }
+    fids = ints[0];
+    years = ints[1];
+    monthIds = ints[2];
+    daysOfMonth = ints[3];
+    carriers = ints[4];
+    flightNums = ints[5];
+    origins = ints[6];
+    dests = ints[7];
+    capacities = ints[8];
+    times = doubles[0];
+    prices = doubles[1];
+
+    IntBuffer nameOffsets = section(offset, (nameCount + 1) * 4).asIntBuffer();
+    int textStart = offset + (nameCount + 1) * 4;
+    names = new String[nameCount];
+    cityCodes = new HashMap<String, Integer>(nameCount * 2);
+    cities = new int[nameCount];
+    byte[] utf8 = new byte[0];
+    for (int i = 0; i < nameCount; i++)
+    {
+      int start = nameOffsets.get(i);
+      int length = nameOffsets.get(i + 1) - start;
+      if (utf8.length < length) utf8 = new byte[length];
+      section(textStart + start, length).get(utf8, 0, length);
+      names[i] = new String(utf8, 0, length, StandardCharsets.UTF_8);
+      // the first spelling of a city stands for all of them
+      Integer city = cityCodes.get(fold(names[i]));
+      if (city == null)
+      {
+        city = i;
+        cityCodes.put(fold(names[i]), city);
+      }
+      cities[i] = city;
+    }
+  }
+
+  private ByteBuffer section(int offset, int length)
+  {
+    ByteBuffer section = bytes.duplicate();
+    section.limit(offset + length).position(offset);
+    return section.slice().order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  private static int align(int offset)
+  {
+    return (offset + 7) & ~7;
+  }
+
+  /**
+   * Encodes flights into a snapshot held on the heap.
+   *
+   * @param flights searchable flights, each fid at most once
+   */
+  public static FlightSnapshot of(Collection<Query.Flight> flights)
+  {
+    Query.Flight[] sorted = flights.toArray(new Query.Flight[0]);
+    Arrays.sort(sorted, BY_FID);
+    int rows = sorted.length;
+
+    Map<String, Integer> codes = new HashMap<String, Integer>();
+    List<String> distinct = new ArrayList<String>();
+    int[][] ints = new int[INT_COLUMNS][rows];
+    int textBytes = 0;
+    for (int row = 0; row < rows; row++)
+    {
+      Query.Flight f = sorted[row];
+      if (row > 0 && f.fid == sorted[row - 1].fid) throw new IllegalArgumentException("Duplicate fid " + f.fid);
+      ints[0][row] = f.fid;
+      ints[1][row] = f.year;
+      ints[2][row] = f.monthId;
+      ints[3][row] = f.dayOfMonth;
+      ints[8][row] = f.capacity;
+      String[] strings = {f.carrierId, f.flightNum, f.originCity, f.destCity};
+      for (int i = 0; i < strings.length; i++)
+      {
+        if (strings[i] == null)
+        {
+          ints[4 + i][row] = NULL_NAME;
+          continue;
+        }
+        Integer code = codes.get(strings[i]);
+        if (code == null)
+        {
+          code = distinct.size();
+          codes.put(strings[i], code);
+          distinct.add(strings[i]);
+          textBytes += strings[i].getBytes(StandardCharsets.UTF_8).length;
+        }
+        ints[4 + i][row] = code;
+      }
+    }
+    String[] names = distinct.toArray(new String[0]);
+
+    int size = HEADER_BYTES + INT_COLUMNS * align(rows * 4) + DOUBLE_COLUMNS * align(rows * 8)
+               + (names.length + 1) * 4 + textBytes;
+    ByteBuffer bytes = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    bytes.putLong(MAGIC).putInt(VERSION).putInt(rows).putInt(names.length).putInt(0);
+
+    for (int[] column : ints)
+    {
+      for (int value : column)
+        bytes.putInt(value);
+      bytes.position(align(bytes.position()));
+    }
+    for (int row = 0; row < rows; row++)
+      bytes.putDouble(sorted[row].time);
+    bytes.position(align(bytes.position()));
+    for (int row = 0; row < rows; row++)
+      bytes.putDouble(sorted[row].price);
+    bytes.position(align(bytes.position()));
+
+    byte[][] utf8 = new byte[names.length][];
+    int offset = 0;
+    for (int i = 0; i < names.length; i++)
+    {
+      utf8[i] = names[i].getBytes(StandardCharsets.UTF_8);
+      bytes.putInt(offset);
+      offset += utf8[i].length;
+    }
+    bytes.putInt(offset);
+    for (byte[] name : utf8)
+      bytes.put(name);
+
+    return new FlightSnapshot(bytes.clear());
+  }
+
+  /** Maps a snapshot file written by {@link #write(Path)} read-only into memory. */
+  public static FlightSnapshot map(Path file) throws IOException
+  {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ))
+    {
+      if (channel.size() > Integer.MAX_VALUE) throw new IOException("Flight snapshot too large: " + file);
+      return new FlightSnapshot(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+    }
+  }
+
+  /** Writes the snapshot to {@code file}, replacing it. */
+  public void write(Path file) throws IOException
+  {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                StandardOpenOption.TRUNCATE_EXISTING))
+    {
+      ByteBuffer all = bytes.duplicate().clear();
+      while (all.hasRemaining())
+        channel.write(all);
+    }
+  }
+
+  /** Number of flights. */
+  public int rows()
+  {
+    return rows;
+  }
+
+  /** Number of distinct names in the string table. */
+  public int names()
+  {
+    return names.length;
+  }
+
+  /** Returns the row of {@code fid}, or a negative number if there is no such flight. */
+  public int row(int fid)
+  {
+    int low = 0;
+    int high = rows - 1;
+    while (low <= high)
+    {
+      int mid = (low + high) >>> 1;
+      int midFid = fids.get(mid);
+      if (midFid < fid)
+        low = mid + 1;
+      else if (midFid > fid)
+        high = mid - 1;
+      else
+        return mid;
+    }
+    return -(low + 1);
+  }
+
+  /**
+   * Returns the code {@link #origin(int)} and {@link #dest(int)} give a city, whatever its
+   * case, or -1 if no flight uses it.
+   */
+  public int cityCode(String name)
+  {
+    Integer code = name == null ? null : cityCodes.get(fold(name));
+    return code == null ? -1 : code;
+  }
+
+  private static String fold(String name)
+  {
+    return name.toLowerCase(Locale.ROOT);
+  }
+
+  /** Returns the name with the given dictionary code, null for the code of a null name. */
+  public String name(int code)
+  {
+    return code == NULL_NAME ? null : names[code];
+  }
+
+  public int fid(int row)
+  {
+    return fids.get(row);
+  }
+
+  public int year(int row)
+  {
+    return years.get(row);
+  }
+
+  public int monthId(int row)
+  {
+    return monthIds.get(row);
+  }
+
+  public int dayOfMonth(int row)
+  {
+    return daysOfMonth.get(row);
+  }
+
+  /** City code of the row's origin, the same for every spelling of the city. */
+  public int origin(int row)
+  {
+    return city(origins.get(row));
+  }
+
+  /** City code of the row's destination, the same for every spelling of the city. */
+  public int dest(int row)
+  {
+    return city(dests.get(row));
+  }
+
+  private int city(int code)
+  {
+    return code == NULL_NAME ? NULL_NAME : cities[code];
+  }
+
+  public double time(int row)
+  {
+    return times.get(row);
+  }
+
+  public int capacity(int row)
+  {
+    return capacities.get(row);
+  }
+
+  public double price(int row)
+  {
+    return prices.get(row);
+  }
+
+  /**
+   * Creates the flight of one row, spelled as the row is. Names are shared with the
+   * snapshot's string table.
+   */
+  public Query.Flight flight(int row)
+  {
+    Query.Flight f = new Query.Flight();
+    f.fid = fids.get(row);
+    f.year = years.get(row);
+    f.monthId = monthIds.get(row);
+    f.dayOfMonth = daysOfMonth.get(row);
+    f.carrierId = name(carriers.get(row));
+    f.flightNum = name(flightNums.get(row));
+    f.originCity = name(origins.get(row));
+    f.destCity = name(dests.get(row));
+    f.time = times.get(row);
+    f.capacity = capacities.get(row);
+    f.price = prices.get(row);
+    return f;
+  }
+}
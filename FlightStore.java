@@ -0,0 +1,183 @@
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Where the flight service keeps its data: the read-only Flights table, users,
+ * reservations and the reservation ID sequence.
+ *
+ * A store is shared by every session of a {@link QueryEngine} and must be thread safe.
+ * It does not enforce the service's rules itself: sessions hold the user's and the
+ * flights' locks (see {@link StripedLocks}) around the calls that check and change a
+ * user's balance, reservations or a flight's seats.
+ *
+ * Every operation may throw {@link SQLException}, so sessions handle a failing store the
+ * same way whatever backs it.
+ *
+ * @see JdbcFlightStore
+ * @see MemoryFlightStore
+ */
+public interface FlightStore extends AutoCloseable
+{
+  /**
+   * Every flight that can be searched and booked, i.e. every flight with an actual_time.
+   */
+  FlightSnapshot flightSnapshot() throws SQLException;
+
+  /** Returns the flight with the given fid, or null if there is none. */
+  Query.Flight flight(int fid) throws SQLException;
+
+  /** Returns the flights with the given fids. Fids that do not exist are missing from the result. */
+  Map<Integer, Query.Flight> flights(int[] fids) throws SQLException;
+
+  /** Number of reservations holding a seat on {@code fid}, on either leg. */
+  int bookedSeats(int fid) throws SQLException;
+
+  /**
+   * Returns the password of {@code username}, or null if there is no such user. Names are
+   * matched regardless of case, as they are unique.
+   */
+  String password(String username) throws SQLException;
+
+  /**
+   * Creates a user. Usernames are unique regardless of case.
+   *
+   * @return false if a user with that name already exists
+   */
+  boolean createUser(String username, String password, double balance) throws SQLException;
+
+  /** Returns a reservation ID that was never handed out before, starting from 1. */
+  int nextReservationId() throws SQLException;
+
+  /**
+   * Inserts an unpaid reservation.
+   *
+   * @param fid2 second flight, or -1 for a direct itinerary
+   */
+  void insertReservation(int id, String username, int fid1, int fid2) throws SQLException;
+
+  /**
+   * Inserts several unpaid reservations, in as few round trips as the store allows.
+   * Inside a transaction they are inserted all or none.
+   *
+   * @see BookingCoalescer
+   */
+  void insertReservations(List<Booking> bookings) throws SQLException;
+
+  /** The user's reservations, ordered by ID. */
+  List<Reservation> reservations(String username) throws SQLException;
+
+  /** Returns the user's reservation with the given ID, or null if the user has none. */
+  Reservation reservation(String username, int id) throws SQLException;
+
+  /**
+   * Returns the user's balance together with their reservation with the given ID, read in
+   * one operation.
+   */
+  Account account(String username, int id) throws SQLException;
+
+  /**
+   * Charges {@code cost} to the user's balance and marks the reservation paid, both or
+   * neither.
+   *
+   * @return false, having changed nothing, if the balance is less than {@code cost}
+   */
+  boolean pay(String username, int id, double cost) throws SQLException;
+
+  /**
+   * Deletes the reservation and adds {@code refund} to the user's balance, both or neither.
+   *
+   * @param refund amount to pay back, 0 for an unpaid reservation
+   */
+  void cancel(String username, int id, double refund) throws SQLException;
+
+  /**
+   * Starts a serializable transaction bound to the calling thread. Until {@link #commit()}
+   * or {@link #rollback()} every operation the thread runs joins it, except handing out
+   * reservation IDs, which are never given back.
+   *
+   * @see TransactionRunner
+   */
+  void begin() throws SQLException;
+
+  /** Commits the calling thread's transaction. It has ended, rolled back, if this throws. */
+  void commit() throws SQLException;
+
+  /** Rolls back the calling thread's transaction. */
+  void rollback() throws SQLException;
+
+  /**
+   * Deletes every user and reservation and restarts reservation IDs at 1. Flights are
+   * left alone.
+   */
+  void clear() throws SQLException;
+
+  /** Prepares the store to serve commands, so that the first ones are not slower. */
+  void warmUp() throws SQLException;
+
+  /** Number of operations the store can usefully run at the same time. */
+  int parallelism();
+
+  @Override
+  void close();
+
+  /**
+   * An unpaid reservation to insert.
+   */
+  static class Booking
+  {
+    public final int id;
+    public final String username;
+    public final int fid1;
+    // -1 for a direct itinerary
+    public final int fid2;
+
+    public Booking(int id, String username, int fid1, int fid2)
+    {
+      this.id = id;
+      this.username = username;
+      this.fid1 = fid1;
+      this.fid2 = fid2;
+    }
+  }
+
+  /**
+   * One row of Reservations, with the date of its first flight.
+   */
+  static class Reservation
+  {
+    public final int id;
+    public final int fid1;
+    // -1 for a direct itinerary
+    public final int fid2;
+    public final boolean paid;
+    public final int monthId;
+    public final int dayOfMonth;
+
+    public Reservation(int id, int fid1, int fid2, boolean paid, int monthId, int dayOfMonth)
+    {
+      this.id = id;
+      this.fid1 = fid1;
+      this.fid2 = fid2;
+      this.paid = paid;
+      this.monthId = monthId;
+      this.dayOfMonth = dayOfMonth;
+    }
+  }
+
+  /**
+   * A user's balance and one of their reservations.
+   */
+  static class Account
+  {
+    public final double balance;
+    // null if the user has no such reservation
+    public final Reservation reservation;
+
+    public Account(double balance, Reservation reservation)
+    {
+      this.balance = balance;
+      this.reservation = reservation;
+    }
+  }
+}
@@ -0,0 +1,77 @@
+/**
+ * Writes flights, search itineraries and reservations in the service's output format.
+ *
+ * Every method appends field by field to a caller supplied builder, so a session can
+ * render a whole response into one reused buffer without allocating a String per
+ * line or per concatenation.
+ */
+public final class ItineraryFormatter
+{
+  private ItineraryFormatter()
+  {
+  }
+
+  /**
+   * Appends a flight without a line terminator:
+   * {@code ID: <fid> Date: <year>-<month>-<day> Carrier: <carrier> Number: <number> Origin: <origin>
+   * Dest: <dest> Duration: <time> Capacity: <capacity> Price: <price>}
+   */
+  public static StringBuilder appendFlight(StringBuilder sb, Query.Flight f)
+  {
+    return sb.append("ID: ").append(f.fid)
+             .append(" Date: ").append(f.year).append('-').append(f.monthId).append('-').append(f.dayOfMonth)
+             .append(" Carrier: ").append(f.carrierId)
+             .append(" Number: ").append(f.flightNum)
+             .append(" Origin: ").append(f.originCity)
+             .append(" Dest: ").append(f.destCity)
+             .append(" Duration: ").append(f.time)
+             .append(" Capacity: ").append(f.capacity)
+             .append(" Price: ").append(f.price);
+  }
+
+  /**
+   * Appends one search result: the itinerary header followed by a line per flight.
+   *
+   * @param number position of the itinerary in the search results
+   * @param f2 second flight, or null for a direct itinerary
+   */
+  public static StringBuilder appendSearchItinerary(StringBuilder sb, int number, Query.Flight f1, Query.Flight f2)
+  {
+    sb.append("Itinerary ").append(number).append(": ")
+      .append(f2 == null ? 1 : 2).append(" flight(s), ")
+      .append(f2 == null ? f1.time : f1.time + f2.time).append(" minutes\n");
+    appendFlight(sb, f1).append('\n');
+    if (f2 != null)
+      appendFlight(sb, f2).append('\n');
+    return sb;
+  }
+
+  /**
+   * Appends one route of any number of flights in the format of
+   * {@link #appendSearchItinerary}; the minutes are those spent flying.
+   */
+  public static StringBuilder appendRoute(StringBuilder sb, int number, Query.Flight[] legs)
+  {
+    double minutes = 0;
+    for (Query.Flight f : legs)
+      minutes += f.time;
+    sb.append("Itinerary ").append(number).append(": ")
+      .append(legs.length).append(" flight(s), ")
+      .append(minutes).append(" minutes\n");
+    for (Query.Flight f : legs)
+      appendFlight(sb, f).append('\n');
+    return sb;
+  }
+
+  /**
+   * Appends one reservation: the reservation header followed by a line per flight.
+   */
+  public static StringBuilder appendReservation(StringBuilder sb, int reservationId, boolean paid, Query.Itinerary it)
+  {
+    sb.append("Reservation ").append(reservationId).append(" paid: ").append(paid).append(":\n");
+    appendFlight(sb, it.f1).append('\n');
+    if (it.f2 != null)
+      appendFlight(sb, it.f2).append('\n');
+    return sb;
+  }
+}
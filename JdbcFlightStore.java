@@ -0,0 +1,643 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A {@link FlightStore} on a SQL Server (SQL Azure) database through a pool of JDBC
+ * connections.
+ *
+ * Each operation leases a connection for its own duration and runs on it in auto-commit
+ * mode, unless its thread has begun a transaction: then it runs on the transaction's
+ * connection. Statements are prepared once per pooled connection and reused.
+ */
+public class JdbcFlightStore implements FlightStore
+{
+  private static final String FLIGHT_COLUMNS =
+    "SELECT fid, year, month_id, day_of_month, carrier_id, flight_num, origin_city, dest_city, actual_time, capacity, price "
+    + "FROM Flights ";
+
+  private static final String SEARCHABLE_FLIGHTS = FLIGHT_COLUMNS + "WHERE actual_time IS NOT NULL";
+
+  private static final String FLIGHT_BY_FID = FLIGHT_COLUMNS + "WHERE fid = ?";
+
+  // Number of fids fetched per IN list; short lists are padded by repeating a fid
+  private static final int BATCH = 16;
+  private static final String FLIGHTS_BY_FID = FLIGHT_COLUMNS + "WHERE fid IN (" + placeholders(BATCH) + ")";
+
+  private static final String COUNT_BOOKED =
+    "SELECT (SELECT COUNT(*) FROM Reservations WHERE fid1 = ?) + (SELECT COUNT(*) FROM Reservations WHERE fid2 = ?) AS cnt";
+
+  private static final String USER_LOGIN = "SELECT username, password FROM Users WHERE username = ?";
+
+  private static final String USERNAME_SEARCH = "SELECT u.username FROM Users AS u WHERE ? = u.username";
+
+  private static final String USERNAME_INSERT = "INSERT INTO Users (username, password, balance) VALUES (?, ?, ?) ";
+
+  private static final String ADD_TO_BALANCE = "UPDATE Users SET balance = (balance + ?) WHERE username = ?";
+
+  private static final String CHARGE = "UPDATE Users SET balance = (balance - ?) WHERE username = ? AND balance >= ?";
+
+  private static final String RESERVATION_INSERT = "INSERT INTO Reservations (id, username, fid1, fid2, paid)"
+    + " VALUES (?, ?, ?, ?, 0)";
+
+  private static final String RESERVATION_COLUMNS = "SELECT r.id, r.paid, r.fid1, r.fid2, f.month_id, f.day_of_month "
+    + "FROM Reservations AS r JOIN Flights AS f ON f.fid = r.fid1 ";
+
+  private static final String GET_RESERVATIONS = RESERVATION_COLUMNS + "WHERE r.username = ? ORDER BY r.id";
+
+  private static final String GET_RESERVATION = RESERVATION_COLUMNS + "WHERE r.username = ? AND r.id = ?";
+
+  private static final String GET_ACCOUNT = "SELECT u.balance, r.id, r.paid, r.fid1, r.fid2, f.month_id, f.day_of_month "
+    + "FROM Users AS u "
+    + "LEFT JOIN Reservations AS r ON r.username = u.username AND r.id = ? "
+    + "LEFT JOIN Flights AS f ON f.fid = r.fid1 "
+    + "WHERE u.username = ?";
+
+  private static final String MARK_PAID = "UPDATE Reservations SET paid = 1 WHERE username = ? AND id = ?";
+
+  private static final String DELETE_RESERVATION = "DELETE FROM Reservations WHERE username = ? AND id = ?";
+
+  // Paying charges the balance, if it covers the cost, then marks the reservation paid;
+  // a paid cancel refunds then deletes
+  private static final String[] PAY = {CHARGE, MARK_PAID};
+  private static final String[] REFUNDED_CANCEL = {ADD_TO_BALANCE, DELETE_RESERVATION};
+  private static final String PAY_BATCH = serverBatch(PAY);
+  private static final String REFUNDED_CANCEL_BATCH = serverBatch(REFUNDED_CANCEL);
+
+  // Empties users and reservations and restarts reservation IDs
+  private static final String[] CLEAR = {
+    "DELETE FROM Reservations", "DELETE FROM Users", "DELETE FROM ResID", "INSERT INTO ResID (currID) VALUES (0)"
+  };
+
+  private static final String XACT_ABORT_OFF = "SET XACT_ABORT OFF";
+
+  private static final String[] STATEMENTS = {
+    FLIGHT_BY_FID, FLIGHTS_BY_FID, COUNT_BOOKED, USER_LOGIN, USERNAME_SEARCH, USERNAME_INSERT, ADD_TO_BALANCE, CHARGE,
+    RESERVATION_INSERT, GET_RESERVATIONS, GET_RESERVATION, GET_ACCOUNT, MARK_PAID, DELETE_RESERVATION
+  };
+
+  private final ConnectionPool pool;
+  private final ReservationIdAllocator reservationIds;
+
+  // Searchable flights, read from the database on first use unless given a snapshot
+  private volatile FlightSnapshot flights;
+
+  // Whether the database runs multi-statement batches, known after the first transaction
+  private volatile Boolean serverBatches;
+
+  // Transaction open on each thread, see begin()
+  private final ThreadLocal<Transaction> transactions = new ThreadLocal<Transaction>();
+
+  /**
+   * @param pool connections to the database
+   * @param reservationIdBlock number of reservation IDs leased from ResID at a time
+   */
+  public JdbcFlightStore(ConnectionPool pool, int reservationIdBlock)
+  {
+    this(pool, reservationIdBlock, null);
+  }
+
+  /**
+   * @param flights snapshot of the database's searchable flights, served in place of
+   *                reading them from the Flights table
+   */
+  public JdbcFlightStore(ConnectionPool pool, int reservationIdBlock, FlightSnapshot flights)
+  {
+    this.pool = pool;
+    this.reservationIds = new ReservationIdAllocator(reservationIdBlock);
+    this.flights = flights;
+  }
+
+  /**
+   * Joins DML statements into one SQL Server batch that runs them as a single transaction.
+   * The statements after the first only run if the first changed a row. With XACT_ABORT
+   * any failing statement rolls the whole transaction back. The setting belongs to the
+   * session, so the batch turns it off again for the next user of the pooled connection;
+   * a failed batch never gets there, see {@link #atomically}.
+   */
+  private static String serverBatch(String[] statements)
+  {
+    StringBuilder sb = new StringBuilder("SET XACT_ABORT ON; BEGIN TRANSACTION; ");
+    sb.append(statements[0]).append("; IF @@ROWCOUNT > 0 BEGIN ");
+    for (int i = 1; i < statements.length; i++)
+      sb.append(statements[i]).append("; ");
+    return sb.append("END; COMMIT TRANSACTION; SET XACT_ABORT OFF").toString();
+  }
+
+  private static String placeholders(int n)
+  {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < n; i++)
+      sb.append(i == 0 ? "?" : ", ?");
+    return sb.toString();
+  }
+
+  /**
+   * Leases a pooled connection, to be closed by the caller. Inside a transaction this is
+   * the transaction's connection.
+   */
+  public PooledConnection connection() throws SQLException
+  {
+    Transaction t = transactions.get();
+    return t != null ? t.connection.retain() : pool.acquire();
+  }
+
+  /** Executions and time of every statement the store ran. */
+  public StatementStats statementStats()
+  {
+    return pool.statementStats();
+  }
+
+  @Override
+  public void begin() throws SQLException
+  {
+    if (transactions.get() != null) throw new SQLException("A transaction is already open on this thread");
+
+    PooledConnection c = pool.acquire();
+    try
+    {
+      Connection conn = c.connection();
+      int isolation = conn.getTransactionIsolation();
+      conn.setAutoCommit(false);
+      conn.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+      transactions.set(new Transaction(c, isolation));
+    }
+    catch (SQLException | RuntimeException e)
+    {
+      c.close();
+      throw e;
+    }
+  }
+
+  @Override
+  public void commit() throws SQLException
+  {
+    Transaction t = openTransaction();
+    boolean committed = false;
+    try
+    {
+      t.connection.connection().commit();
+      committed = true;
+    }
+    finally
+    {
+      end(t, committed);
+    }
+  }
+
+  @Override
+  public void rollback() throws SQLException
+  {
+    end(openTransaction(), false);
+  }
+
+  private Transaction openTransaction() throws SQLException
+  {
+    Transaction t = transactions.get();
+    if (t == null) throw new SQLException("No transaction is open on this thread");
+    return t;
+  }
+
+  // Hands the connection back in auto-commit mode at its previous isolation level
+  private void end(Transaction t, boolean committed) throws SQLException
+  {
+    transactions.remove();
+    try
+    {
+      Connection conn = t.connection.connection();
+      if (!committed) conn.rollback();
+      conn.setAutoCommit(true);
+      conn.setTransactionIsolation(t.isolation);
+    }
+    finally
+    {
+      t.connection.close();
+    }
+  }
+
+  @Override
+  public FlightSnapshot flightSnapshot() throws SQLException
+  {
+    FlightSnapshot snapshot = flights;
+    if (snapshot != null) return snapshot;
+
+    List<Query.Flight> rows = new ArrayList<Query.Flight>();
+    try (PooledConnection c = connection())
+    {
+      try (ResultSet rs = c.executeQuery(c.prepare(SEARCHABLE_FLIGHTS)))
+      {
+        while (rs.next())
+          rows.add(flightFromRow(rs));
+      }
+    }
+    snapshot = FlightSnapshot.of(rows);
+    flights = snapshot;
+    return snapshot;
+  }
+
+  @Override
+  public Query.Flight flight(int fid) throws SQLException
+  {
+    try (PooledConnection c = connection())
+    {
+      PreparedStatement flightStatement = c.prepare(FLIGHT_BY_FID);
+      flightStatement.setInt(1, fid);
+      ResultSet rs = c.executeQuery(flightStatement);
+      Query.Flight f = rs.next() ? flightFromRow(rs) : null;
+      rs.close();
+      return f;
+    }
+  }
+
+  /**
+   * Fetches the flights with fixed-width IN lists, so that every pooled connection
+   * prepares a single statement for any number of fids.
+   */
+  @Override
+  public Map<Integer, Query.Flight> flights(int[] fids) throws SQLException
+  {
+    Map<Integer, Query.Flight> result = new HashMap<Integer, Query.Flight>(fids.length * 2);
+    if (fids.length == 0) return result;
+
+    try (PooledConnection c = connection())
+    {
+      for (int start = 0; start < fids.length; start += BATCH)
+      {
+        PreparedStatement flightsStatement = c.prepare(FLIGHTS_BY_FID);
+        for (int i = 0; i < BATCH; i++)
+          flightsStatement.setInt(i + 1, fids[Math.min(start + i, fids.length - 1)]);
+        ResultSet rs = c.executeQuery(flightsStatement);
+        while (rs.next())
+        {
+          Query.Flight f = flightFromRow(rs);
+          result.put(f.fid, f);
+        }
+        rs.close();
+      }
+    }
+    return result;
+  }
+
+  @Override
+  public int bookedSeats(int fid) throws SQLException
+  {
+    try (PooledConnection c = connection())
+    {
+      PreparedStatement countStatement = c.prepare(COUNT_BOOKED);
+      countStatement.setInt(1, fid);
+      countStatement.setInt(2, fid);
+      ResultSet rs = c.executeQuery(countStatement);
+      rs.next();
+      int booked = rs.getInt("cnt");
+      rs.close();
+      return booked;
+    }
+  }
+
+  @Override
+  public String password(String username) throws SQLException
+  {
+    try (PooledConnection c = connection())
+    {
+      PreparedStatement loginStatement = c.prepare(USER_LOGIN);
+      loginStatement.setString(1, username);
+      ResultSet user = c.executeQuery(loginStatement);
+
+      // The database's collation matches the name regardless of case
+      String password = user.next() ? user.getString("password") : null;
+      user.close();
+      return password;
+    }
+  }
+
+  @Override
+  public boolean createUser(String username, String password, double balance) throws SQLException
+  {
+    try (PooledConnection c = connection())
+    {
+      PreparedStatement usernameSearchStatement = c.prepare(USERNAME_SEARCH);
+      usernameSearchStatement.setString(1, username);
+      ResultSet possibleUser = c.executeQuery(usernameSearchStatement);
+      boolean exists = possibleUser.next();
+      possibleUser.close();
+      if (exists) return false;
+
+      PreparedStatement usernameInsertStatement = c.prepare(USERNAME_INSERT);
+      usernameInsertStatement.setString(1, username);
+      usernameInsertStatement.setString(2, password);
+      usernameInsertStatement.setFloat(3, (float) balance);
+      c.executeUpdate(usernameInsertStatement);
+      return true;
+    }
+  }
+
+  @Override
+  public int nextReservationId() throws SQLException
+  {
+    // Leased IDs are never given back, so blocks are leased outside any open transaction
+    try (PooledConnection c = pool.acquire())
+    {
+      return reservationIds.next(c);
+    }
+  }
+
+  @Override
+  public void insertReservation(int id, String username, int fid1, int fid2) throws SQLException
+  {
+    try (PooledConnection c = connection())
+    {
+      PreparedStatement reservationInsertStatement = c.prepare(RESERVATION_INSERT);
+      reservationInsertStatement.setInt(1, id);
+      reservationInsertStatement.setString(2, username);
+      reservationInsertStatement.setInt(3, fid1);
+      reservationInsertStatement.setInt(4, fid2);
+      c.executeUpdate(reservationInsertStatement);
+    }
+  }
+
+  @Override
+  public void insertReservations(List<Booking> bookings) throws SQLException
+  {
+    try (PooledConnection c = connection())
+    {
+      PreparedStatement reservationInsertStatement = c.prepare(RESERVATION_INSERT);
+      try
+      {
+        for (Booking b : bookings)
+        {
+          reservationInsertStatement.setInt(1, b.id);
+          reservationInsertStatement.setString(2, b.username);
+          reservationInsertStatement.setInt(3, b.fid1);
+          reservationInsertStatement.setInt(4, b.fid2);
+          reservationInsertStatement.addBatch();
+        }
+        c.executeBatch(reservationInsertStatement);
+      }
+      catch (SQLException | RuntimeException e)
+      {
+        // the statement is cached, it must not keep rows for the next batch
+        reservationInsertStatement.clearBatch();
+        throw e;
+      }
+    }
+  }
+
+  @Override
+  public List<Reservation> reservations(String username) throws SQLException
+  {
+    List<Reservation> result = new ArrayList<Reservation>();
+    try (PooledConnection c = connection())
+    {
+      PreparedStatement reservationsStatement = c.prepare(GET_RESERVATIONS);
+      reservationsStatement.setString(1, username);
+      ResultSet rs = c.executeQuery(reservationsStatement);
+      while (rs.next())
+        result.add(reservationFromRow(rs));
+      rs.close();
+    }
+    return result;
+  }
+
+  @Override
+  public Reservation reservation(String username, int id) throws SQLException
+  {
+    try (PooledConnection c = connection())
+    {
+      PreparedStatement reservationStatement = c.prepare(GET_RESERVATION);
+      reservationStatement.setString(1, username);
+      reservationStatement.setInt(2, id);
+      ResultSet rs = c.executeQuery(reservationStatement);
+      Reservation r = rs.next() ? reservationFromRow(rs) : null;
+      rs.close();
+      return r;
+    }
+  }
+
+  @Override
+  public Account account(String username, int id) throws SQLException
+  {
+    try (PooledConnection c = connection())
+    {
+      PreparedStatement accountStatement = c.prepare(GET_ACCOUNT);
+      accountStatement.setInt(1, id);
+      accountStatement.setString(2, username);
+      ResultSet rs = c.executeQuery(accountStatement);
+      if (!rs.next())
+      {
+        rs.close();
+        throw new SQLException("No such user " + username);
+      }
+      double balance = rs.getDouble("balance");
+      rs.getInt("id");
+      Reservation r = rs.wasNull() ? null : reservationFromRow(rs);
+      rs.close();
+      return new Account(balance, r);
+    }
+  }
+
+  @Override
+  public boolean pay(String username, int id, double cost) throws SQLException
+  {
+    Object[][] params = {{cost, username, cost}, {username, id}};
+    return atomically(PAY, PAY_BATCH, params);
+  }
+
+  @Override
+  public void cancel(String username, int id, double refund) throws SQLException
+  {
+    if (refund == 0)
+    {
+      try (PooledConnection c = connection())
+      {
+        PreparedStatement deleteStatement = c.prepare(DELETE_RESERVATION);
+        deleteStatement.setString(1, username);
+        deleteStatement.setInt(2, id);
+        c.executeUpdate(deleteStatement);
+      }
+      return;
+    }
+    Object[][] params = {{refund, username}, {username, id}};
+    atomically(REFUNDED_CANCEL, REFUNDED_CANCEL_BATCH, params);
+  }
+
+  /**
+   * Runs DML statements as one transaction, the statements after the first only if the
+   * first changed a row. SQL Server receives them as a single batch, in one round trip;
+   * other databases, such as H2 in the benchmarks, cannot prepare several statements at
+   * once and run them one by one in a local transaction. Inside a transaction the thread
+   * has begun they run one by one in that transaction, which a batch of its own would
+   * commit or roll back.
+   *
+   * @param batch the statements joined by {@link #serverBatch(String[])}
+   * @param params parameters of each statement
+   * @return whether the first statement changed a row
+   */
+  private boolean atomically(String[] statements, String batch, Object[][] params) throws SQLException
+  {
+    try (PooledConnection c = connection())
+    {
+      Connection conn = c.connection();
+      if (!conn.getAutoCommit())
+        return runAll(c, statements, params);
+
+      if (serverBatches(conn))
+      {
+        PreparedStatement batchStatement = c.prepare(batch);
+        int i = 1;
+        for (Object[] statementParams : params)
+          for (Object param : statementParams)
+            batchStatement.setObject(i++, param);
+        int changed = -1;
+        try
+        {
+          // Step through every statement's result so that a failure in any of them is thrown;
+          // the first update count is the first statement's
+          boolean isResultSet = c.execute(batchStatement);
+          while (true)
+          {
+            if (!isResultSet)
+            {
+              int count = batchStatement.getUpdateCount();
+              if (count == -1) break;
+              if (changed == -1) changed = count;
+            }
+            isResultSet = batchStatement.getMoreResults();
+          }
+        }
+        catch (SQLException e)
+        {
+          // XACT_ABORT ended the batch before it was turned off again
+          try
+          {
+            c.execute(c.prepare(XACT_ABORT_OFF));
+          }
+          catch (SQLException resetFailed)
+          {
+            e.addSuppressed(resetFailed);
+          }
+          throw e;
+        }
+        return changed > 0;
+      }
+
+      boolean committed = false;
+      conn.setAutoCommit(false);
+      try
+      {
+        boolean changed = runAll(c, statements, params);
+        conn.commit();
+        committed = true;
+        return changed;
+      }
+      finally
+      {
+        if (!committed) conn.rollback();
+        conn.setAutoCommit(true);
+      }
+    }
+  }
+
+  // Runs the statements one by one on the connection's open transaction, as the server batch does
+  private static boolean runAll(PooledConnection c, String[] statements, Object[][] params) throws SQLException
+  {
+    if (execute(c, statements[0], params[0]) == 0) return false;
+    for (int s = 1; s < statements.length; s++)
+      execute(c, statements[s], params[s]);
+    return true;
+  }
+
+  private static int execute(PooledConnection c, String sql, Object[] params) throws SQLException
+  {
+    PreparedStatement statement = c.prepare(sql);
+    for (int i = 0; i < params.length; i++)
+      statement.setObject(i + 1, params[i]);
+    return c.executeUpdate(statement);
+  }
+
+  private boolean serverBatches(Connection conn) throws SQLException
+  {
+    Boolean batches = serverBatches;
+    if (batches == null)
+    {
+      batches = conn.getMetaData().getDatabaseProductName().startsWith("Microsoft SQL Server");
+      serverBatches = batches;
+    }
+    return batches;
+  }
+
+  @Override
+  public void clear() throws SQLException
+  {
+    try (PooledConnection c = connection())
+    {
+      for (String sql : CLEAR)
+        c.executeUpdate(c.prepare(sql));
+      reservationIds.reset();
+    }
+  }
+
+  /** Prepares every statement on one pooled connection. */
+  @Override
+  public void warmUp() throws SQLException
+  {
+    try (PooledConnection c = connection())
+    {
+      for (String sql : STATEMENTS)
+        c.prepare(sql);
+    }
+  }
+
+  /** The pool size: operations beyond it wait for a connection. */
+  @Override
+  public int parallelism()
+  {
+    return pool.maxSize();
+  }
+
+  @Override
+  public void close()
+  {
+    pool.close();
+  }
+
+  private static Query.Flight flightFromRow(ResultSet rs) throws SQLException
+  {
+    Query.Flight f = new Query.Flight();
+    f.fid = rs.getInt("fid");
+    f.year = rs.getInt("year");
+    f.monthId = rs.getInt("month_id");
+    f.dayOfMonth = rs.getInt("day_of_month");
+    f.carrierId = rs.getString("carrier_id");
+    f.flightNum = rs.getString("flight_num");
+    f.originCity = rs.getString("origin_city");
+    f.destCity = rs.getString("dest_city");
+    f.time = rs.getDouble("actual_time");
+    f.capacity = rs.getInt("capacity");
+    f.price = rs.getDouble("price");
+    return f;
+  }
+
+  private static Reservation reservationFromRow(ResultSet rs) throws SQLException
+  {
+    return new Reservation(rs.getInt("id"), rs.getInt("fid1"), rs.getInt("fid2"), rs.getBoolean("paid"),
+                           rs.getInt("month_id"), rs.getInt("day_of_month"));
+  }
+
+  private static final class Transaction
+  {
+    final PooledConnection connection;
+    // Isolation level to restore when the transaction ends
+    final int isolation;
+
+    Transaction(PooledConnection connection, int isolation)
+    {
+      this.connection = connection;
+      this.isolation = isolation;
+    }
+  }
+}
@@ -0,0 +1,104 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of durations in nanoseconds.
+ *
+ * Every power of two is split into {@value #SUB_BUCKETS} equal buckets, so a recorded
+ * value is known to within 1/{@value #SUB_BUCKETS} of itself at any magnitude with a
+ * fixed 512 counters. Recording is one array increment plus two adders and never blocks;
+ * reads run concurrently with recording and see a close, not an exact, snapshot.
+ */
+public class LatencyHistogram
+{
+  private static final int SUB_BITS = 3;
+  private static final int SUB_BUCKETS = 1 << SUB_BITS;
+  private static final int BUCKETS = 64 * SUB_BUCKETS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final LongAdder count = new LongAdder();
+  private final LongAdder sum = new LongAdder();
+  private final AtomicLong max = new AtomicLong();
+
+  /** Records one duration; negative durations count as 0. */
+  public void record(long nanos)
+  {
+    if (nanos < 0) nanos = 0;
+    counts.incrementAndGet(bucket(nanos));
+    count.increment();
+    sum.add(nanos);
+
+    long m = max.get();
+    while (nanos > m && !max.compareAndSet(m, nanos))
+      m = max.get();
+  }
+
+  // Values below SUB_BUCKETS have a bucket each; above, the top SUB_BITS + 1 bits pick it
+  static int bucket(long value)
+  {
+    if (value < SUB_BUCKETS) return (int) value;
+    int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+    return SUB_BUCKETS + shift * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+  }
+
+  // Largest value that falls in the bucket
+  static long upperBound(int bucket)
+  {
+    if (bucket < SUB_BUCKETS) return bucket;
+    int shift = (bucket - SUB_BUCKETS) / SUB_BUCKETS;
+    long sub = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+    long bound = ((SUB_BUCKETS + sub + 1) << shift) - 1;
+    return bound < 0 ? Long.MAX_VALUE : bound;
+  }
+
+  public long count()
+  {
+    return count.sum();
+  }
+
+  /** Mean duration in nanoseconds, 0 if nothing was recorded. */
+  public double mean()
+  {
+    long n = count.sum();
+    return n == 0 ? 0 : (double) sum.sum() / n;
+  }
+
+  /** Sum of every recorded duration in nanoseconds. */
+  public long total()
+  {
+    return sum.sum();
+  }
+
+  public long max()
+  {
+    return max.get();
+  }
+
+  /**
+   * Returns a duration in nanoseconds that at least {@code fraction} of the recorded
+   * durations do not exceed, rounded up to its bucket; 0 if nothing was recorded.
+   *
+   * @param fraction between 0 and 1, e.g. 0.99 for the 99th percentile
+   */
+  public long percentile(double fraction)
+  {
+    long[] snapshot = new long[BUCKETS];
+    long n = 0;
+    for (int i = 0; i < BUCKETS; i++)
+    {
+      snapshot[i] = counts.get(i);
+      n += snapshot[i];
+    }
+    if (n == 0) return 0;
+
+    long rank = Math.max(1, (long) Math.ceil(fraction * n));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++)
+    {
+      seen += snapshot[i];
+      if (seen >= rank) return Math.min(upperBound(i), max.get());
+    }
+    return max.get();
+  }
+}
@@ -0,0 +1,129 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded, thread-safe map that evicts its least recently used entries.
+ *
+ * Keys are spread over independently locked segments, each an access-ordered
+ * {@link LinkedHashMap} holding its share of the capacity, so concurrent sessions
+ * rarely contend on the same lock. Recency is tracked per segment, which makes
+ * eviction approximately LRU over the whole cache.
+ */
+public class LruCache<K, V>
+{
+  private final Segment<K, V>[] segments;
+  private final int mask;
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+
+  /**
+   * @param capacity maximum number of entries
+   * @param concurrency minimum number of segments, rounded up to a power of two
+   */
+  @SuppressWarnings("unchecked")
+  public LruCache(int capacity, int concurrency)
+  {
+    int n = Integer.highestOneBit(Math.max(1, concurrency - 1)) << 1;
+    int perSegment = Math.max(1, (capacity + n - 1) / n);
+    segments = (Segment<K, V>[]) new Segment<?, ?>[n];
+    for (int i = 0; i < n; i++)
+      segments[i] = new Segment<K, V>(perSegment);
+    mask = n - 1;
+  }
+
+  private Segment<K, V> segmentFor(Object key)
+  {
+    int h = key.hashCode();
+    h ^= (h >>> 16);
+    return segments[h & mask];
+  }
+
+  /** Returns the cached value, or null on a miss. */
+  public V get(K key)
+  {
+    Segment<K, V> segment = segmentFor(key);
+    V value;
+    synchronized (segment)
+    {
+      value = segment.get(key);
+    }
+    if (value == null)
+      misses.increment();
+    else
+      hits.increment();
+    return value;
+  }
+
+  public void put(K key, V value)
+  {
+    Segment<K, V> segment = segmentFor(key);
+    synchronized (segment)
+    {
+      segment.put(key, value);
+    }
+  }
+
+  public void invalidate(K key)
+  {
+    Segment<K, V> segment = segmentFor(key);
+    synchronized (segment)
+    {
+      segment.remove(key);
+    }
+  }
+
+  public void clear()
+  {
+    for (Segment<K, V> segment : segments)
+    {
+      synchronized (segment)
+      {
+        segment.clear();
+      }
+    }
+  }
+
+  /** Number of entries currently cached. */
+  public int size()
+  {
+    int size = 0;
+    for (Segment<K, V> segment : segments)
+    {
+      synchronized (segment)
+      {
+        size += segment.size();
+      }
+    }
+    return size;
+  }
+
+  public long hits()
+  {
+    return hits.sum();
+  }
+
+  public long misses()
+  {
+    return misses.sum();
+  }
+
+  private static final class Segment<K, V> extends LinkedHashMap<K, V>
+  {
+    private static final long serialVersionUID = 1L;
+
+    private final int capacity;
+
+    Segment(int capacity)
+    {
+      super(16, 0.75f, true);
+      this.capacity = capacity;
+    }
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<K, V> eldest)
+    {
+      return size() > capacity;
+    }
+  }
+}
@@ -0,0 +1,300 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * A {@link FlightStore} held entirely in this process, for single-node deployments and
+ * local testing.
+ *
+ * Flights are kept column by column in a {@link FlightSnapshot}, either encoded on the
+ * heap or memory mapped from a snapshot file. Users and reservations live in concurrent
+ * maps and are lost when the process stops; reservation IDs start again from 1.
+ */
+public class MemoryFlightStore implements FlightStore
+{
+  private final FlightSnapshot flights;
+
+  // Reservations holding a seat on each flight, by snapshot row
+  private final AtomicIntegerArray booked;
+
+  // Users by lower-cased username, so that names are unique regardless of case
+  private final ConcurrentHashMap<String, User> users = new ConcurrentHashMap<String, User>();
+
+  // Reservations of each user by ID, by lower-cased username
+  private final ConcurrentHashMap<String, ConcurrentSkipListMap<Integer, Reservation>> reservations =
+    new ConcurrentHashMap<String, ConcurrentSkipListMap<Integer, Reservation>>();
+
+  private final AtomicInteger lastReservationId = new AtomicInteger();
+
+  /**
+   * @param flights the searchable flights
+   */
+  public MemoryFlightStore(FlightSnapshot flights)
+  {
+    this.flights = flights;
+    this.booked = new AtomicIntegerArray(flights.rows());
+  }
+
+  /**
+   * @param flights the Flights table; only searchable flights (with an actual_time) belong here
+   */
+  public MemoryFlightStore(Collection<Query.Flight> flights)
+  {
+    this(FlightSnapshot.of(flights));
+  }
+
+  /** Serves the searchable flights of {@code source}; users and reservations start empty. */
+  public static MemoryFlightStore copyOf(FlightStore source) throws SQLException
+  {
+    return new MemoryFlightStore(source.flightSnapshot());
+  }
+
+  @Override
+  public FlightSnapshot flightSnapshot()
+  {
+    return flights;
+  }
+
+  @Override
+  public Query.Flight flight(int fid)
+  {
+    int row = flights.row(fid);
+    return row < 0 ? null : flights.flight(row);
+  }
+
+  @Override
+  public Map<Integer, Query.Flight> flights(int[] fids)
+  {
+    Map<Integer, Query.Flight> result = new HashMap<Integer, Query.Flight>(fids.length * 2);
+    for (int fid : fids)
+    {
+      int row = flights.row(fid);
+      if (row >= 0) result.put(fid, flights.flight(row));
+    }
+    return result;
+  }
+
+  @Override
+  public int bookedSeats(int fid)
+  {
+    int row = flights.row(fid);
+    return row < 0 ? 0 : booked.get(row);
+  }
+
+  @Override
+  public String password(String username)
+  {
+    User user = users.get(key(username));
+    return user != null ? user.password : null;
+  }
+
+  @Override
+  public boolean createUser(String username, String password, double balance)
+  {
+    // Users.balance receives the amount as a single precision float
+    return users.putIfAbsent(key(username), new User(password, (float) balance)) == null;
+  }
+
+  private User user(String username) throws SQLException
+  {
+    User user = users.get(key(username));
+    if (user == null) throw new SQLException("No such user " + username);
+    return user;
+  }
+
+  private static String key(String username)
+  {
+    return username.toLowerCase(Locale.ROOT);
+  }
+
+  @Override
+  public int nextReservationId()
+  {
+    return lastReservationId.incrementAndGet();
+  }
+
+  @Override
+  public void insertReservation(int id, String username, int fid1, int fid2) throws SQLException
+  {
+    int row1 = flights.row(fid1);
+    int row2 = fid2 == -1 ? -1 : flights.row(fid2);
+    if (row1 < 0 || (fid2 != -1 && row2 < 0))
+      throw new SQLException("No such flight in reservation " + id);
+
+    ConcurrentSkipListMap<Integer, Reservation> userReservations = reservations.get(key(username));
+    if (userReservations == null)
+    {
+      userReservations = new ConcurrentSkipListMap<Integer, Reservation>();
+      ConcurrentSkipListMap<Integer, Reservation> prev = reservations.putIfAbsent(key(username), userReservations);
+      if (prev != null) userReservations = prev;
+    }
+    Reservation r = new Reservation(id, fid1, fid2, false, flights.monthId(row1), flights.dayOfMonth(row1));
+    if (userReservations.putIfAbsent(id, r) != null)
+      throw new SQLException("Duplicate reservation ID " + id);
+
+    booked.incrementAndGet(row1);
+    if (row2 >= 0) booked.incrementAndGet(row2);
+  }
+
+  /**
+   * Inserts the reservations one by one. If one cannot be inserted, those before it are
+   * removed again, so that the batch is inserted as a whole or not at all, as it is in a
+   * database transaction.
+   */
+  @Override
+  public void insertReservations(List<Booking> bookings) throws SQLException
+  {
+    int inserted = 0;
+    try
+    {
+      for (Booking b : bookings)
+      {
+        insertReservation(b.id, b.username, b.fid1, b.fid2);
+        inserted++;
+      }
+    }
+    finally
+    {
+      if (inserted < bookings.size())
+      {
+        for (int i = inserted - 1; i >= 0; i--)
+          removeReservation(bookings.get(i));
+      }
+    }
+  }
+
+  // Undoes insertReservation
+  private void removeReservation(Booking b)
+  {
+    ConcurrentSkipListMap<Integer, Reservation> userReservations = reservations.get(key(b.username));
+    if (userReservations == null || userReservations.remove(b.id) == null) return;
+
+    booked.decrementAndGet(flights.row(b.fid1));
+    if (b.fid2 != -1) booked.decrementAndGet(flights.row(b.fid2));
+  }
+
+  @Override
+  public List<Reservation> reservations(String username)
+  {
+    ConcurrentSkipListMap<Integer, Reservation> userReservations = reservations.get(key(username));
+    if (userReservations == null) return new ArrayList<Reservation>();
+    return new ArrayList<Reservation>(userReservations.values());
+  }
+
+  @Override
+  public Reservation reservation(String username, int id)
+  {
+    ConcurrentSkipListMap<Integer, Reservation> userReservations = reservations.get(key(username));
+    return userReservations == null ? null : userReservations.get(id);
+  }
+
+  @Override
+  public Account account(String username, int id) throws SQLException
+  {
+    User user = user(username);
+    synchronized (user)
+    {
+      return new Account(user.balance, reservation(username, id));
+    }
+  }
+
+  @Override
+  public boolean pay(String username, int id, double cost) throws SQLException
+  {
+    User user = user(username);
+    synchronized (user)
+    {
+      ConcurrentSkipListMap<Integer, Reservation> userReservations = reservations.get(key(username));
+      Reservation r = userReservations == null ? null : userReservations.get(id);
+      if (r == null) throw new SQLException("No such reservation " + id);
+      if (user.balance < cost) return false;
+      userReservations.put(id, new Reservation(r.id, r.fid1, r.fid2, true, r.monthId, r.dayOfMonth));
+      user.balance -= cost;
+      return true;
+    }
+  }
+
+  @Override
+  public void cancel(String username, int id, double refund) throws SQLException
+  {
+    User user = user(username);
+    synchronized (user)
+    {
+      ConcurrentSkipListMap<Integer, Reservation> userReservations = reservations.get(key(username));
+      Reservation r = userReservations == null ? null : userReservations.remove(id);
+      if (r == null) throw new SQLException("No such reservation " + id);
+      user.balance += refund;
+
+      booked.decrementAndGet(flights.row(r.fid1));
+      if (r.fid2 != -1) booked.decrementAndGet(flights.row(r.fid2));
+    }
+  }
+
+  /**
+   * Operations are not undone by a rollback. Sessions already run each change under the
+   * user's and flights' locks, and nothing here fails halfway for reasons a retry could fix;
+   * the one operation of several rows, {@link #insertReservations}, undoes itself.
+   */
+  @Override
+  public void begin()
+  {
+  }
+
+  @Override
+  public void commit()
+  {
+  }
+
+  @Override
+  public void rollback()
+  {
+  }
+
+  @Override
+  public void clear()
+  {
+    users.clear();
+    reservations.clear();
+    for (int row = 0; row < booked.length(); row++)
+      booked.set(row, 0);
+    lastReservationId.set(0);
+  }
+
+  @Override
+  public void warmUp()
+  {
+  }
+
+  /** Operations only use the CPU, so as many as there are processors. */
+  @Override
+  public int parallelism()
+  {
+    return Runtime.getRuntime().availableProcessors();
+  }
+
+  @Override
+  public void close()
+  {
+  }
+
+  private static final class User
+  {
+    final String password;
+    // guarded by this
+    double balance;
+
+    User(String password, double balance)
+    {
+      this.password = password;
+      this.balance = balance;
+    }
+  }
+}
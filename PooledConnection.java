@@ -0,0 +1,164 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * A connection leased from a {@link ConnectionPool}, with its own cache of prepared
+ * statements keyed by SQL text. Statements are run through its {@code execute*} methods,
+ * which count them in the pool's {@link StatementStats}.
+ *
+ * A lease is used by one session at a time. {@link #close()} hands the connection back
+ * to the pool once every holder has closed it, so the same lease can be pinned across
+ * several calls, e.g. for the length of a transaction.
+ */
+public class PooledConnection implements AutoCloseable
+{
+  private final ConnectionPool pool;
+  private final Connection conn;
+  private final Map<String, PreparedStatement> statements = new HashMap<String, PreparedStatement>();
+  // Execution times of each cached statement
+  private final Map<PreparedStatement, LatencyHistogram> histograms = new IdentityHashMap<PreparedStatement, LatencyHistogram>();
+  private int holds;
+
+  PooledConnection(ConnectionPool pool, Connection conn)
+  {
+    this.pool = pool;
+    this.conn = conn;
+  }
+
+  public Connection connection()
+  {
+    return conn;
+  }
+
+  /**
+   * Returns the cached statement for {@code sql}, preparing it on first use on this
+   * connection. Parameters left over from the previous use are cleared.
+   */
+  public PreparedStatement prepare(String sql) throws SQLException
+  {
+    PreparedStatement statement = statements.get(sql);
+    if (statement == null)
+    {
+      statement = conn.prepareStatement(sql);
+      statements.put(sql, statement);
+      histograms.put(statement, pool.statementStats().histogram(sql));
+    }
+    else
+      statement.clearParameters();
+    return statement;
+  }
+
+  /** Runs the query of a statement from {@link #prepare}, timing it. */
+  public ResultSet executeQuery(PreparedStatement statement) throws SQLException
+  {
+    long start = System.nanoTime();
+    try
+    {
+      return statement.executeQuery();
+    }
+    finally
+    {
+      record(statement, start);
+    }
+  }
+
+  /** Runs the update of a statement from {@link #prepare}, timing it. */
+  public int executeUpdate(PreparedStatement statement) throws SQLException
+  {
+    long start = System.nanoTime();
+    try
+    {
+      return statement.executeUpdate();
+    }
+    finally
+    {
+      record(statement, start);
+    }
+  }
+
+  /** Runs the batch of a statement from {@link #prepare}, timing it. */
+  public int[] executeBatch(PreparedStatement statement) throws SQLException
+  {
+    long start = System.nanoTime();
+    try
+    {
+      return statement.executeBatch();
+    }
+    finally
+    {
+      record(statement, start);
+    }
+  }
+
+  /** Runs a statement from {@link #prepare} that may return several results, timing it. */
+  public boolean execute(PreparedStatement statement) throws SQLException
+  {
+    long start = System.nanoTime();
+    try
+    {
+      return statement.execute();
+    }
+    finally
+    {
+      record(statement, start);
+    }
+  }
+
+  private void record(PreparedStatement statement, long start)
+  {
+    LatencyHistogram histogram = histograms.get(statement);
+    if (histogram != null) histogram.record(System.nanoTime() - start);
+  }
+
+  /** Adds a holder, each call must be matched by a {@link #close()}. */
+  PooledConnection retain()
+  {
+    holds++;
+    return this;
+  }
+
+  @Override
+  public void close()
+  {
+    if (--holds == 0)
+      pool.release(this);
+  }
+
+  /**
+   * Gets the connection ready for its next lease.
+   *
+   * @return false if the connection is broken and should be discarded
+   */
+  boolean reset()
+  {
+    try
+    {
+      if (!conn.getAutoCommit())
+      {
+        conn.rollback();
+        conn.setAutoCommit(true);
+      }
+      return !conn.isClosed();
+    }
+    catch (SQLException e)
+    {
+      return false;
+    }
+  }
+
+  void closeQuietly()
+  {
+    for (PreparedStatement statement : statements.values())
+    {
+      try { statement.close(); } catch (SQLException e) { /* closing anyway */ }
+    }
+    statements.clear();
+    histograms.clear();
+    try { conn.close(); } catch (SQLException e) { /* closing anyway */ }
+  }
+}
@@ -1,32 +1,27 @@
-import java.io.FileInputStream;
-import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Statement;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
-import java.util.Properties;
+import java.util.Optional;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Runs queries against a back-end database
+ *
+ * A Query is one user's session. State shared between sessions (the data store, flight
+ * index, locks, counters) lives in a {@link QueryEngine}; transactions read and write
+ * users and reservations through its {@link FlightStore}.
  */
 public class Query
 {
   private String configFilename;
-  private Properties configProps = new Properties();
 
-  private String jSQLDriver;
-  private String jSQLUrl;
-  private String jSQLUser;
-  private String jSQLPassword;
-
-  // DB Connection
-  private Connection conn;
+  // Shared engine this session runs on
+  private QueryEngine engine;
 
   // Logged In User
   private String username = null; // customer username is unique
@@ -35,77 +30,19 @@ public class Query
   
   // Holds itineraries for most recent search
   private List<Itinerary> searchedItineraries = new ArrayList<Itinerary>();
-
-  // Canned queries
-
-  private static final String CHECK_FLIGHT_CAPACITY = "SELECT capacity FROM Flights WHERE fid = ?";
-  private PreparedStatement checkFlightCapacityStatement;
-
-  // transactions
-  private static final String BEGIN_TRANSACTION_SQL = "SET TRANSACTION ISOLATION LEVEL SERIALIZABLE; BEGIN TRANSACTION;";
-  private PreparedStatement beginTransactionStatement;
-
-  private static final String COMMIT_SQL = "COMMIT TRANSACTION";
-  private PreparedStatement commitTransactionStatement;
-
-  private static final String ROLLBACK_SQL = "ROLLBACK TRANSACTION";
-  private PreparedStatement rollbackTransactionStatement;
-  
-  // My prepared statements
-  
-  private static final String FLIGHT_SEARCH =
-  "SELECT TOP (?) fid, year, carrier_id, flight_num, actual_time, capacity, price "
-		  + "FROM Flights WITH (TABLOCKX) "
-		  + "WHERE origin_city = ? AND dest_city = ? AND day_of_month = ? AND actual_time IS NOT NULL "
-		  + "ORDER BY actual_time, fid ASC";
-  private PreparedStatement flightSearchStatement;
-  
-  private static final String FLIGHT_SEARCH_2 =
-  "SELECT TOP (?) f.fid AS fid1, f2.fid AS fid2, f.year AS year1, f2.year AS year2, f.carrier_id AS cid1, f2.carrier_id AS cid2, "
-  + "f.flight_num AS flight_num1, f2.flight_num AS flight_num2, f.dest_city AS middle_city, f.actual_time AS time1, f2.actual_time AS time2, " 
-  + "f.capacity AS capacity1, f2.capacity AS capacity2, f.price AS price1, f2.price AS price2 "
-  + "FROM Flights f, Flights f2 WITH (TABLOCKX) "
-  + "WHERE f.origin_city = ? AND f.dest_city = f2.origin_city AND f2.dest_city = ? AND f.day_of_month = ? AND f2.day_of_month = ? AND f.actual_time IS NOT NULL AND f2.actual_time IS NOT NULL "
-  + "ORDER BY (f.actual_time + f2.actual_time), f.fid, f2.fid ASC";
   
-  private PreparedStatement flightSearch2Statement;
+  // Reused to decode each command of this session
+  private final CommandDecoder decoder = new CommandDecoder();
   
-  private static final String USERNAME_SEARCH = "SELECT u.username FROM Users AS u WITH (TABLOCKX) WHERE ? = u.username";
-  private PreparedStatement usernameSearchStatement;
+  // Reused to render each response; dropped if one huge response grew it past RESPONSE_BUFFER_LIMIT
+  private StringBuilder response = new StringBuilder(4096);
+  private static final int RESPONSE_BUFFER_LIMIT = 1 << 16;
   
-  private static final String USERNAME_INSERT = "INSERT INTO Users WITH (TABLOCKX) (username, password, balance) VALUES (?, ?, ?) ";
-  private PreparedStatement usernameInsertStatement;
-  
-  private static final String RESERVATION_INSERT = "INSERT INTO Reservations (id, username, fid1, fid2, paid)"
-			+ " VALUES (?, ?, ?, ?, ?)";
-  private PreparedStatement reservationInsertStatement;
-  
-  private static final String RESERVATION_CHECK_SAME_DAY = "SELECT fid1, fid2 FROM Reservations WITH (TABLOCKX) "
-  														 + " WHERE username = ?";
-  private PreparedStatement reservationSameDayCheck;
-  
-  private static final String GET_RESERVATION_FLIGHT_NUMS = "SELECT fid1, fid2, id, paid FROM Reservations WITH (TABLOCKX) WHERE username = ?";
-  private PreparedStatement reservationFlightNumsStatement;
-  
-  private static final String RESERVATION_EXISTS = "SELECT fid1, fid2, paid FROM Reservations WITH (TABLOCKX) WHERE username = ? AND id = ?";
-  private PreparedStatement reservationExists;
-  
-  private static final String FLIGHT_PRICE = "SELECT price FROM Flights WITH (TABLOCKX) WHERE fid = ?";
-  private PreparedStatement flightPrice;
-  
-  private static final String REFUND = "UPDATE Users WITH (TABLOCKX) SET balance = (balance + ?) WHERE username = ?";
-  private PreparedStatement refundStatement;
-  
-  private static final String DELETE_RESERVATION = "DELETE FROM RESERVATIONS WITH (TABLOCKX) WHERE id = ?";
-  private PreparedStatement deleteReservationStatement;
-  
-  private static final String GET_BALANCE = "SELECT balance FROM Users WITH (TABLOCKX) WHERE username = ?";
-  private PreparedStatement getBalanceStatement;
-  
-  private static final String PAY = "UPDATE Users WITH (TABLOCKX) SET balance = (balance - ?) WHERE username = ?";
-  private PreparedStatement payStatement;
+  // Canned queries
 
-  class Flight
+  private static final String CHECK_FLIGHT_CAPACITY = "SELECT capacity FROM Flights WHERE fid = ?";
+
+  static class Flight
   {
     public int fid;
     public int year;
@@ -122,16 +59,22 @@ public class Query
     @Override
     public String toString()
     {
-      return "ID: " + fid + " Date: " + year + "-" + monthId + "-" + dayOfMonth + " Carrier: " + carrierId +
-              " Number: " + flightNum + " Origin: " + originCity + " Dest: " + destCity + " Duration: " + time +
-              " Capacity: " + capacity + " Price: " + price;
+      return ItineraryFormatter.appendFlight(new StringBuilder(128), this).toString();
     }
   }
   
   // Holds 1 to 2 flights. If one hop then 1 flight and null, if two hop then two flights
-  class Itinerary {
+  static class Itinerary {
 	  public Flight f1;
 	  public Flight f2;
+	  // Every flight of a route of more than two flights, else null
+	  public Flight[] legs;
+	  
+	  public Itinerary(Flight[] legs) {
+		  this.f1 = legs[0];
+		  this.f2 = legs.length > 1 ? legs[1] : null;
+		  this.legs = legs.length > 2 ? legs : null;
+	  }
 	  
 	  public Itinerary(Flight f1, Flight f2) {
 		  this.f1 = f1;
@@ -149,7 +92,7 @@ public class Query
 	  }
   }
   
-  class Pair {
+  static class Pair {
 	  
 	  public int id;
 	  public boolean paid;
@@ -160,40 +103,36 @@ public class Query
 	  }
   }
 
+  /**
+   * Creates a session that opens (or joins) the engine for {@code configFilename} in
+   * {@link #openConnection()}. Sessions opened on the same file in one JVM share an engine.
+   */
   public Query(String configFilename)
   {
     this.configFilename = configFilename;
   }
 
+  /**
+   * Creates a session on an already open engine.
+   *
+   * @see QueryEngine#newSession()
+   */
+  Query(QueryEngine engine)
+  {
+    this.engine = engine;
+  }
+
   /* Connection code to SQL Azure.  */
   public void openConnection() throws Exception
   {
-    configProps.load(new FileInputStream(configFilename));
-
-    jSQLDriver = configProps.getProperty("flightservice.jdbc_driver");
-    jSQLUrl = configProps.getProperty("flightservice.url");
-    jSQLUser = configProps.getProperty("flightservice.sqlazure_username");
-    jSQLPassword = configProps.getProperty("flightservice.sqlazure_password");
-
-		/* load jdbc drivers */
-    Class.forName(jSQLDriver).newInstance();
-
-		/* open connections to the flights database */
-    conn = DriverManager.getConnection(jSQLUrl, // database
-            jSQLUser, // user
-            jSQLPassword); // password
-
-    conn.setAutoCommit(true); //by default automatically commit after each statement
-
-		/* You will also want to appropriately set the transaction's isolation level through:
-		   conn.setTransactionIsolation(...)
-		   See Connection class' JavaDoc for details.
-		 */
+    if (configFilename != null)
+      engine = QueryEngine.acquireShared(configFilename);
   }
 
   public void closeConnection() throws Exception
   {
-    conn.close();
+    if (configFilename != null)
+      QueryEngine.releaseShared(engine);
   }
 
   /**
@@ -203,55 +142,43 @@ public class Query
    */
   public void clearTables ()
   {
-	  String clearTables = "DELETE FROM Users \n"
-	  					 + "DELETE FROM Reservations \n"
-	  					 + "DELETE FROM ResID";
-	  
       try {
-    	  
-	    	Statement clearStatement = conn.createStatement();
-			clearStatement.executeUpdate(clearTables);
-			
-			resetResID();
-			
+    	  engine.clearTables();
       } catch (SQLException e) {e.printStackTrace();}
   }
-  
-  private void resetResID() {
-	  try {
-		  Statement resetStatement = conn.createStatement();
-		  resetStatement.executeUpdate("DELETE FROM ResID");
-		  resetStatement.executeUpdate("INSERT INTO ResID (currID) VALUES (0)");
-	  } catch (SQLException e) {e.printStackTrace();}
-  }
 
 	/**
    * prepare all the SQL statements in this method.
    * "preparing" a statement is almost like compiling it.
    * Note that the parameters (with ?) are still not filled in
+   *
+   * Statements are prepared by the engine's store, which caches them per pooled connection.
    */
   public void prepareStatements() throws Exception
   {
-    beginTransactionStatement = conn.prepareStatement(BEGIN_TRANSACTION_SQL);
-    commitTransactionStatement = conn.prepareStatement(COMMIT_SQL);
-    rollbackTransactionStatement = conn.prepareStatement(ROLLBACK_SQL);
-
-    checkFlightCapacityStatement = conn.prepareStatement(CHECK_FLIGHT_CAPACITY);
-
-    /* add here more prepare statements for all the other queries you need */
-	flightSearchStatement  = conn.prepareStatement(FLIGHT_SEARCH);
-	flightSearch2Statement = conn.prepareStatement(FLIGHT_SEARCH_2);
-	usernameSearchStatement = conn.prepareStatement(USERNAME_SEARCH);
-	usernameInsertStatement = conn.prepareStatement(USERNAME_INSERT);
-	reservationInsertStatement = conn.prepareStatement(RESERVATION_INSERT);
-	reservationSameDayCheck = conn.prepareStatement(RESERVATION_CHECK_SAME_DAY);
-	reservationFlightNumsStatement = conn.prepareStatement(GET_RESERVATION_FLIGHT_NUMS);
-	reservationExists = conn.prepareStatement(RESERVATION_EXISTS);
-	flightPrice = conn.prepareStatement(FLIGHT_PRICE);
-	refundStatement = conn.prepareStatement(REFUND);
-	deleteReservationStatement = conn.prepareStatement(DELETE_RESERVATION);
-	getBalanceStatement = conn.prepareStatement(GET_BALANCE);
-	payStatement = conn.prepareStatement(PAY);
+    engine.store().warmUp();
+  }
+  
+  // Decoder of this session's command lines
+  CommandDecoder decoder() {
+	  return decoder;
+  }
+  
+  // Engine this session runs on
+  QueryEngine engine() {
+	  return engine;
+  }
+  
+  // The session's response buffer, emptied for a new response
+  private StringBuilder responseBuffer() {
+	  if (response.capacity() > RESPONSE_BUFFER_LIMIT) response = new StringBuilder(4096);
+	  response.setLength(0);
+	  return response;
+  }
+  
+  // The connection of this thread's open transaction, otherwise a fresh lease from the JDBC store's pool
+  private PooledConnection connection() throws SQLException {
+	  return engine.connection();
   }
 
   /**
@@ -269,29 +196,37 @@ public class Query
   {
 	  if (loggedIn) return "User already logged in\n";
 	  
-	  String checkIfUserExists = "SELECT username, password FROM Users";
-	  
 	  try {
-		  Statement searchStatement = conn.createStatement();
-		  ResultSet currUsernames = searchStatement.executeQuery(checkIfUserExists);
+		  Optional<String> storedPassword = engine.credentials().get(QueryEngine.userKey(username));
+		  if (storedPassword == null) storedPassword = loadCredentials(username);
 		  
-		  while (currUsernames.next()) {
-			  String currUsername = currUsernames.getString("username");
-			  String currPassword = currUsernames.getString("password");
-			  if (currUsername.equals(username)) {
-				  if (currPassword.equals(password)) {
-					  this.username = currUsername;
-					  loggedIn = true;
-					  return "Logged in as " + this.username + "\n";
-				  }
-			  }
+		  if (storedPassword.isPresent() && storedPassword.get().equals(password)) {
+			  this.username = username;
+			  loggedIn = true;
+			  return "Logged in as " + this.username + "\n";
 		  }
-		  currUsernames.close();
-	} catch (SQLException e) {e.printStackTrace();}  
+	  } catch (SQLException e) {e.printStackTrace();}  
 	  	  
 	  return "Login failed\n";
   }
 
+  // Reads the password of username from the store and caches it. Empty if there is no such user.
+  private Optional<String> loadCredentials(String username) throws SQLException {
+	  String key = QueryEngine.userKey(username);
+	  
+	  // Under the user's lock a concurrent create cannot slip between our read and our cache fill
+	  ReentrantLock userLock = engine.userLocks().lock(key);
+	  try {
+		  Optional<String> storedPassword = engine.credentials().get(key);
+		  if (storedPassword != null) return storedPassword;
+		  
+		  storedPassword = Optional.ofNullable(engine.store().password(username));
+		  
+		  engine.credentials().put(key, storedPassword);
+		  return storedPassword;
+	  } finally { userLock.unlock(); }
+  }
+
   /**
    * Implement the create user function.
    *
@@ -307,30 +242,19 @@ public class Query
 	String success = "Created user " + username + "\n";
 	
 	if (initAmount < 0) return failed;
-	if (username.length() > 20 || password.length() > 20) {
-		System.out.println("BAD LENGTH\n");
-		return failed;
-	}
+	if (username.length() > 20 || password.length() > 20) return failed;
 	
+	// Check and insert under the username's lock so two sessions cannot create the same user
+	ReentrantLock userLock = engine.userLocks().lock(QueryEngine.userKey(username));
 	try {
-		usernameSearchStatement.setString(1, username);
-		ResultSet possibleUser = usernameSearchStatement.executeQuery();
-		
-		if (possibleUser.next()) { 
-			return failed;
-		}
+		if (!engine.store().createUser(username, password, initAmount)) return failed;
 		
-		possibleUser.close();
-		
-		usernameInsertStatement.setString(1, username);
-		usernameInsertStatement.setString(2, password);
-		usernameInsertStatement.setFloat(3, (float) initAmount);
-
-		usernameInsertStatement.executeUpdate();
+		engine.credentials().invalidate(QueryEngine.userKey(username));
 		
 		return success;
 		
 	} catch (SQLException e) {e.printStackTrace();}
+	finally { userLock.unlock(); }
 	
 	return failed;
   }
@@ -369,6 +293,19 @@ public class Query
    */
   public String transaction_search(String originCity, String destinationCity, boolean directFlight, int dayOfMonth,
                                    int numberOfItineraries)
+  {
+      return transaction_search(originCity, destinationCity, directFlight, dayOfMonth, numberOfItineraries, false);
+  }
+
+  /**
+   * Searches as transaction_search does, but ranks by fare instead of flight time when
+   * {@code cheapest} is true: direct flights by price, then two-hop flights by the sum
+   * of their prices.
+   *
+   * @return the same format as transaction_search
+   */
+  public String transaction_search(String originCity, String destinationCity, boolean directFlight, int dayOfMonth,
+                                   int numberOfItineraries, boolean cheapest)
   {
 	  // Clear the previous itinerary search
 	  searchedItineraries.clear();
@@ -376,7 +313,69 @@ public class Query
 	  // Helps for case where they search, then login, then try to book
 	  wasLoggedInWhenSearched = loggedIn;
 	  
-      return transaction_search_safe(originCity, destinationCity, directFlight, dayOfMonth, numberOfItineraries);
+      return transaction_search_safe(originCity, destinationCity, directFlight, dayOfMonth, numberOfItineraries, cheapest);
+  }
+
+  /**
+   * Searches for flights on every day from firstDay to lastDay, as transaction_search
+   * does for one day, and returns the best numberOfItineraries of them all: direct
+   * flights first, then one-stop flights by total time.
+   *
+   * @param monthId month of the flights, or FlightIndex.ANY for the same days of any month
+   * @param year year of the flights, or FlightIndex.ANY
+   *
+   * @return the same format as transaction_search
+   */
+  public String transaction_searchRange(String originCity, String destinationCity, boolean directFlight, int firstDay,
+                                        int lastDay, int numberOfItineraries, int monthId, int year)
+  {
+	  searchedItineraries.clear();
+	  wasLoggedInWhenSearched = loggedIn;
+	  
+	  try {
+		  List<Itinerary> itineraries = engine.rangeSearch().search(engine.flightIndex(), originCity, destinationCity, directFlight,
+		                                                            year, monthId, firstDay, lastDay, numberOfItineraries);
+		  if (itineraries.isEmpty()) return "No flights match your selection\n";
+		  
+		  searchedItineraries.addAll(itineraries);
+		  StringBuilder sb = responseBuffer();
+		  for (int i = 0; i < itineraries.size(); i++) {
+			  ItineraryFormatter.appendSearchItinerary(sb, i, itineraries.get(i).f1, itineraries.get(i).f2);
+		  }
+		  return sb.toString();
+	} catch (SQLException e) {e.printStackTrace();}
+	
+	return "Failed to search\n";
+  }
+
+  /**
+   * Finds the fastest routes of at most maxLegs flights, all on dayOfMonth, charging the
+   * engine's minimum connection time for every change of plane. Routes of one or two
+   * flights can be booked like search results.
+   *
+   * @return the same format as transaction_search
+   */
+  public String transaction_route(String originCity, String destinationCity, int maxLegs, int dayOfMonth,
+                                  int numberOfItineraries)
+  {
+	  searchedItineraries.clear();
+	  wasLoggedInWhenSearched = loggedIn;
+	  
+	  try {
+		  List<Flight[]> routes = engine.flightIndex().routeSearch().search(originCity, destinationCity, dayOfMonth, maxLegs,
+		                                                                    numberOfItineraries, engine.minConnectionMinutes(),
+		                                                                    engine.routeExpansions());
+		  if (routes.isEmpty()) return "No flights match your selection\n";
+		  
+		  StringBuilder sb = responseBuffer();
+		  for (int i = 0; i < routes.size(); i++) {
+			  searchedItineraries.add(new Itinerary(routes.get(i)));
+			  ItineraryFormatter.appendRoute(sb, i, routes.get(i));
+		  }
+		  return sb.toString();
+	} catch (SQLException e) {e.printStackTrace();}
+	
+	return "Failed to search\n";
   }
 
   /**
@@ -390,139 +389,61 @@ public class Query
  * @throws SQLException 
    */
   
-  private String transaction_search_safe(String originCity, String destinationCity, boolean directFlight, int dayOfMonth, int numberOfItineraries) {
+  private String transaction_search_safe(String originCity, String destinationCity, boolean directFlight, int dayOfMonth, int numberOfItineraries, boolean cheapest) {
 	  
-    StringBuffer sb = new StringBuffer();
+    // A search for no itineraries never finds flights
+    if (numberOfItineraries <= 0) return directFlight ? "No flights match your selection\n" : "";
 	
     try { 
-    	
-    	 // Finds as many direct flights up to numberOfItineraries
-    	 List<Flight> oneHopFlights = oneFlightHop(originCity, destinationCity, directFlight, dayOfMonth, numberOfItineraries);
+    	 SearchCache cache = engine.searchCache();
+    	 SearchCache.Result result = cache.get(originCity, destinationCity, directFlight, dayOfMonth, cheapest, numberOfItineraries);
+    	 
+    	 if (result == null) {
+    		 List<Itinerary> itineraries = new ArrayList<Itinerary>();
+    		 
+    		 // Finds as many direct flights up to numberOfItineraries
+    		 oneFlightHop(itineraries, originCity, destinationCity, dayOfMonth, numberOfItineraries, cheapest);
+    		 
+    		 // If we haven't found enough flights, then we find non-direct flights for the rest, if they wanted it
+    		 if (!directFlight && itineraries.size() < numberOfItineraries) {
+    			 twoFlightHop(itineraries, originCity, destinationCity, dayOfMonth, numberOfItineraries - itineraries.size(), cheapest);
+    		 }
+    		 result = cache.put(originCity, destinationCity, directFlight, dayOfMonth, cheapest, numberOfItineraries, itineraries);
+    	 }
     	 
-    	 if (directFlight && oneHopFlights.size() == 0) return "No flights match your selection\n";
+    	 int count = result.count(numberOfItineraries);
+    	 if (count == 0) return "No flights match your selection\n";
     	 
-		 for (int i = 0; i < oneHopFlights.size(); i++) {
-			 
-			 Flight f = oneHopFlights.get(i);
-			 
-			 sb.append("Itinerary " + i + ": 1 flight(s), " + f.time + " minutes\n");
-			 sb.append("ID: " + f.fid + " Date: " + f.year + "-7-" + f.dayOfMonth + " Carrier: " + 
-			         f.carrierId + " Number: " + f.flightNum + " Origin: " + f.originCity + " Dest: " + 
-					 f.destCity + " Duration: " + f.time + " Capacity: " + f.capacity + " Price: " + f.price + "\n");
-		 }
-		 
-		 int numDirectItineraries = oneHopFlights.size();
-		 
-		 // If we haven't found enough flights, then we find non-direct flights up to newNumOfItineraries, if they wanted it
-		 
-		 if (!directFlight && numDirectItineraries < numberOfItineraries) {
-			 int newNumOfItineraries = numberOfItineraries - numDirectItineraries;
-			 List<Flight[]> twoHopFlights = twoFlightHop(originCity, destinationCity, directFlight, dayOfMonth, newNumOfItineraries);
-			 
-			 if (twoHopFlights.size() == 0 && oneHopFlights.size() == 0) return "No flights match your selection\n";		 
-			 
-			 for (int i = 0; i < newNumOfItineraries; i++) {
-				 Flight[] f = twoHopFlights.get(i);
-				 
-				 sb.append("Itinerary " + (i + numDirectItineraries) + ": 2 flight(s), " + (f[1].time + f[2].time) + " minutes\n");
-				 
-				 sb.append("ID: " + f[1].fid + " Date: " + f[1].year + "-7-" + f[1].dayOfMonth + " Carrier: " + 
-				         f[1].carrierId + " Number: " + f[1].flightNum + " Origin: " + f[1].originCity + " Dest: " + 
-						 f[1].destCity + " Duration: " + f[1].time + " Capacity: " + f[1].capacity + " Price: " + f[1].price + "\n");
-				 
-				 sb.append("ID: " + f[2].fid + " Date: " + f[2].year + "-7-" + f[2].dayOfMonth + " Carrier: " + 
-				         f[2].carrierId + " Number: " + f[2].flightNum + " Origin: " + f[2].originCity + " Dest: " + 
-						 f[2].destCity + " Duration: " + f[2].time + " Capacity: " + f[2].capacity + " Price: " + f[2].price + "\n");
-			 }
-		 }
+    	 // Adds itineraries to list containing the most recent search
+    	 searchedItineraries.addAll(result.itineraries(count));
+    	 return result.text(count);
 	} catch (SQLException e) {e.printStackTrace();}
 	
-	return sb.toString();
+	return "";
   }
   
   
-  private List<Flight> oneFlightHop (String originCity, String destinationCity, boolean directFlight, int dayOfMonth, int numberOfItineraries) throws SQLException {
+  private void oneFlightHop (List<Itinerary> itineraries, String originCity, String destinationCity, int dayOfMonth, int numberOfItineraries, boolean cheapest) throws SQLException {
 	  
-	    flightSearchStatement.setInt(1, numberOfItineraries);
-	    flightSearchStatement.setString(2, originCity);
-	    flightSearchStatement.setString(3, destinationCity);
-	    flightSearchStatement.setInt(4, dayOfMonth);
-	    
-	    ResultSet oneHopResults = flightSearchStatement.executeQuery();
-	    
-	    List<Flight> flights = new ArrayList<Flight>();
-
-	    while (oneHopResults.next()) {	
-	      Flight f = new Flight();
-	      f.fid = oneHopResults.getInt("fid");
-	      f.year = oneHopResults.getInt("year");
-	      f.monthId = 7;
-	      f.dayOfMonth = dayOfMonth;
-	      f.carrierId = oneHopResults.getString("carrier_id");
-	      f.flightNum = oneHopResults.getString("flight_num");
-	      f.time = oneHopResults.getDouble("actual_time");
-	      f.capacity = oneHopResults.getInt("capacity");
-	      f.price = oneHopResults.getDouble("price");
-	      f.originCity = originCity;
-	      f.destCity = destinationCity;
-	      
-	      flights.add(f);
-	      searchedItineraries.add(new Itinerary(f)); // Adds itineraries to list containing the most recent search
-	    }
-	    oneHopResults.close();
-	  return flights;
+	  FlightIndex index = engine.flightIndex();
+	  List<Flight> flights = cheapest ? index.cheapestDirect(originCity, destinationCity, dayOfMonth, numberOfItineraries)
+	                                  : index.direct(originCity, destinationCity, dayOfMonth, numberOfItineraries);
+	  for (Flight f : flights) {
+		  itineraries.add(new Itinerary(f));
+	  }
   }
   
-  // Returns a List of an array holding 2 flights. First index is first flight, second is second flight
-  private List<Flight[]> twoFlightHop (String originCity, String destinationCity, boolean directFlight, int dayOfMonth, int numberOfItineraries) throws SQLException {
-
-  	flightSearch2Statement.setInt(1, numberOfItineraries);
-  	flightSearch2Statement.setString(2, originCity);
-  	flightSearch2Statement.setString(3, destinationCity);
-  	flightSearch2Statement.setInt(4, dayOfMonth);
-  	flightSearch2Statement.setInt(5, dayOfMonth);
-  	
-  	ResultSet twoHopResults = flightSearch2Statement.executeQuery();
-  	
-  	// Each element in list is an array of size 2. index 0 is first flight, index 1 is second flight
-  	List<Flight[]> twoHopFlights = new ArrayList<Flight[]>();
-  	
-  	while (twoHopResults.next())
-	    {
-  			Flight one = new Flight();
-  			Flight two = new Flight();
-  			
-  			one.fid = twoHopResults.getInt("fid1");
-  	        one.year = twoHopResults.getInt("year1");
-  	        one.monthId = 7;
-  	        one.dayOfMonth = dayOfMonth;
-  	        one.carrierId = twoHopResults.getString("cid1");
-  	        one.flightNum = twoHopResults.getString("flight_num1");
-  	        one.time = twoHopResults.getDouble("time1");
-  	        one.capacity = twoHopResults.getInt("capacity1");
-  	        one.price = twoHopResults.getDouble("price1");
-  	        one.originCity = originCity;
-  		    one.destCity = twoHopResults.getString("middle_city");
-  		    
-  		    two.fid = twoHopResults.getInt("fid2");
-	        two.year = twoHopResults.getInt("year2");
-	        two.monthId = 7;
-	        two.dayOfMonth = dayOfMonth;
-	        two.carrierId = twoHopResults.getString("cid2");
-	        two.flightNum = twoHopResults.getString("flight_num2");
-	        two.time = twoHopResults.getDouble("time2");
-	        two.capacity = twoHopResults.getInt("capacity2");
-	        two.price = twoHopResults.getDouble("price2");
-	        two.originCity = twoHopResults.getString("middle_city");
-		    two.destCity = destinationCity;
-  		
-			
-			twoHopFlights.add(new Flight[] {one, two});
-		    searchedItineraries.add(new Itinerary(one, two)); // Adds itineraries to list containing the most recent search
-	    }
-	    twoHopResults.close();
-	    return twoHopFlights;
+  // Adds itineraries of 2 flights. First flight is f1, second is f2
+  private void twoFlightHop (List<Itinerary> itineraries, String originCity, String destinationCity, int dayOfMonth, int numberOfItineraries, boolean cheapest) throws SQLException {
+	  
+	  ConnectionSearch connections = engine.flightIndex().connections();
+	  List<Flight[]> pairs = cheapest ? connections.cheapest(originCity, destinationCity, dayOfMonth, numberOfItineraries)
+	                                  : connections.search(originCity, destinationCity, dayOfMonth, numberOfItineraries);
+	  for (Flight[] f : pairs) {
+		  itineraries.add(new Itinerary(f[0], f[1]));
+	  }
   }
+  
     
 
   /**
@@ -547,102 +468,93 @@ public class Query
 	  
       if (itineraryId >= searchedItineraries.size()) return "No such itinerary " + itineraryId + "\n";
       
-      Itinerary itin = searchedItineraries.get(itineraryId);
+      final Itinerary itin = searchedItineraries.get(itineraryId);
       
-      String findCurrId = "SELECT currID FROM ResID";
+      // Reservations hold at most two flights
+      if (itin.legs != null) return "Cannot book itineraries of more than two flights\n";
       
+      // Seat counts and the user's same-day check must not change between the checks and the insert
+      ReentrantLock userLock = engine.userLocks().lock(QueryEngine.userKey(username));
+      ReentrantLock[] seatLocks = engine.flightLocks().lockAll(itin.f1.fid, (itin.f2 == null ? itin.f1.fid : itin.f2.fid));
       
 	  try {		
-		    
-		    String getCount1 = "SELECT COUNT(*) AS cnt FROM Reservations WHERE fid1 = ";
-		    String getCount2 = "SELECT COUNT(*) AS cnt FROM Reservations WHERE fid2 = ";
-		    
-		    int fidFlight1 = itin.f1.fid;
-		    int capFlight1 = itin.f1.capacity;		    
-		    
-		    Statement getNumReservations = conn.createStatement();
-		    ResultSet numFlight1 = getNumReservations.executeQuery(getCount1 + fidFlight1);
-		    
-		    numFlight1.next();
-		    
-		    int numResFlight1 = capFlight1 - numFlight1.getInt("cnt");
+		    final FlightStore store = engine.store();
+		    SeatCounters seatCounters = engine.seatCounters();
+		    int numResFlight1 = seatCounters.remaining(store, itin.f1.fid, itin.f1.capacity);
 		    
 		    // This number doesn't matter as long as its above 0. Will be updated if there is a second flight
 		    int numResFlight2 = 99999;
 		    
 		    if (itin.f2 != null) {
-		    	int fidFlight2 = itin.f2.fid;
-		    	int capFlight2 = itin.f2.capacity;
-		    	ResultSet numFlight2 = getNumReservations.executeQuery(getCount2 + fidFlight2);
-		    	numFlight2.next();
-		    	numResFlight2 = capFlight2 - numFlight2.getInt("cnt");
+		    	numResFlight2 = seatCounters.remaining(store, itin.f2.fid, itin.f2.capacity);
 		    }
 		    
 		    if (numResFlight1 < 1 || numResFlight2 < 1) return "Booking failed\n";
 		    	    
 		  
-		    if (alreadyHasFlightOnDay(itin)) return "You cannot book two flights in the same day\n";
+		    BookedDays days = bookedDays();
+		    if (days.isBooked(itin.f1.monthId, itin.f1.dayOfMonth)) return "You cannot book two flights in the same day\n";
 		  
-			Statement searchStatement = conn.createStatement();
-			ResultSet currID = searchStatement.executeQuery(findCurrId);
-			currID.next();
+			int nextID = store.nextReservationId();
 			
-			int nextID = currID.getInt("currID") + 1;
+			// The seats are held while the insert waits for its batch, so other bookings of
+			// these flights need not wait for it
+			seatCounters.reserve(itin.f1.fid);
+			if (itin.f2 != null) seatCounters.reserve(itin.f2.fid);
+			StripedLocks.unlock(seatLocks);
+			seatLocks = null;
 			
-			searchStatement.executeUpdate("UPDATE ResID SET  currID = " + nextID);
+			try {
+				engine.bookings().insert(nextID, username, itin.f1.fid, (itin.f2 == null ? -1 : itin.f2.fid));
+			} catch (SQLException e) {
+				releaseSeats(itin);
+				throw e;
+			}
 			
-			currID.close();
+			// The user's lock is still held, so the day is still free
+			days.book(itin.f1.monthId, itin.f1.dayOfMonth);
 			
-			reservationInsertStatement.setInt(1, nextID);
-			reservationInsertStatement.setString(2, username);
-			reservationInsertStatement.setInt(3, itin.f1.fid);
-			reservationInsertStatement.setInt(4, (itin.f2 == null ? -1 : itin.f2.fid));
-			reservationInsertStatement.setInt(5, 0);
-			
-			reservationInsertStatement.executeUpdate();
+			// Pay, cancel and reservations will want these flights next
+			engine.flightCache().put(itin.f1);
+			if (itin.f2 != null) engine.flightCache().put(itin.f2);
 		
 			return "Booked flight(s), reservation ID: " + (nextID) + "\n";
 		
 	} catch (SQLException e) {e.printStackTrace();}
+	  finally {
+		  if (seatLocks != null) StripedLocks.unlock(seatLocks);
+		  userLock.unlock();
+	  }
 	  
 	  return "Booking failed\n";
   }
+  
+  // Gives back the seats held by a booking whose insert failed
+  private void releaseSeats(Itinerary itin) {
+	  ReentrantLock[] seatLocks = engine.flightLocks().lockAll(itin.f1.fid, (itin.f2 == null ? itin.f1.fid : itin.f2.fid));
+	  try {
+		  engine.seatCounters().release(itin.f1.fid);
+		  if (itin.f2 != null) engine.seatCounters().release(itin.f2.fid);
+	  } finally {
+		  StripedLocks.unlock(seatLocks);
+	  }
+  }
     
   
-    // Returns true if person already has a flight on the day they're trying to create a flight reservation for
-    // false otherwise.
-    // itin is the itinerary they're trying to reserve
-    private boolean alreadyHasFlightOnDay(Itinerary itin) {
-	    try {
-			reservationSameDayCheck.setString(1, username);
-			ResultSet checkResult = reservationSameDayCheck.executeQuery();
-		    List<Integer> fids = new ArrayList<Integer>();
-		    while (checkResult.next()) {
-		    	
-		    	fids.add(checkResult.getInt("fid1"));
-		    	
-		    	int posFid2 = checkResult.getInt("fid2");
-		    	if (posFid2 != -1) fids.add(posFid2);
-		    }
-		    
-		    checkResult.close();
-		    
-			if (fids.size() != 0) {
-			    String getFlightsOnADay = "SELECT fid FROM Flights WHERE day_of_month = " + itin.f1.dayOfMonth;
-			    Statement flightsOfADay = conn.createStatement();
-			    ResultSet allFlightsOfADay = flightsOfADay.executeQuery(getFlightsOnADay);
-			    
-			    while(allFlightsOfADay.next()) {
-			    	int fid = allFlightsOfADay.getInt("fid");
-			    	if (fids.contains(fid)) return true;
-			    }
-			    
-			    allFlightsOfADay.close();
-		    }
-			
-			return false;
-		} catch (SQLException e) {e.printStackTrace();}
-	    return false;
+    // Returns the days on which the logged in user already has a reservation, loading them
+    // from the store if they are not cached. Must be called while holding the user's lock.
+    private BookedDays bookedDays() throws SQLException {
+	    String key = QueryEngine.userKey(username);
+	    BookedDays days = engine.bookedDays().get(key);
+	    if (days != null) return days;
+	    
+		days = new BookedDays();
+		for (FlightStore.Reservation r : engine.store().reservations(username)) {
+			days.book(r.monthId, r.dayOfMonth);
+		}
+		
+		engine.bookedDays().put(key, days);
+		return days;
     }
 
   /**
@@ -672,80 +584,38 @@ public class Query
 	  
 	  
 	  try {
-		  reservationFlightNumsStatement.setString(1, username);
-		  ResultSet allFlightNums = reservationFlightNumsStatement.executeQuery();
-		  
-		  List<Integer[]> fids = new ArrayList<Integer[]>();
-		  Map<Integer, Pair> paidMap = new HashMap<Integer, Pair>();
+		  List<int[]> fids = new ArrayList<int[]>();
+		  List<Pair> paid = new ArrayList<Pair>();
 		  
-		  while (allFlightNums.next()) {
-			  int fid1 = allFlightNums.getInt("fid1");
-			  int fid2 = allFlightNums.getInt("fid2");
-			  fids.add(new Integer[]{fid1, fid2});
-			  
-			  paidMap.put(fid1, new Pair(allFlightNums.getInt("id"), allFlightNums.getBoolean("paid")));
+		  for (FlightStore.Reservation r : engine.store().reservations(username)) {
+			  fids.add(new int[] {r.fid1, r.fid2});
+			  paid.add(new Pair(r.id, r.paid));
 		  }
 		  
-		  allFlightNums.close();
-		  
 		  List<Itinerary> itins = setItinerariesFromFids(fids);
 		  
-		  return convertItineraryToString(itins, paidMap);
+		  return convertItineraryToString(itins, paid);
 	} catch (SQLException e) {e.printStackTrace();}
 	  
       return "Failed to retrieve reservations\n";
   }
   
-  private List<Itinerary> setItinerariesFromFids (List<Integer[]> fids) {
-	  List<Itinerary> result = new ArrayList<Itinerary>();
-	  String getFlightInfo = "SELECT year, month_Id, day_of_month, carrier_id, flight_num, origin_city, dest_city, actual_time, capacity, price "
-	  		+ "FROM Flights WHERE fid = ";
+  // Looks up both legs of every reservation in the shared flight cache, fetching all misses together.
+  // A fid2 of -1 means the itinerary is a direct flight.
+  private List<Itinerary> setItinerariesFromFids (List<int[]> fids) throws SQLException {
+	  int[] allFids = new int[fids.size() * 2];
+	  int n = 0;
+	  for (int[] legs : fids) {
+		  allFids[n++] = legs[0];
+		  if (legs[1] != -1) allFids[n++] = legs[1];
+	  }
 	  
-	  try {
-		  Statement flightInfo = conn.createStatement();
-		  for (int i = 0; i < fids.size(); i++) {
-			  // This means we only have 1 flight for the itinerary
-			  Flight f1 = new Flight();
-			  int fid1 = fids.get(i)[0];
-			  
-			  ResultSet flightSet = flightInfo.executeQuery(getFlightInfo + fid1);
-			  flightSet.next();
-			  
-			  f1.fid = fid1;
-			  f1.year = flightSet.getInt("year");
-			  f1.monthId = flightSet.getInt("month_Id");
-			  f1.dayOfMonth = flightSet.getInt("day_of_month");
-			  f1.carrierId = flightSet.getString("carrier_id");
-			  f1.flightNum = flightSet.getString("flight_num");
-			  f1.originCity = flightSet.getString("origin_city");
-			  f1.destCity = flightSet.getString("dest_city");
-			  f1.time = flightSet.getInt("actual_time");
-			  f1.capacity = flightSet.getInt("capacity");
-			  f1.price = flightSet.getDouble("price");
-			  
-			  if (fids.get(i)[1] != -1) {
-				  int fid2 = fids.get(i)[1];
-				  Flight f2 = new Flight();
-				  ResultSet flightSet2 = flightInfo.executeQuery(getFlightInfo + fid2);
-				  f2.fid = fid1;
-				  f2.year = flightSet2.getInt("year");
-				  f2.monthId = flightSet2.getInt("month_Id");
-				  f2.dayOfMonth = flightSet2.getInt("day_of_month");
-				  f2.carrierId = flightSet2.getString("carrier_id");
-				  f2.flightNum = flightSet2.getString("flight_num");
-				  f2.originCity = flightSet2.getString("origin_city");
-				  f2.destCity = flightSet2.getString("dest_city");
-				  f2.time = flightSet2.getInt("actual_time");
-				  f2.capacity = flightSet2.getInt("capacity");
-				  f2.price = flightSet2.getDouble("price");
-				  result.add(new Itinerary(f1, f2));
-			  } else {
-				  result.add(new Itinerary(f1, null));
-			  }
-			  flightSet.close();
-		  }
-	} catch (SQLException e) {e.printStackTrace();}
-
+	  Map<Integer, Flight> flights = engine.flightCache().getAll(Arrays.copyOf(allFids, n));
+	  
+	  List<Itinerary> result = new ArrayList<Itinerary>();
+	  for (int[] legs : fids) {
+		  result.add(new Itinerary(flights.get(legs[0]), legs[1] == -1 ? null : flights.get(legs[1])));
+	  }
 	  return result;
   }
   
@@ -753,31 +623,15 @@ public class Query
   //* [flight 1 under the reservation]
   //* [flight 2 under the reservation]
   
-  
-  
-  
-  private String convertItineraryToString(List<Itinerary> itins, Map<Integer, Pair> paidMap) {
+  private String convertItineraryToString(List<Itinerary> itins, List<Pair> paid) {
 	  
 	  if (itins.size() == 0) return "No reservations found\n";
 	  
-	  StringBuffer sb = new StringBuffer();
+	  StringBuilder sb = responseBuffer();
 	  
 	  for (int i = 0; i < itins.size(); i++) {
-		  Itinerary it = itins.get(i);
-		  Pair currPair = paidMap.get(it.f1.fid);
-		  if (it.f2 == null) { // only 1 flight
-			  sb.append("Reservation " + currPair.id + " paid: " + currPair.paid + ":\n");
-			  
-			  sb.append("ID: " + it.f1.fid + " Date: " + it.f1.year + "-" + it.f1.monthId + "-" + it.f1.dayOfMonth + " Carrier: " + 
-				         it.f1.carrierId + " Number: " + it.f1.flightNum + " Origin: " + it.f1.originCity + " Dest: " + 
-				         it.f1.destCity + " Duration: " + it.f1.time + " Capacity: " + it.f1.capacity + " Price: " + it.f1.price + "\n");
-		  } else {
-			  sb.append("Reservation " + currPair.id + " paid: " + currPair.paid + ":\n");
-			  
-			  sb.append("ID: " + it.f2.fid + " Date: " + it.f2.year + "-" + it.f2.monthId + "-" + it.f2.dayOfMonth + " Carrier: " + 
-				         it.f2.carrierId + " Number: " + it.f2.flightNum + " Origin: " + it.f2.originCity + " Dest: " + 
-				         it.f2.destCity + " Duration: " + it.f2.time + " Capacity: " + it.f2.capacity + " Price: " + it.f2.price + "\n");
-		  }
+		  Pair currPair = paid.get(i);
+		  ItineraryFormatter.appendReservation(sb, currPair.id, currPair.paid, itins.get(i));
 	  }
 	  
 	  return sb.toString();
@@ -799,50 +653,42 @@ public class Query
   {
 	  if (!loggedIn) return "Cannot cancel reservations, not logged in\n";
 	  
+	  ReentrantLock userLock = engine.userLocks().lock(QueryEngine.userKey(username));
+	  ReentrantLock[] seatLocks = null;
 	  try {
-		reservationExists.setString(1, username);
-		reservationExists.setInt(2, reservationId);
+		final FlightStore store = engine.store();
+		FlightStore.Reservation theReservation = store.reservation(username, reservationId);
 		
+		if (theReservation == null) return "Failed to cancel reservation " + reservationId + "\n";
 		
-		ResultSet theReservation = reservationExists.executeQuery();
+		int fid1 = theReservation.fid1;
+		int fid2 = theReservation.fid2;
 		
+		seatLocks = engine.flightLocks().lockAll(fid1, fid2);
 		
-		if (!theReservation.next()) return "Failed to cancel reservation " + reservationId + "\n";
+		// Refunds money to user if paid, and deletes the reservation in the same operation
+		final double refund = theReservation.paid ? itineraryPrice(fid1, fid2) : 0;
+		engine.transactions().retry(new TransactionRunner.Work<Void>() {
+			@Override
+			public Void run() throws SQLException {
+				store.cancel(username, reservationId, refund);
+				return null;
+			}
+		});
 		
-		boolean paid = theReservation.getBoolean("paid");
-		int fid1 = theReservation.getInt("fid1");
-		int fid2 = theReservation.getInt("fid2");
+		engine.seatCounters().release(fid1);
+		if (fid2 != -1) engine.seatCounters().release(fid2);
 		
-		if (paid) { // This section refunds money to user
-			flightPrice.setInt(1, fid1);
-			ResultSet price1 = flightPrice.executeQuery();
-			price1.next();
-			double refundAmt1 = price1.getDouble("price");
-			
-			flightPrice.setInt(1, fid2);
-			ResultSet price2 = flightPrice.executeQuery();
-			
-			// Possibly no second flight, if there is none then there is nothing to refund
-			double refundAmt2 = 0;
-			if(price2.next()) 
-				refundAmt2 = price2.getDouble("price");
-			
-			price1.close();
-			price2.close();
-			
-			double refundTotal = refundAmt1 + refundAmt2;
-			
-			refundStatement.setDouble(1, refundTotal);
-			refundStatement.setString(2, username);
-			refundStatement.executeUpdate();
-		} 
-		
-		deleteReservationStatement.setInt(1, reservationId);
-		deleteReservationStatement.executeUpdate();
+		BookedDays days = engine.bookedDays().get(QueryEngine.userKey(username));
+		if (days != null) days.release(theReservation.monthId, theReservation.dayOfMonth);
 		
 		return "Canceled reservation " + reservationId + "\n";
 		
 	} catch (SQLException e) {e.printStackTrace();}
+	  finally {
+		  if (seatLocks != null) StripedLocks.unlock(seatLocks);
+		  userLock.unlock();
+	  }
 	  
 	  
 	  return "Failed to cancel reservation " + reservationId + "\n";
@@ -868,84 +714,75 @@ public class Query
 	  
 	  if (!loggedIn) return "Cannot pay, not logged in\n";
 	  
+	  // Balance check, charge and marking paid happen under the user's lock so a reservation is never paid twice.
+	  // The charge and marking paid are one store operation, which only charges a balance that covers the cost.
+	  ReentrantLock userLock = engine.userLocks().lock(QueryEngine.userKey(username));
 	  try {
-		  reservationExists.setString(1, username);
-		  reservationExists.setInt(2, reservationId);
-		  ResultSet possibleReservation = reservationExists.executeQuery();
-		  
-		  if (!possibleReservation.next()) return "Cannot find unpaid reservation " + reservationId + " under user: " + username + "\n";
-		  
-		  boolean paid = possibleReservation.getBoolean("paid");
-		  int fid1 = possibleReservation.getInt("fid1");
-		  int fid2 = possibleReservation.getInt("fid2");
-		  
-		  
-		  if (!paid) { // This section refunds money to user
-				flightPrice.setInt(1, fid1);
-				ResultSet price1 = flightPrice.executeQuery();
-				price1.next();
-				double cost1 = price1.getDouble("price");
-				
-				flightPrice.setInt(1, fid2);
-				ResultSet price2 = flightPrice.executeQuery();
-				
-				// Possibly no second flight, if there is none then there is nothing to refund
-				double cost2 = 0;
-				if(price2.next()) 
-					cost2 = price2.getDouble("price");
-				
-				price1.close();
-				price2.close();
-				
-				double costTotal = cost1 + cost2;
-				
-				getBalanceStatement.setString(1, username);
-				ResultSet userBalance = getBalanceStatement.executeQuery();
-				userBalance.next();
-				
-				double balance = userBalance.getDouble("balance");
-				
-				userBalance.close();
-				
-				if (balance < costTotal) return "User has only " + String.format(Locale.US, "%.2f", balance) + " in account but itinerary costs " + costTotal + "\n";
-				
-				double remainingBalance = balance - costTotal;
-				
-				payStatement.setDouble(1, remainingBalance);
-				payStatement.setString(2, username);
-				payStatement.executeUpdate();
-				
-				String updateAsPaid = "UPDATE Reservations SET paid = 1 WHERE id = " + reservationId;
-				Statement updatePayStatement = conn.createStatement();
-				
-				updatePayStatement.executeUpdate(updateAsPaid);
-				
-				return "Paid reservation: " + reservationId + " remaining balance: " + remainingBalance + "\n";
-		  }
+		  final FlightStore store = engine.store();
+		  String paid = engine.transactions().retry(new TransactionRunner.Work<String>() {
+			  @Override
+			  public String run() throws SQLException {
+				  FlightStore.Account account = store.account(username, reservationId);
+				  FlightStore.Reservation possibleReservation = account.reservation;
+				  
+				  if (possibleReservation == null) return "Cannot find unpaid reservation " + reservationId + " under user: " + username + "\n";
+				  
+				  if (possibleReservation.paid) return null;
+				  
+				  double costTotal = itineraryPrice(possibleReservation.fid1, possibleReservation.fid2);
+				  
+				  double balance = account.balance;
+				  
+				  if (balance < costTotal) return notEnoughMoney(balance, costTotal);
+				  
+				  double remainingBalance = balance - costTotal;
+				  
+				  // Only a writer outside this process can have lowered the balance since it was read
+				  if (!store.pay(username, reservationId, costTotal))
+					  return notEnoughMoney(store.account(username, reservationId).balance, costTotal);
+				  
+				  return "Paid reservation: " + reservationId + " remaining balance: " + remainingBalance + "\n";
+			  }
+		  });
+		  if (paid != null) return paid;
 		  
 	} catch (SQLException e) {e.printStackTrace();}
+	  finally { userLock.unlock(); }
 	  
       return "Failed to pay for reservation " + reservationId + "\n";
   }
 
   /* some utility functions below */
 
+  private static String notEnoughMoney(double balance, double cost)
+  {
+    return "User has only " + String.format(Locale.US, "%.2f", balance) + " in account but itinerary costs " + cost + "\n";
+  }
+
+  // Total price of a reservation's flights, read from the shared flight cache. fid2 is -1 for direct itineraries.
+  private double itineraryPrice(int fid1, int fid2) throws SQLException
+  {
+    FlightCache flights = engine.flightCache();
+    double price = flights.get(fid1).price;
+    if (fid2 != -1)
+      price += flights.get(fid2).price;
+    return price;
+  }
+
+  // Begins a transaction on this thread, which the store's operations join until commit or rollback
   public void beginTransaction() throws SQLException
   {
-    conn.setAutoCommit(false);
-    beginTransactionStatement.executeUpdate();
+    engine.store().begin();
   }
 
   public void commitTransaction() throws SQLException
   {
-    commitTransactionStatement.executeUpdate();
-    conn.setAutoCommit(true);
+    engine.store().commit();
   }
 
   public void rollbackTransaction() throws SQLException
   {
-    rollbackTransactionStatement.executeUpdate();
-    conn.setAutoCommit(true);
+    engine.store().rollback();
   }
 
   /**
@@ -954,13 +791,16 @@ public class Query
    */
   private int checkFlightCapacity(int fid) throws SQLException
   {
-    checkFlightCapacityStatement.clearParameters();
-    checkFlightCapacityStatement.setInt(1, fid);
-    ResultSet results = checkFlightCapacityStatement.executeQuery();
-    results.next();
-    int capacity = results.getInt("capacity");
-    results.close();
-
-    return capacity;
+    try (PooledConnection c = connection())
+    {
+      PreparedStatement checkFlightCapacityStatement = c.prepare(CHECK_FLIGHT_CAPACITY);
+      checkFlightCapacityStatement.setInt(1, fid);
+      ResultSet results = c.executeQuery(checkFlightCapacityStatement);
+      results.next();
+      int capacity = results.getInt("capacity");
+      results.close();
+
+      return capacity;
+    }
   }
 }
@@ -0,0 +1,419 @@
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Properties;
+
+/**
+ * State shared by every session of the flight service: the {@link FlightStore} holding
+ * the data, the in-memory flight index, row locks, seat counters and caches.
+ *
+ * An engine is thread safe. Each user gets a lightweight {@link Query} session from
+ * {@link #newSession()} that only keeps who is logged in and the last search results.
+ * With a {@link JdbcFlightStore} each store operation borrows a pooled connection for as
+ * long as it runs, so one JVM can serve many more sessions than it holds database
+ * connections.
+ */
+public class QueryEngine implements AutoCloseable
+{
+  public static final int DEFAULT_POOL_SIZE = 16;
+  public static final int DEFAULT_CREDENTIAL_CACHE_SIZE = 100000;
+  public static final int DEFAULT_FLIGHT_CACHE_SIZE = 50000;
+  public static final int DEFAULT_SEARCH_CACHE_SIZE = 10000;
+  public static final int DEFAULT_TRANSACTION_ATTEMPTS = 5;
+  public static final int DEFAULT_TRANSACTION_BACKOFF_MILLIS = 10;
+  public static final int DEFAULT_MIN_CONNECTION_MINUTES = 30;
+  public static final int DEFAULT_ROUTE_EXPANSIONS = 100000;
+  public static final int DEFAULT_BOOKING_BATCH_SIZE = 64;
+  public static final int DEFAULT_BOOKING_WINDOW_MICROS = 2000;
+
+  // Reservation IDs are leased from ResID in blocks and handed out in-process
+  private static final int RESERVATION_ID_BLOCK = 32;
+
+  // Engines shared by sessions opened through Query(configFilename), one per config file
+  private static final Map<String, QueryEngine> sharedEngines = new HashMap<String, QueryEngine>();
+
+  private final FlightStore store;
+
+  // Settings the engine was opened with, also read by SessionServer
+  private final Properties configProps;
+
+  // Row locks shared by every session, users by userKey and flights by fid. Users are
+  // always locked before flights.
+  private final StripedLocks userLocks = new StripedLocks(64);
+  private final StripedLocks flightLocks = new StripedLocks(256);
+
+  // Seats booked per flight, read and adjusted under the flight's lock
+  private final SeatCounters seatCounters = new SeatCounters();
+
+  // Direct and one-stop searches are answered from memory, loaded on first use
+  private volatile FlightIndex flightIndex;
+
+  // Password of each recently seen user by userKey, empty for names no user has
+  private final LruCache<String, Optional<String>> credentials;
+
+  // Days on which each recently active user already has a reservation, by userKey
+  private final LruCache<String, BookedDays> bookedDays;
+
+  // Flight rows by fid for pay, cancel and the reservations listing
+  private final FlightCache flightCache;
+
+  // Rendered results of recent searches
+  private final SearchCache searchCache;
+
+  // Searches ranges of days in parallel
+  private final RangeSearch rangeSearch;
+
+  // Charged per change of plane by the route command, and its search budget
+  private final int minConnectionMinutes;
+  private final int routeExpansions;
+
+  // Latency of every command run by sessions of this engine
+  private final CommandStats commandStats = new CommandStats();
+
+  // File the statistics are written to when a session quits, or null
+  private final String statsFile;
+
+  // Runs book, pay and cancel, retrying deadlocks
+  private final TransactionRunner transactions;
+
+  // Inserts the reservations of concurrent bookings in one transaction
+  private final BookingCoalescer bookings;
+
+  private String sharedKey;
+  private int sharedRefs;
+
+  public QueryEngine(FlightStore store)
+  {
+    this(store, new Properties());
+  }
+
+  /**
+   * @param store where the data is kept
+   * @param configProps tuning settings, see {@link #open(String)}
+   */
+  public QueryEngine(FlightStore store, Properties configProps)
+  {
+    this.store = store;
+    this.configProps = configProps;
+    int credentialCacheSize = intProperty(configProps, "flightservice.credential_cache_size", DEFAULT_CREDENTIAL_CACHE_SIZE);
+    this.credentials = new LruCache<String, Optional<String>>(credentialCacheSize, 64);
+    this.bookedDays = new LruCache<String, BookedDays>(credentialCacheSize, 64);
+    this.flightCache = new FlightCache(store, intProperty(configProps, "flightservice.flight_cache_size", DEFAULT_FLIGHT_CACHE_SIZE));
+    this.searchCache = new SearchCache(intProperty(configProps, "flightservice.search_cache_size", DEFAULT_SEARCH_CACHE_SIZE));
+    this.rangeSearch = new RangeSearch(intProperty(configProps, "flightservice.search_parallelism",
+                                                   Runtime.getRuntime().availableProcessors()));
+    this.minConnectionMinutes = intProperty(configProps, "flightservice.min_connection_minutes", DEFAULT_MIN_CONNECTION_MINUTES);
+    this.routeExpansions = intProperty(configProps, "flightservice.route_expansions", DEFAULT_ROUTE_EXPANSIONS);
+    this.statsFile = configProps.getProperty("flightservice.stats_file");
+    this.transactions = new TransactionRunner(store,
+                                              intProperty(configProps, "flightservice.transaction_attempts", DEFAULT_TRANSACTION_ATTEMPTS),
+                                              intProperty(configProps, "flightservice.transaction_backoff_ms", DEFAULT_TRANSACTION_BACKOFF_MILLIS));
+    // An in-memory insert has no commit to share
+    int bookingBatchSize = store instanceof JdbcFlightStore
+            ? intProperty(configProps, "flightservice.booking_batch_size", DEFAULT_BOOKING_BATCH_SIZE) : 1;
+    this.bookings = new BookingCoalescer(store, transactions, bookingBatchSize,
+                                         intProperty(configProps, "flightservice.booking_window_us", DEFAULT_BOOKING_WINDOW_MICROS));
+  }
+
+  static int intProperty(Properties configProps, String name, int defaultValue)
+  {
+    String value = configProps.getProperty(name);
+    return value == null ? defaultValue : Integer.parseInt(value.trim());
+  }
+
+  /**
+   * Opens an engine on the database described by {@code configFilename}. Besides the
+   * connection settings the file may set:
+   * <ul>
+   * <li>{@code flightservice.store}, either {@code jdbc} (the default) to keep all data in
+   * the database, or {@code memory} to copy the Flights table into a {@link MemoryFlightStore}
+   * and keep users and reservations in this process only</li>
+   * <li>{@code flightservice.pool_size}, the maximum number of database connections
+   * (default {@value #DEFAULT_POOL_SIZE})</li>
+   * <li>{@code flightservice.credential_cache_size}, the number of users whose credentials
+   * and booked days are kept in memory (default {@value #DEFAULT_CREDENTIAL_CACHE_SIZE})</li>
+   * <li>{@code flightservice.flight_cache_size}, the number of flights cached by fid
+   * (default {@value #DEFAULT_FLIGHT_CACHE_SIZE})</li>
+   * <li>{@code flightservice.search_cache_size}, the number of search results cached
+   * (default {@value #DEFAULT_SEARCH_CACHE_SIZE})</li>
+   * <li>{@code flightservice.search_parallelism}, the number of days a range search
+   * searches at the same time (default: the number of processors)</li>
+   * <li>{@code flightservice.min_connection_minutes}, the time a {@link RouteSearch} charges
+   * for every change of plane (default {@value #DEFAULT_MIN_CONNECTION_MINUTES})</li>
+   * <li>{@code flightservice.route_expansions}, the most partial routes a route search
+   * continues before it gives up (default {@value #DEFAULT_ROUTE_EXPANSIONS})</li>
+   * <li>{@code flightservice.transaction_attempts}, the times a transaction that deadlocked
+   * or failed to serialize is tried in all (default {@value #DEFAULT_TRANSACTION_ATTEMPTS})</li>
+   * <li>{@code flightservice.transaction_backoff_ms}, the longest wait before the first retry,
+   * doubled for every further one (default {@value #DEFAULT_TRANSACTION_BACKOFF_MILLIS})</li>
+   * <li>{@code flightservice.booking_batch_size}, the most reservations of concurrent bookings
+   * inserted in one transaction, 1 to insert each alone (default {@value #DEFAULT_BOOKING_BATCH_SIZE})</li>
+   * <li>{@code flightservice.booking_window_us}, the longest a booking waits for others to
+   * join its batch while an earlier batch is being written (default {@value #DEFAULT_BOOKING_WINDOW_MICROS})</li>
+   * <li>{@code flightservice.stats_file}, a file the statistics of {@link #statsReport()}
+   * are written to whenever a session quits</li>
+   * <li>{@code flightservice.flights_snapshot}, a {@link FlightSnapshot} file of the
+   * searchable flights to memory map instead of reading them from the database. With the
+   * {@code memory} store no database connection is made at all.</li>
+   * <li>{@code flightservice.server_sessions}, {@code flightservice.server_inflight} and
+   * {@code flightservice.server_threads}, the limits of a {@link SessionServer}</li>
+   * </ul>
+   */
+  public static QueryEngine open(String configFilename) throws Exception
+  {
+    Properties configProps = new Properties();
+    FileInputStream in = new FileInputStream(configFilename);
+    try
+    {
+      configProps.load(in);
+    }
+    finally
+    {
+      in.close();
+    }
+
+    String jSQLDriver = configProps.getProperty("flightservice.jdbc_driver");
+    String jSQLUrl = configProps.getProperty("flightservice.url");
+    String jSQLUser = configProps.getProperty("flightservice.sqlazure_username");
+    String jSQLPassword = configProps.getProperty("flightservice.sqlazure_password");
+    int poolSize = intProperty(configProps, "flightservice.pool_size", DEFAULT_POOL_SIZE);
+    String storeType = configProps.getProperty("flightservice.store", "jdbc").trim();
+    String snapshotFile = configProps.getProperty("flightservice.flights_snapshot");
+
+    if (!storeType.equals("jdbc") && !storeType.equals("memory"))
+      throw new IllegalArgumentException("Unknown flightservice.store " + storeType);
+
+    FlightSnapshot snapshot = null;
+    if (snapshotFile != null && !snapshotFile.trim().isEmpty())
+      snapshot = FlightSnapshot.map(Paths.get(snapshotFile.trim()));
+
+    if (storeType.equals("memory") && snapshot != null)
+      return new QueryEngine(new MemoryFlightStore(snapshot), configProps);
+
+    /* load jdbc drivers */
+    Class.forName(jSQLDriver).newInstance();
+
+    JdbcFlightStore jdbcStore = new JdbcFlightStore(new ConnectionPool(jSQLUrl, jSQLUser, jSQLPassword, poolSize),
+                                                    RESERVATION_ID_BLOCK, snapshot);
+    if (storeType.equals("jdbc"))
+      return new QueryEngine(jdbcStore, configProps);
+
+    try
+    {
+      return new QueryEngine(MemoryFlightStore.copyOf(jdbcStore), configProps);
+    }
+    finally
+    {
+      jdbcStore.close();
+    }
+  }
+
+  /**
+   * Returns the engine shared by all sessions opened on {@code configFilename} in this
+   * JVM, opening it on first use. Each call must be matched by {@link #releaseShared(QueryEngine)}.
+   */
+  static synchronized QueryEngine acquireShared(String configFilename) throws Exception
+  {
+    QueryEngine engine = sharedEngines.get(configFilename);
+    if (engine == null)
+    {
+      engine = open(configFilename);
+      engine.sharedKey = configFilename;
+      sharedEngines.put(configFilename, engine);
+    }
+    engine.sharedRefs++;
+    return engine;
+  }
+
+  /** Drops a reference taken by {@link #acquireShared(String)}, closing the engine after the last one. */
+  static synchronized void releaseShared(QueryEngine engine)
+  {
+    if (--engine.sharedRefs == 0)
+    {
+      sharedEngines.remove(engine.sharedKey);
+      engine.close();
+    }
+  }
+
+  /** Creates a new, logged out session on this engine. */
+  public Query newSession()
+  {
+    return new Query(this);
+  }
+
+  /**
+   * Deletes every user and reservation and resets the next reservation ID to 1.
+   */
+  public void clearTables() throws SQLException
+  {
+    store.clear();
+    seatCounters.clear();
+    credentials.clear();
+    bookedDays.clear();
+  }
+
+  /** Leases a pooled connection, to be closed by the caller. Only a {@link JdbcFlightStore} has connections. */
+  PooledConnection connection() throws SQLException
+  {
+    if (!(store instanceof JdbcFlightStore))
+      throw new SQLException("The " + store.getClass().getName() + " has no database connections");
+    return ((JdbcFlightStore) store).connection();
+  }
+
+  /** Returns the flight index, loading it the first time any session searches. */
+  FlightIndex flightIndex() throws SQLException
+  {
+    FlightIndex index = flightIndex;
+    if (index == null)
+    {
+      synchronized (this)
+      {
+        index = flightIndex;
+        if (index == null)
+        {
+          index = FlightIndex.load(store);
+          flightIndex = index;
+        }
+      }
+    }
+    return index;
+  }
+
+  StripedLocks userLocks()
+  {
+    return userLocks;
+  }
+
+  StripedLocks flightLocks()
+  {
+    return flightLocks;
+  }
+
+  /**
+   * Returns the key of a user in the engine's caches. Usernames are unique regardless of
+   * case, as the database's collation compares them, so every spelling of a name that a
+   * session logs in with has the same key.
+   */
+  static String userKey(String username)
+  {
+    return username.toLowerCase(Locale.ROOT);
+  }
+
+  /**
+   * Login credentials by {@link #userKey}, empty for names that no user has. Entries are
+   * filled by logins and must be invalidated by anything that creates or changes a user,
+   * while holding that user's lock.
+   */
+  LruCache<String, Optional<String>> credentials()
+  {
+    return credentials;
+  }
+
+  /**
+   * Booked days by {@link #userKey}. An entry is only read or changed while holding the user's
+   * lock; an evicted entry is simply loaded again from Reservations.
+   */
+  LruCache<String, BookedDays> bookedDays()
+  {
+    return bookedDays;
+  }
+
+  /** Flights by fid, shared by all sessions. */
+  public FlightCache flightCache()
+  {
+    return flightCache;
+  }
+
+  /** Results of recent searches, shared by all sessions. */
+  public SearchCache searchCache()
+  {
+    return searchCache;
+  }
+
+  RangeSearch rangeSearch()
+  {
+    return rangeSearch;
+  }
+
+  int minConnectionMinutes()
+  {
+    return minConnectionMinutes;
+  }
+
+  int routeExpansions()
+  {
+    return routeExpansions;
+  }
+
+  /** Runs store work in transactions, counting retries and aborts. */
+  public TransactionRunner transactions()
+  {
+    return transactions;
+  }
+
+  BookingCoalescer bookings()
+  {
+    return bookings;
+  }
+
+  /** Latency of each command, recorded by {@link FlightService#execute}. */
+  public CommandStats commandStats()
+  {
+    return commandStats;
+  }
+
+  /**
+   * Describes where the engine spends its time: command latencies, statement executions
+   * (with a {@link JdbcFlightStore}), cache hit ratios and transaction retries.
+   */
+  public String statsReport()
+  {
+    StringBuilder sb = new StringBuilder();
+    commandStats.appendTo(sb);
+    if (store instanceof JdbcFlightStore)
+      ((JdbcFlightStore) store).statementStats().appendTo(sb.append('\n'));
+    sb.append(String.format(Locale.US, "\nflight cache: %d hits, %d misses, %d entries\n",
+                            flightCache.hits(), flightCache.misses(), flightCache.size()));
+    sb.append(String.format(Locale.US, "search cache: %d hits, %d misses, %.3f hit ratio, %d entries\n",
+                            searchCache.hits(), searchCache.misses(), searchCache.hitRatio(), searchCache.size()));
+    sb.append(String.format(Locale.US, "transactions: %d committed, %d retries, %d aborted\n",
+                            transactions.commits(), transactions.retries(), transactions.aborts()));
+    return sb.toString();
+  }
+
+  /** Writes {@link #statsReport()} to flightservice.stats_file, if one is configured. */
+  public void dumpStats() throws IOException
+  {
+    if (statsFile == null || statsFile.trim().isEmpty()) return;
+    Files.write(Paths.get(statsFile.trim()), statsReport().getBytes(StandardCharsets.UTF_8));
+  }
+
+  Properties config()
+  {
+    return configProps;
+  }
+
+  SeatCounters seatCounters()
+  {
+    return seatCounters;
+  }
+
+  FlightStore store()
+  {
+    return store;
+  }
+
+  @Override
+  public void close()
+  {
+    rangeSearch.close();
+    store.close();
+  }
+}
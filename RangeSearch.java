@@ -0,0 +1,205 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Searches a range of days at once, each day on its own fork-join task.
+ *
+ * The range is split in halves down to single days. Every day finds its direct flights
+ * and, for the rest of {@code k}, its one-stop connections, exactly as a single-day
+ * search does; halves are then merged by total time, keeping the best {@code k} of each
+ * kind. The answer ranks every direct flight of the range before any connection, as a
+ * single-day search does, and a range of one day gives the same itineraries as a
+ * search of that day. A day that found {@code d} direct flights needs at most
+ * {@code k - d} connections, no fewer than the range as a whole needs, so no day
+ * computes fewer than the merged result might use.
+ *
+ * The work is pure computation over the in-memory {@link FlightIndex}, so the pool needs
+ * no more threads than there are cores.
+ */
+public class RangeSearch implements AutoCloseable
+{
+  // Ranges this short are searched day by day on the caller's thread
+  private static final int SEQUENTIAL_DAYS = 1;
+
+  /** Orders direct flights by (actual_time, fid). */
+  private static final Comparator<Query.Flight> BY_TIME = new Comparator<Query.Flight>()
+  {
+    @Override
+    public int compare(Query.Flight a, Query.Flight b)
+    {
+      int c = Double.compare(a.time, b.time);
+      return c != 0 ? c : Integer.compare(a.fid, b.fid);
+    }
+  };
+
+  /** Orders connections by (time1 + time2, fid1, fid2). */
+  private static final Comparator<Query.Flight[]> BY_TOTAL_TIME = new Comparator<Query.Flight[]>()
+  {
+    @Override
+    public int compare(Query.Flight[] a, Query.Flight[] b)
+    {
+      int c = Double.compare(a[0].time + a[1].time, b[0].time + b[1].time);
+      if (c != 0) return c;
+      c = Integer.compare(a[0].fid, b[0].fid);
+      return c != 0 ? c : Integer.compare(a[1].fid, b[1].fid);
+    }
+  };
+
+  private final ForkJoinPool pool;
+
+  /**
+   * @param parallelism number of days searched at the same time
+   */
+  public RangeSearch(int parallelism)
+  {
+    this.pool = new ForkJoinPool(parallelism);
+  }
+
+  /**
+   * Returns up to {@code k} itineraries from {@code originCity} to {@code destCity} on any
+   * day from {@code firstDay} to {@code lastDay}: direct flights first, by (actual_time,
+   * fid), then, unless {@code directOnly}, one-stop connections by total time.
+   *
+   * @param year year of the flights, or {@link FlightIndex#ANY}
+   * @param monthId month of the flights, or {@link FlightIndex#ANY}
+   */
+  public List<Query.Itinerary> search(FlightIndex index, String originCity, String destCity, boolean directOnly,
+                                      int year, int monthId, int firstDay, int lastDay, int k)
+  {
+    if (firstDay > lastDay) return Collections.emptyList();
+    // k comes from the user, no day needs to look for more itineraries than there are
+    k = Math.min(k, candidates(index, originCity, destCity, directOnly, firstDay, lastDay, k));
+    if (k <= 0) return Collections.emptyList();
+
+    Days task = new Days(index, originCity, destCity, directOnly, year, monthId, firstDay, lastDay, k);
+    Found found = lastDay - firstDay < SEQUENTIAL_DAYS ? task.compute() : pool.invoke(task);
+
+    List<Query.Itinerary> itineraries = new ArrayList<Query.Itinerary>(Math.min(k, found.direct.size() + found.connections.size()));
+    for (Query.Flight f : found.direct)
+      itineraries.add(new Query.Itinerary(f));
+    for (int i = 0; i < found.connections.size() && itineraries.size() < k; i++)
+      itineraries.add(new Query.Itinerary(found.connections.get(i)[0], found.connections.get(i)[1]));
+    return itineraries;
+  }
+
+  // Number of direct flights and one-stop connections on the days, counted up to k; year
+  // and month are not checked, so it may count more than the search can find
+  private static int candidates(FlightIndex index, String originCity, String destCity, boolean directOnly,
+                                int firstDay, int lastDay, int k)
+  {
+    FlightSnapshot flights = index.flights();
+    int origin = flights.cityCode(originCity);
+    int dest = flights.cityCode(destCity);
+    if (origin < 0 || dest < 0 || k <= 0) return 0;
+
+    long count = 0;
+    for (int day = Math.max(firstDay, 0); day <= Math.min(lastDay, FlightIndex.MAX_DAY) && count < k; day++)
+    {
+      int[] direct = index.route(origin, dest, day);
+      if (direct != null) count += direct.length;
+      if (directOnly) continue;
+
+      int[] out = index.connections().outbound(origin, day);
+      if (out == null) continue;
+      for (int i = 0; i < out.length && count < k; i++)
+      {
+        int[] second = index.route(flights.dest(out[i]), dest, day);
+        if (second != null) count += second.length;
+      }
+    }
+    return (int) Math.min(count, k);
+  }
+
+  /** Best direct flights and connections of some days, each list sorted and at most k long. */
+  private static final class Found
+  {
+    final List<Query.Flight> direct;
+    final List<Query.Flight[]> connections;
+
+    Found(List<Query.Flight> direct, List<Query.Flight[]> connections)
+    {
+      this.direct = direct;
+      this.connections = connections;
+    }
+  }
+
+  /** Searches the days from first to last. */
+  private static final class Days extends RecursiveTask<Found>
+  {
+    private static final long serialVersionUID = 1L;
+
+    private final FlightIndex index;
+    private final String originCity;
+    private final String destCity;
+    private final boolean directOnly;
+    private final int year;
+    private final int monthId;
+    private final int first;
+    private final int last;
+    private final int k;
+
+    Days(FlightIndex index, String originCity, String destCity, boolean directOnly, int year, int monthId,
+         int first, int last, int k)
+    {
+      this.index = index;
+      this.originCity = originCity;
+      this.destCity = destCity;
+      this.directOnly = directOnly;
+      this.year = year;
+      this.monthId = monthId;
+      this.first = first;
+      this.last = last;
+      this.k = k;
+    }
+
+    @Override
+    protected Found compute()
+    {
+      if (first == last)
+      {
+        List<Query.Flight> direct = index.direct(originCity, destCity, year, monthId, first, k);
+        List<Query.Flight[]> connections = directOnly || direct.size() >= k
+                ? Collections.<Query.Flight[]>emptyList()
+                : index.connections().search(originCity, destCity, year, monthId, first, k - direct.size());
+        return new Found(direct, connections);
+      }
+
+      int middle = (first + last) >>> 1;
+      Days left = new Days(index, originCity, destCity, directOnly, year, monthId, first, middle, k);
+      Days right = new Days(index, originCity, destCity, directOnly, year, monthId, middle + 1, last, k);
+      left.fork();
+      Found r = right.compute();
+      Found l = left.join();
+      return new Found(merge(l.direct, r.direct, BY_TIME, k), merge(l.connections, r.connections, BY_TOTAL_TIME, k));
+    }
+  }
+
+  // The first k of two sorted lists, in order
+  private static <T> List<T> merge(List<T> a, List<T> b, Comparator<? super T> order, int k)
+  {
+    if (b.isEmpty() && a.size() <= k) return a;
+    if (a.isEmpty() && b.size() <= k) return b;
+
+    List<T> merged = new ArrayList<T>(Math.min(k, a.size() + b.size()));
+    int i = 0;
+    int j = 0;
+    while (merged.size() < k && (i < a.size() || j < b.size()))
+    {
+      if (j == b.size() || (i < a.size() && order.compare(a.get(i), b.get(j)) <= 0))
+        merged.add(a.get(i++));
+      else
+        merged.add(b.get(j++));
+    }
+    return merged;
+  }
+
+  @Override
+  public void close()
+  {
+    pool.shutdown();
+  }
+}
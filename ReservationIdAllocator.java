@@ -0,0 +1,129 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Hands out reservation IDs from blocks leased from the single-row ResID table.
+ *
+ * Leasing a block moves ResID.currID forward by the block size in one short transaction,
+ * after which IDs are handed out from an in-process counter without touching the
+ * database. IDs start at 1 and are never handed out twice, so an ID is never reused
+ * after a cancellation. Within one JVM they are also consecutive; IDs left in a block
+ * when the process stops are skipped.
+ */
+public class ReservationIdAllocator
+{
+  private static final String LEASE_BLOCK = "UPDATE ResID SET currID = currID + ?";
+  private static final String BLOCK_END = "SELECT currID FROM ResID";
+
+  private final int blockSize;
+  private final AtomicReference<Block> block = new AtomicReference<Block>();
+  // Held while leasing; a lock rather than a monitor so a virtual thread waiting on the database is not pinned
+  private final ReentrantLock leasing = new ReentrantLock();
+
+  /**
+   * @param blockSize number of IDs leased from ResID at a time
+   */
+  public ReservationIdAllocator(int blockSize)
+  {
+    if (blockSize < 1) throw new IllegalArgumentException("blockSize must be positive");
+    this.blockSize = blockSize;
+  }
+
+  /**
+   * Returns the next reservation ID, leasing a new block when the current one is used up.
+   *
+   * @param c connection used to lease a block; it must be in auto-commit mode
+   */
+  public int next(PooledConnection c) throws SQLException
+  {
+    int id = take(block.get());
+    if (id > 0) return id;
+
+    leasing.lock();
+    try
+    {
+      // another session may have leased a block while we waited
+      id = take(block.get());
+      if (id > 0) return id;
+
+      Block leased = lease(c);
+      id = leased.next.getAndIncrement();
+      block.set(leased);
+      return id;
+    }
+    finally
+    {
+      leasing.unlock();
+    }
+  }
+
+  /** Drops the current block, the next ID is leased from whatever ResID holds then. */
+  public void reset()
+  {
+    leasing.lock();
+    try
+    {
+      block.set(null);
+    }
+    finally
+    {
+      leasing.unlock();
+    }
+  }
+
+  private static int take(Block b)
+  {
+    if (b == null) return 0;
+    int id = b.next.getAndIncrement();
+    return id <= b.last ? id : 0;
+  }
+
+  private Block lease(PooledConnection c) throws SQLException
+  {
+    Connection conn = c.connection();
+    conn.setAutoCommit(false);
+    try
+    {
+      // the update holds ResID's row lock until commit, so the read below sees our own lease
+      PreparedStatement leaseStatement = c.prepare(LEASE_BLOCK);
+      leaseStatement.setInt(1, blockSize);
+      c.executeUpdate(leaseStatement);
+
+      int last;
+      try (ResultSet rs = c.executeQuery(c.prepare(BLOCK_END)))
+      {
+        rs.next();
+        last = rs.getInt("currID");
+      }
+
+      conn.commit();
+      return new Block(last - blockSize + 1, last);
+    }
+    catch (SQLException e)
+    {
+      conn.rollback();
+      throw e;
+    }
+    finally
+    {
+      conn.setAutoCommit(true);
+    }
+  }
+
+  private static final class Block
+  {
+    final AtomicInteger next;
+    final int last;
+
+    Block(int first, int last)
+    {
+      this.next = new AtomicInteger(first);
+      this.last = last;
+    }
+  }
+}
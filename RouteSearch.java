@@ -0,0 +1,201 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Itinerary search with any number of legs, as a best-first search over the flight graph.
+ *
+ * The graph has a node per (city, day) and an edge per flight, taken from the outbound
+ * lists of the {@link ConnectionSearch}; like one-stop searches, every leg of a route
+ * flies on the same day. Flights carry a duration but no departure time, so a connection
+ * cannot be checked against a timetable. Instead every connection is charged a minimum
+ * connection time, and routes are ranked by their elapsed time: the flights' durations
+ * plus that time for every change of plane.
+ *
+ * Partial routes wait in a queue ordered by a lower bound of their elapsed time at the
+ * destination: the time so far plus, unless they are there, one more connection and the
+ * fastest flight into the destination that day. A route is complete when it is taken
+ * from the queue at the destination, and nothing left in the queue can then beat it, so
+ * routes come out best first and the search stops at the {@code k}-th. Ties in the queue
+ * go to fewer legs, then to lower fids; neither bound nor legs ever decrease from a route
+ * to its extensions, so routes of equal time also come out in that order. To stay bounded
+ * it never visits a city twice in one route, continues from each (city, legs) node at
+ * most {@code k} times, since the routes after the first {@code k} would almost always be
+ * beaten by theirs, and gives up after a budget of expansions, keeping the routes found.
+ */
+public class RouteSearch
+{
+  private final FlightSnapshot flights;
+  private final ConnectionSearch connections;
+
+  /** A route from the origin, as its last leg and the route before it. */
+  private static final class Path
+  {
+    final Path previous;
+    final int row;
+    // destination of the last leg
+    final int city;
+    final int legs;
+    // elapsed minutes from the first departure to the last arrival
+    final double elapsed;
+    // no completion of the route takes less
+    final double bound;
+
+    Path(Path previous, int row, int city, int legs, double elapsed, double bound)
+    {
+      this.previous = previous;
+      this.row = row;
+      this.city = city;
+      this.legs = legs;
+      this.elapsed = elapsed;
+      this.bound = bound;
+    }
+
+    int[] rows()
+    {
+      int[] rows = new int[legs];
+      Path p = this;
+      for (int i = legs - 1; i >= 0; i--, p = p.previous)
+        rows[i] = p.row;
+      return rows;
+    }
+  }
+
+  private static final Comparator<Path> BEST_FIRST = new Comparator<Path>()
+  {
+    @Override
+    public int compare(Path a, Path b)
+    {
+      int c = Double.compare(a.bound, b.bound);
+      if (c != 0) return c;
+      c = Integer.compare(a.legs, b.legs);
+      return c != 0 ? c : compareRows(a, b);
+    }
+  };
+
+  /** Orders complete routes by elapsed time, then fewer legs, then their flights' fids. */
+  private static final Comparator<Path> BY_ELAPSED = new Comparator<Path>()
+  {
+    @Override
+    public int compare(Path a, Path b)
+    {
+      int c = Double.compare(a.elapsed, b.elapsed);
+      if (c != 0) return c;
+      c = Integer.compare(a.legs, b.legs);
+      return c != 0 ? c : compareRows(a, b);
+    }
+  };
+
+  // Compares two routes of as many legs leg by leg from the first; rows are in fid order
+  private static int compareRows(Path a, Path b)
+  {
+    if (a == null) return 0;
+    int c = compareRows(a.previous, b.previous);
+    return c != 0 ? c : Integer.compare(a.row, b.row);
+  }
+
+  /**
+   * @param flights every searchable flight
+   * @param connections outbound flights per (city, day) over the same flights
+   */
+  RouteSearch(FlightSnapshot flights, ConnectionSearch connections)
+  {
+    this.flights = flights;
+    this.connections = connections;
+  }
+
+  /**
+   * Returns up to {@code k} routes of at most {@code maxLegs} flights from
+   * {@code originCity} to {@code destCity} on {@code dayOfMonth}, by elapsed time, then
+   * fewer legs, then fids. Each element lists the route's flights in flying order.
+   *
+   * @param minConnection minutes charged for every change of plane
+   * @param maxExpansions routes continued at most; fewer than {@code k} routes may be
+   *                      returned once they are used up
+   */
+  public List<Query.Flight[]> search(String originCity, String destCity, int dayOfMonth, int maxLegs, int k,
+                                     double minConnection, int maxExpansions)
+  {
+    int origin = flights.cityCode(originCity);
+    int dest = flights.cityCode(destCity);
+    if (origin < 0 || dest < 0 || origin == dest || k <= 0 || maxLegs < 1 || !FlightIndex.validDay(dayOfMonth))
+      return Collections.emptyList();
+
+    Double fastestLastLeg = connections.fastestInbound(dest, dayOfMonth);
+    if (fastestLastLeg == null) return Collections.emptyList();
+
+    PriorityQueue<Path> open = new PriorityQueue<Path>(64, BEST_FIRST);
+    expand(open, null, origin, origin, dest, dayOfMonth, maxLegs, minConnection, fastestLastLeg);
+
+    // Routes continued from each (city, legs)
+    Map<Long, int[]> continued = new HashMap<Long, int[]>();
+    // k comes from the user, the list grows as routes are found
+    List<Path> found = new ArrayList<Path>(Math.min(k, open.size()));
+    int expansions = 0;
+    while (!open.isEmpty() && found.size() < k && expansions < maxExpansions)
+    {
+      Path p = open.poll();
+      if (p.city == dest)
+      {
+        found.add(p);
+        continue;
+      }
+
+      Long node = ((long) p.city << 8) | p.legs;
+      int[] count = continued.get(node);
+      if (count == null)
+      {
+        count = new int[1];
+        continued.put(node, count);
+      }
+      if (count[0]++ >= k) continue;
+
+      expansions++;
+      expand(open, p, p.city, origin, dest, dayOfMonth, maxLegs, minConnection, fastestLastLeg);
+    }
+
+    Collections.sort(found, BY_ELAPSED);
+    List<Query.Flight[]> result = new ArrayList<Query.Flight[]>(found.size());
+    for (Path p : found)
+    {
+      int[] rows = p.rows();
+      Query.Flight[] legs = new Query.Flight[rows.length];
+      for (int i = 0; i < rows.length; i++)
+        legs[i] = flights.flight(rows[i]);
+      result.add(legs);
+    }
+    return result;
+  }
+
+  // Queues every flight out of city that extends the route to a city it has not been to
+  private void expand(PriorityQueue<Path> open, Path route, int city, int origin, int dest, int dayOfMonth,
+                      int maxLegs, double minConnection, double fastestLastLeg)
+  {
+    int[] out = connections.outbound(city, dayOfMonth);
+    if (out == null) return;
+
+    int legs = route == null ? 1 : route.legs + 1;
+    double departure = route == null ? 0 : route.elapsed + minConnection;
+    for (int row : out)
+    {
+      int next = flights.dest(row);
+      if (next != dest && legs == maxLegs) continue;
+      if (next == origin || visits(route, next)) continue;
+
+      double elapsed = departure + flights.time(row);
+      double bound = next == dest ? elapsed : elapsed + minConnection + fastestLastLeg;
+      open.add(new Path(route, row, next, legs, elapsed, bound));
+    }
+  }
+
+  private static boolean visits(Path route, int city)
+  {
+    for (Path p = route; p != null; p = p.previous)
+      if (p.city == city) return true;
+    return false;
+  }
+}
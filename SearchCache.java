@@ -0,0 +1,175 @@
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded cache of rendered search results, shared by every session.
+ *
+ * Results are keyed by (origin, dest, direct, day, order) and remember the number of
+ * itineraries {@code k} they were searched for. The first {@code n} itineraries of a
+ * search for {@code k} are exactly the results of a search for {@code n <= k}: direct
+ * flights come first in (actual_time, fid) order, or (price, fid) for a cheapest search,
+ * and one-stop connections follow in their own order. An entry therefore answers any smaller {@code k}, and any larger one
+ * when the search found fewer than {@code k} itineraries. A search for more than an
+ * entry holds replaces it.
+ *
+ * A result only depends on the Flights table, which the service never writes; the
+ * capacity it prints is Flights.capacity, not the seats left. Booking and cancelling
+ * therefore leave entries valid, and entries only need evicting to bound memory
+ * (least recently used first).
+ */
+public class SearchCache
+{
+  private final LruCache<Key, Result> results;
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+
+  /**
+   * @param capacity maximum number of searches cached
+   */
+  public SearchCache(int capacity)
+  {
+    this.results = new LruCache<Key, Result>(capacity, 64);
+  }
+
+  /**
+   * Returns a result holding the first {@code k} itineraries of the search, or null if
+   * it has to be run.
+   */
+  public Result get(String originCity, String destCity, boolean direct, int dayOfMonth, boolean cheapest, int k)
+  {
+    Result result = results.get(new Key(originCity, destCity, direct, dayOfMonth, cheapest));
+    if (result != null && result.covers(k))
+    {
+      hits.increment();
+      return result;
+    }
+    misses.increment();
+    return null;
+  }
+
+  /**
+   * Renders and caches the itineraries a search for {@code k} returned.
+   */
+  public Result put(String originCity, String destCity, boolean direct, int dayOfMonth, boolean cheapest, int k,
+                    List<Query.Itinerary> itineraries)
+  {
+    Result result = new Result(k, itineraries);
+    results.put(new Key(originCity, destCity, direct, dayOfMonth, cheapest), result);
+    return result;
+  }
+
+  public void clear()
+  {
+    results.clear();
+  }
+
+  public long hits()
+  {
+    return hits.sum();
+  }
+
+  public long misses()
+  {
+    return misses.sum();
+  }
+
+  /** Fraction of lookups answered from the cache, 0 before the first lookup. */
+  public double hitRatio()
+  {
+    long h = hits.sum();
+    long total = h + misses.sum();
+    return total == 0 ? 0 : (double) h / total;
+  }
+
+  /** Number of searches currently cached. */
+  public int size()
+  {
+    return results.size();
+  }
+
+  /** The itineraries of one search and their rendering, numbered from 0. */
+  public static final class Result
+  {
+    private final int k;
+    private final List<Query.Itinerary> itineraries;
+    private final String text;
+
+    // End of each itinerary in text
+    private final int[] ends;
+
+    private Result(int k, List<Query.Itinerary> itineraries)
+    {
+      this.k = k;
+      this.itineraries = Collections.unmodifiableList(itineraries);
+      this.ends = new int[itineraries.size()];
+      StringBuilder sb = new StringBuilder(itineraries.size() * 256);
+      for (int i = 0; i < ends.length; i++)
+      {
+        Query.Itinerary it = itineraries.get(i);
+        ItineraryFormatter.appendSearchItinerary(sb, i, it.f1, it.f2);
+        ends[i] = sb.length();
+      }
+      this.text = sb.toString();
+    }
+
+    boolean covers(int n)
+    {
+      return n <= k || itineraries.size() < k;
+    }
+
+    /** Number of itineraries a search for {@code n} returns. */
+    public int count(int n)
+    {
+      return Math.min(n, ends.length);
+    }
+
+    /** The first {@code count} itineraries. */
+    public List<Query.Itinerary> itineraries(int count)
+    {
+      return itineraries.subList(0, count);
+    }
+
+    /** The rendering of the first {@code count} itineraries. */
+    public String text(int count)
+    {
+      return count == ends.length ? text : text.substring(0, count == 0 ? 0 : ends[count - 1]);
+    }
+  }
+
+  private static final class Key
+  {
+    final String originCity;
+    final String destCity;
+    final boolean direct;
+    final int dayOfMonth;
+    final boolean cheapest;
+
+    Key(String originCity, String destCity, boolean direct, int dayOfMonth, boolean cheapest)
+    {
+      this.originCity = originCity;
+      this.destCity = destCity;
+      this.direct = direct;
+      this.dayOfMonth = dayOfMonth;
+      this.cheapest = cheapest;
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+      if (!(o instanceof Key)) return false;
+      Key other = (Key) o;
+      return direct == other.direct && dayOfMonth == other.dayOfMonth && cheapest == other.cheapest
+             && originCity.equals(other.originCity) && destCity.equals(other.destCity);
+    }
+
+    @Override
+    public int hashCode()
+    {
+      int h = originCity.hashCode();
+      h = 31 * h + destCity.hashCode();
+      h = 31 * h + dayOfMonth;
+      return 31 * h + (direct ? 1 : 0) + (cheapest ? 2 : 0);
+    }
+  }
+}
@@ -0,0 +1,108 @@
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Number of seats booked on each flight, kept in memory so a booking does not have to
+ * count the Reservations table.
+ *
+ * The counters are an array indexed by the flight's row in the store's
+ * {@link FlightSnapshot}, as {@link MemoryFlightStore} keeps its own. A flight's counter
+ * is seeded from the store's reservations the first time it is needed and from then on
+ * adjusted by the session that inserts or deletes a reservation for it, while it holds
+ * that flight's lock. The counters are therefore only exact as long as every booking and
+ * cancellation goes through this JVM. A flight missing from the snapshot is counted in
+ * the store every time.
+ */
+public class SeatCounters
+{
+  // Counter of a flight not seeded yet
+  private static final int UNSEEDED = -1;
+
+  // Created on first use, from the first store asked
+  private final AtomicReference<Counts> counts = new AtomicReference<Counts>();
+
+  /**
+   * Returns the number of seats left on {@code fid}. Callers must hold the flight's lock.
+   *
+   * @param store store that seeds the counter on first use
+   * @param fid flight to check
+   * @param capacity capacity of the flight
+   */
+  public int remaining(FlightStore store, int fid, int capacity) throws SQLException
+  {
+    Counts c = counts(store);
+    int row = c.flights.row(fid);
+    if (row < 0) return capacity - store.bookedSeats(fid);
+
+    int booked = c.booked.get(row);
+    if (booked == UNSEEDED)
+    {
+      c.booked.compareAndSet(row, UNSEEDED, store.bookedSeats(fid));
+      booked = c.booked.get(row);
+    }
+    return capacity - booked;
+  }
+
+  /**
+   * Records a seat taken on {@code fid} by a reservation that was just inserted. A counter
+   * that was never seeded is left alone, seeding it later will count the new row.
+   */
+  public void reserve(int fid)
+  {
+    add(fid, 1);
+  }
+
+  /** Records a seat given back on {@code fid} by a reservation that was just deleted. */
+  public void release(int fid)
+  {
+    add(fid, -1);
+  }
+
+  /** Forgets every counter, they are seeded again on next use. */
+  public void clear()
+  {
+    Counts c = counts.get();
+    if (c == null) return;
+    for (int row = 0; row < c.booked.length(); row++)
+      c.booked.set(row, UNSEEDED);
+  }
+
+  private void add(int fid, int delta)
+  {
+    Counts c = counts.get();
+    int row = c == null ? -1 : c.flights.row(fid);
+    if (row < 0) return;
+
+    int booked;
+    do
+    {
+      booked = c.booked.get(row);
+      if (booked == UNSEEDED) return;
+    } while (!c.booked.compareAndSet(row, booked, booked + delta));
+  }
+
+  private Counts counts(FlightStore store) throws SQLException
+  {
+    Counts c = counts.get();
+    if (c != null) return c;
+
+    c = new Counts(store.flightSnapshot());
+    return counts.compareAndSet(null, c) ? c : counts.get();
+  }
+
+  /** The flights counted and their counters, by row. */
+  private static final class Counts
+  {
+    final FlightSnapshot flights;
+    final AtomicIntegerArray booked;
+
+    Counts(FlightSnapshot flights)
+    {
+      this.flights = flights;
+      this.booked = new AtomicIntegerArray(flights.rows());
+      for (int row = 0; row < flights.rows(); row++)
+        booked.set(row, UNSEEDED);
+    }
+  }
+}
@@ -0,0 +1,328 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Serves flight service sessions over local TCP connections.
+ *
+ * Every connection is one {@link Query} session on the shared engine, run on its own
+ * thread. A client sends one command per line, as typed at the REPL, and receives the
+ * response followed by an empty line; the connection ends after {@code quit} or when the
+ * client closes it.
+ *
+ * Sessions run on virtual threads when the JVM has them (Java 21 and later), so an idle
+ * session costs a parked continuation and a small line buffer rather than a platform
+ * thread. Older JVMs fall back to platform threads with small stacks. Two limits keep a
+ * crowd of sessions from overrunning the backend: connections beyond
+ * {@code maxSessions} are refused, and at most {@code maxInFlight} commands execute at
+ * once while the others wait their turn. The second limit also bounds the number of
+ * virtual threads that can be pinned to a carrier inside a JDBC driver.
+ *
+ * {@link #fromConfig} reads the limits from the engine's configuration:
+ * <ul>
+ * <li>{@code flightservice.server_sessions}, sessions served at once (default
+ * {@value #DEFAULT_MAX_SESSIONS})</li>
+ * <li>{@code flightservice.server_inflight}, commands executing at once (default: the
+ * store's parallelism, e.g. the connection pool size)</li>
+ * <li>{@code flightservice.server_threads}, {@code virtual} (the default, falling back to
+ * platform threads when unavailable) or {@code platform}</li>
+ * </ul>
+ */
+public class SessionServer implements AutoCloseable
+{
+  public static final int DEFAULT_MAX_SESSIONS = 10000;
+
+  // Longest command line accepted; longer lines end the session
+  private static final int MAX_LINE = 8192;
+
+  // Stack of a platform session thread; sessions only run shallow service calls
+  private static final long PLATFORM_STACK_SIZE = 256 * 1024;
+
+  private static final byte[] TOO_MANY_SESSIONS = "Error: Too many sessions, try again later\n\n".getBytes(StandardCharsets.UTF_8);
+
+  private final QueryEngine engine;
+  private final ServerSocket serverSocket;
+  private final ExecutorService executor;
+  private final boolean virtualThreads;
+  private final Semaphore sessions;
+  private final Semaphore inFlight;
+  private final Set<Socket> clients = ConcurrentHashMap.newKeySet();
+  private volatile boolean closed;
+
+  /**
+   * Binds a server to {@code port} on the loopback address; {@link #serve()} starts
+   * accepting connections.
+   *
+   * @param engine engine the sessions run on
+   * @param port TCP port, 0 for any free one
+   * @param maxSessions sessions served at once
+   * @param maxInFlight commands executing at once
+   * @param virtualThreads whether to run sessions on virtual threads if the JVM has them
+   */
+  public SessionServer(QueryEngine engine, int port, int maxSessions, int maxInFlight, boolean virtualThreads)
+          throws IOException
+  {
+    if (maxSessions < 1) throw new IllegalArgumentException("maxSessions must be positive");
+    if (maxInFlight < 1) throw new IllegalArgumentException("maxInFlight must be positive");
+    this.engine = engine;
+    this.sessions = new Semaphore(maxSessions);
+    this.inFlight = new Semaphore(maxInFlight, true);
+
+    ExecutorService virtual = virtualThreads ? newVirtualThreadExecutor() : null;
+    this.virtualThreads = virtual != null;
+    this.executor = virtual != null ? virtual : Executors.newCachedThreadPool(new PlatformThreads());
+
+    ServerSocket socket = new ServerSocket();
+    try
+    {
+      socket.setReuseAddress(true);
+      socket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 1024);
+    }
+    catch (IOException e)
+    {
+      socket.close();
+      executor.shutdown();
+      throw e;
+    }
+    this.serverSocket = socket;
+  }
+
+  /** Binds a server to {@code port} with the limits set in the engine's configuration. */
+  public static SessionServer fromConfig(QueryEngine engine, int port) throws IOException
+  {
+    Properties config = engine.config();
+    String threads = config.getProperty("flightservice.server_threads", "virtual").trim();
+    if (!threads.equals("virtual") && !threads.equals("platform"))
+      throw new IllegalArgumentException("Unknown flightservice.server_threads " + threads);
+
+    return new SessionServer(engine, port,
+                             QueryEngine.intProperty(config, "flightservice.server_sessions", DEFAULT_MAX_SESSIONS),
+                             QueryEngine.intProperty(config, "flightservice.server_inflight", engine.store().parallelism()),
+                             threads.equals("virtual"));
+  }
+
+  // Executors.newVirtualThreadPerTaskExecutor(), or null before Java 21
+  private static ExecutorService newVirtualThreadExecutor()
+  {
+    try
+    {
+      Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      return (ExecutorService) factory.invoke(null);
+    }
+    catch (ReflectiveOperationException | RuntimeException e)
+    {
+      return null;
+    }
+  }
+
+  private static final class PlatformThreads implements ThreadFactory
+  {
+    private final AtomicInteger count = new AtomicInteger();
+
+    @Override
+    public Thread newThread(Runnable r)
+    {
+      Thread t = new Thread(null, r, "session-" + count.incrementAndGet(), PLATFORM_STACK_SIZE);
+      t.setDaemon(true);
+      return t;
+    }
+  }
+
+  /** The port the server listens on. */
+  public int port()
+  {
+    return serverSocket.getLocalPort();
+  }
+
+  /** Whether sessions run on virtual threads. */
+  public boolean virtualThreads()
+  {
+    return virtualThreads;
+  }
+
+  /** Sessions currently connected. */
+  public int activeSessions()
+  {
+    return clients.size();
+  }
+
+  /** Accepts connections until the server is closed. */
+  public void serve() throws IOException
+  {
+    while (!closed)
+    {
+      final Socket client;
+      try
+      {
+        client = serverSocket.accept();
+      }
+      catch (IOException e)
+      {
+        if (closed) return;
+        throw e;
+      }
+
+      if (!sessions.tryAcquire())
+      {
+        refuse(client);
+        continue;
+      }
+      clients.add(client);
+      try
+      {
+        executor.execute(new Runnable()
+        {
+          @Override
+          public void run()
+          {
+            try
+            {
+              session(client);
+            }
+            finally
+            {
+              clients.remove(client);
+              sessions.release();
+            }
+          }
+        });
+      }
+      catch (RuntimeException e)
+      {
+        // rejected because the server is closing
+        if (!closed) e.printStackTrace();
+        clients.remove(client);
+        sessions.release();
+        closeQuietly(client);
+      }
+    }
+  }
+
+  private static void refuse(Socket client)
+  {
+    try
+    {
+      client.getOutputStream().write(TOO_MANY_SESSIONS);
+    }
+    catch (IOException e)
+    {
+      // the client is gone already
+    }
+    closeQuietly(client);
+  }
+
+  // Runs the commands of one connection until quit, end of input or an I/O error
+  private void session(Socket client)
+  {
+    try
+    {
+      client.setTcpNoDelay(true);
+      InputStream in = client.getInputStream();
+      OutputStream out = client.getOutputStream();
+      Query q = engine.newSession();
+
+      byte[] line = new byte[128];
+      int length = 0;
+      byte[] input = new byte[512];
+      int n;
+      while ((n = in.read(input)) > 0)
+      {
+        for (int i = 0; i < n; i++)
+        {
+          byte b = input[i];
+          if (b != '\n')
+          {
+            if (length == MAX_LINE) return;
+            if (length == line.length) line = Arrays.copyOf(line, Math.min(MAX_LINE, length * 2));
+            line[length++] = b;
+            continue;
+          }
+
+          if (length > 0 && line[length - 1] == '\r') length--;
+          String response = execute(q, new String(line, 0, length, StandardCharsets.UTF_8));
+          length = 0;
+          out.write(frame(response));
+          if (response.equals("Goodbye\n")) return;
+        }
+      }
+    }
+    catch (IOException e)
+    {
+      // the client disconnected
+    }
+    finally
+    {
+      closeQuietly(client);
+    }
+  }
+
+  private String execute(Query q, String command) throws IOException
+  {
+    try
+    {
+      inFlight.acquire();
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting to execute a command", e);
+    }
+    try
+    {
+      // execute answers a failing command itself, so the session goes on
+      return FlightService.execute(q, command);
+    }
+    finally
+    {
+      inFlight.release();
+    }
+  }
+
+  // The response, ending in a newline, then an empty line
+  private static byte[] frame(String response)
+  {
+    return (response.endsWith("\n") ? response + "\n" : response + "\n\n").getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static void closeQuietly(Socket socket)
+  {
+    try
+    {
+      socket.close();
+    }
+    catch (IOException e)
+    {
+      // nothing left to release
+    }
+  }
+
+  /** Stops accepting connections and disconnects every session. The engine stays open. */
+  @Override
+  public void close()
+  {
+    closed = true;
+    try
+    {
+      serverSocket.close();
+    }
+    catch (IOException e) {e.printStackTrace();}
+    executor.shutdown();
+    for (Socket client : clients)
+      closeQuietly(client);
+  }
+}
@@ -0,0 +1,60 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Executions and time spent per SQL statement, across every connection of a pool.
+ *
+ * {@link PooledConnection} looks up the histogram of a statement's SQL text once, when it
+ * prepares the statement, and its {@code execute*} methods time every execution into it.
+ * Recording an execution costs two clock reads, an identity lookup of the statement and a
+ * lock-free histogram update; setting parameters and reading results are not touched.
+ */
+public class StatementStats
+{
+  private final ConcurrentHashMap<String, LatencyHistogram> statements = new ConcurrentHashMap<String, LatencyHistogram>();
+
+  /** Returns the histogram the executions of {@code sql} are recorded in. */
+  public LatencyHistogram histogram(String sql)
+  {
+    LatencyHistogram histogram = statements.get(sql);
+    if (histogram == null)
+    {
+      LatencyHistogram created = new LatencyHistogram();
+      histogram = statements.putIfAbsent(sql, created);
+      if (histogram == null) histogram = created;
+    }
+    return histogram;
+  }
+
+  /**
+   * Appends a line per statement, most total time first: executions, total and mean time,
+   * 99th percentile and the SQL text.
+   */
+  public StringBuilder appendTo(StringBuilder sb)
+  {
+    List<Map.Entry<String, LatencyHistogram>> entries = new ArrayList<Map.Entry<String, LatencyHistogram>>(statements.entrySet());
+    Collections.sort(entries, new Comparator<Map.Entry<String, LatencyHistogram>>()
+    {
+      @Override
+      public int compare(Map.Entry<String, LatencyHistogram> a, Map.Entry<String, LatencyHistogram> b)
+      {
+        return Long.compare(b.getValue().total(), a.getValue().total());
+      }
+    });
+
+    sb.append(String.format(Locale.US, "%10s %12s %10s %10s  %s\n", "executions", "total_ms", "mean_us", "p99_us", "sql"));
+    for (Map.Entry<String, LatencyHistogram> e : entries)
+    {
+      LatencyHistogram h = e.getValue();
+      if (h.count() == 0) continue;
+      sb.append(String.format(Locale.US, "%10d %12.1f %10.1f %10.1f  %s\n", h.count(), h.total() / 1e6,
+                              h.mean() / 1e3, h.percentile(0.99) / 1e3, e.getKey()));
+    }
+    return sb;
+  }
+}
@@ -0,0 +1,81 @@
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A fixed table of locks indexed by key hash.
+ *
+ * Sessions lock only the stripes of the rows they are about to touch (a flight's fid,
+ * a user's name) instead of whole tables, so unrelated bookings proceed in parallel.
+ * Two keys may share a stripe, which costs some concurrency but never correctness.
+ *
+ * To stay deadlock free every caller takes at most one stripe of a table with
+ * {@link #lock(Object)}, or several at once with {@link #lockAll(int...)}, which always
+ * acquires them in ascending stripe order. Across tables the order is users, then flights.
+ */
+public class StripedLocks
+{
+  private final ReentrantLock[] stripes;
+  private final int mask;
+
+  /**
+   * @param stripes minimum number of stripes, rounded up to a power of two
+   */
+  public StripedLocks(int stripes)
+  {
+    int n = Integer.highestOneBit(Math.max(1, stripes - 1)) << 1;
+    this.stripes = new ReentrantLock[n];
+    for (int i = 0; i < n; i++)
+      this.stripes[i] = new ReentrantLock();
+    this.mask = n - 1;
+  }
+
+  private int indexFor(int hash)
+  {
+    // spread the high bits so sequential fids do not walk the table in lock step
+    hash ^= (hash >>> 16);
+    hash *= 0x85ebca6b;
+    hash ^= (hash >>> 13);
+    return hash & mask;
+  }
+
+  /** Locks and returns the stripe of {@code key}. */
+  public ReentrantLock lock(Object key)
+  {
+    ReentrantLock lock = stripes[indexFor(key.hashCode())];
+    lock.lock();
+    return lock;
+  }
+
+  /**
+   * Locks the stripes of all {@code keys} in ascending stripe order, taking each stripe once.
+   *
+   * @return the locks taken, to be handed to {@link #unlock(ReentrantLock...)}
+   */
+  public ReentrantLock[] lockAll(int... keys)
+  {
+    int[] indexes = new int[keys.length];
+    for (int i = 0; i < keys.length; i++)
+      indexes[i] = indexFor(keys[i]);
+    Arrays.sort(indexes);
+
+    int distinct = 0;
+    for (int i = 0; i < indexes.length; i++)
+      if (i == 0 || indexes[i] != indexes[i - 1])
+        indexes[distinct++] = indexes[i];
+
+    ReentrantLock[] locks = new ReentrantLock[distinct];
+    for (int i = 0; i < distinct; i++)
+    {
+      locks[i] = stripes[indexes[i]];
+      locks[i].lock();
+    }
+    return locks;
+  }
+
+  /** Releases locks in the reverse of the order they were taken. */
+  public static void unlock(ReentrantLock... locks)
+  {
+    for (int i = locks.length - 1; i >= 0; i--)
+      locks[i].unlock();
+  }
+}
@@ -0,0 +1,174 @@
+import java.sql.SQLException;
+import java.sql.SQLTransactionRollbackException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs a unit of store work in one serializable transaction and retries it when the
+ * database picks it as a deadlock victim or fails to serialize it.
+ *
+ * Between attempts the runner sleeps for a random time of up to {@code backoffMillis},
+ * doubled after every failed attempt, so that transactions that collided once do not
+ * collide again in lockstep. Work may run several times and must not change anything
+ * outside the store; callers apply in-memory effects after {@link #run(Work)} returns.
+ *
+ * Sessions take their row locks (see {@link StripedLocks}) before running a transaction
+ * and never while inside one, so a database lock is never held while waiting for a
+ * lock the database cannot see.
+ */
+public class TransactionRunner
+{
+  // Longest single backoff, however many attempts failed
+  private static final long MAX_BACKOFF_MILLIS = 1000;
+
+  // SQL Server: chosen as deadlock victim, snapshot isolation update conflict
+  private static final int SQLSERVER_DEADLOCK = 1205;
+  private static final int SQLSERVER_UPDATE_CONFLICT = 3960;
+
+  private final FlightStore store;
+  private final int maxAttempts;
+  private final long backoffMillis;
+
+  private final LongAdder commits = new LongAdder();
+  private final LongAdder retries = new LongAdder();
+  private final LongAdder aborts = new LongAdder();
+
+  /** Work run by the runner, possibly several times. */
+  public interface Work<T>
+  {
+    T run() throws SQLException;
+  }
+
+  /**
+   * @param store store whose transactions are run
+   * @param maxAttempts times a transaction is tried before its failure is thrown
+   * @param backoffMillis longest sleep after the first failed attempt
+   */
+  public TransactionRunner(FlightStore store, int maxAttempts, long backoffMillis)
+  {
+    if (maxAttempts < 1) throw new IllegalArgumentException("maxAttempts must be positive");
+    this.store = store;
+    this.maxAttempts = maxAttempts;
+    this.backoffMillis = backoffMillis;
+  }
+
+  /**
+   * Runs {@code work} in a transaction and commits it, retrying deadlocks and
+   * serialization failures.
+   *
+   * @return what the last, committed attempt returned
+   * @throws SQLException if an attempt failed for another reason, or every attempt failed
+   */
+  public <T> T run(Work<T> work) throws SQLException
+  {
+    return run(work, true);
+  }
+
+  /**
+   * Runs {@code work} outside a transaction, retrying it as {@link #run(Work)} does. For
+   * work that is a single store operation, which is atomic by itself, this saves starting
+   * and ending a transaction.
+   */
+  public <T> T retry(Work<T> work) throws SQLException
+  {
+    return run(work, false);
+  }
+
+  private <T> T run(Work<T> work, boolean transaction) throws SQLException
+  {
+    for (int attempt = 1; ; attempt++)
+    {
+      try
+      {
+        T result = transaction ? attempt(work) : work.run();
+        commits.increment();
+        return result;
+      }
+      catch (SQLException e)
+      {
+        if (!retryable(e) || attempt >= maxAttempts)
+        {
+          aborts.increment();
+          throw e;
+        }
+        retries.increment();
+        backoff(attempt);
+      }
+    }
+  }
+
+  private <T> T attempt(Work<T> work) throws SQLException
+  {
+    store.begin();
+    T result;
+    try
+    {
+      result = work.run();
+    }
+    catch (SQLException | RuntimeException e)
+    {
+      try
+      {
+        store.rollback();
+      }
+      catch (SQLException rollbackFailure)
+      {
+        e.addSuppressed(rollbackFailure);
+      }
+      throw e;
+    }
+    // ends the transaction, also when it fails
+    store.commit();
+    return result;
+  }
+
+  private void backoff(int attempt) throws SQLException
+  {
+    long ceiling = Math.min(MAX_BACKOFF_MILLIS, backoffMillis << Math.min(attempt - 1, 20));
+    if (ceiling <= 0) return;
+    try
+    {
+      Thread.sleep(ThreadLocalRandom.current().nextLong(ceiling + 1));
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      throw new SQLException("Interrupted while backing off a transaction retry", e);
+    }
+  }
+
+  /**
+   * Whether {@code e} rolled a transaction back because of other transactions, so that
+   * running it again can succeed: SQLSTATE class 40 (transaction rollback, e.g. 40001
+   * serialization failure) or the equivalent SQL Server error numbers.
+   */
+  static boolean retryable(SQLException e)
+  {
+    for (SQLException s = e; s != null; s = s.getNextException())
+    {
+      if (s instanceof SQLTransactionRollbackException) return true;
+      String state = s.getSQLState();
+      if (state != null && state.startsWith("40")) return true;
+      if (s.getErrorCode() == SQLSERVER_DEADLOCK || s.getErrorCode() == SQLSERVER_UPDATE_CONFLICT) return true;
+    }
+    return false;
+  }
+
+  /** Work completed, on any attempt. */
+  public long commits()
+  {
+    return commits.sum();
+  }
+
+  /** Attempts that failed and were run again. */
+  public long retries()
+  {
+    return retries.sum();
+  }
+
+  /** Work given up on, after a failure that cannot be retried or after the last attempt. */
+  public long aborts()
+  {
+    return aborts.sum();
+  }
+}
@@ -0,0 +1,292 @@
+package flightservice.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput and latency of each FlightService command, run through
+ * {@code FlightService.execute} exactly as the REPL and batch mode run them.
+ *
+ * Every trial gets a fresh embedded database with {@code flights} synthetic flights
+ * between {@code cities} cities (see {@link SyntheticFlights}), served through the
+ * {@code store} chosen (jdbc, or memory for a MemoryFlightStore copy). Each benchmark thread
+ * logs in as its own user; commands that change state are measured as a cycle that
+ * undoes itself (book then cancel, book then pay then cancel) so that the database stays
+ * the same size however long a run lasts. Run with {@code -t} to measure contention, and
+ * with {@code -p bookingBatchSize=1} to book without group commit.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CommandBenchmarks
+{
+  private static final int SEARCH_COMMANDS = 1024;
+  private static final int BOOKING_DAY = 1;
+
+  @State(Scope.Benchmark)
+  public static class Service
+  {
+    @Param("10000")
+    public int flights;
+
+    @Param("40")
+    public int cities;
+
+    @Param("10")
+    public int itineraries;
+
+    @Param("42")
+    public long seed;
+
+    @Param("16")
+    public int poolSize;
+
+    @Param("jdbc")
+    public String store;
+
+    @Param("64")
+    public int bookingBatchSize;
+
+    @Param("3")
+    public int routeLegs;
+
+    SyntheticFlights database;
+    Object engine;
+    final AtomicInteger users = new AtomicInteger();
+
+    @Setup(Level.Trial)
+    public void open() throws Throwable
+    {
+      database = SyntheticFlights.create(flights, cities, seed, poolSize, store,
+                                         "flightservice.booking_batch_size=" + bookingBatchSize);
+      engine = ServiceBridge.openEngine(database.configFilename());
+      ServiceBridge.clearTables(engine);
+    }
+
+    @TearDown(Level.Trial)
+    public void close() throws Throwable
+    {
+      ServiceBridge.closeEngine(engine);
+      database.close();
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class Session
+  {
+    Object session;
+    String username;
+    String login;
+    String[] directSearches;
+    String[] indirectSearches;
+    String[] cheapestSearches;
+    String[] monthSearches;
+    String[] routeSearches;
+    int next;
+
+    @Setup(Level.Trial)
+    public void login(Service service) throws Throwable
+    {
+      int id = service.users.incrementAndGet();
+      username = "bench" + id;
+      login = "login " + username + " pw";
+      session = ServiceBridge.newSession(service.engine);
+      expect(ServiceBridge.execute(session, "create " + username + " pw 1000000000"), "Created user");
+      expect(ServiceBridge.execute(session, login), "Logged in");
+
+      Random random = new Random(service.seed + id);
+      directSearches = searches(random, service, 1);
+      indirectSearches = searches(random, service, 0);
+      cheapestSearches = new String[SEARCH_COMMANDS];
+      for (int i = 0; i < SEARCH_COMMANDS; i++)
+        cheapestSearches[i] = indirectSearches[i] + " cheapest";
+      monthSearches = monthSearches(random, service);
+      routeSearches = routeSearches(random, service);
+
+      // A few paid reservations on other days for the reservations listing
+      for (int day = BOOKING_DAY + 1; day <= BOOKING_DAY + 3; day++)
+      {
+        searchRoute(service, random, day);
+        String booked = ServiceBridge.execute(session, "book 0");
+        expect(ServiceBridge.execute(session, "pay " + reservationId(booked)), "Paid reservation");
+      }
+
+      // Leaves itinerary 0 of a search on BOOKING_DAY ready for the booking benchmarks
+      searchRoute(service, random, BOOKING_DAY);
+    }
+
+    private String[] searches(Random random, Service service, int direct)
+    {
+      String[] commands = new String[SEARCH_COMMANDS];
+      for (int i = 0; i < commands.length; i++)
+      {
+        int origin = random.nextInt(service.cities);
+        int dest = (origin + 1 + random.nextInt(service.cities - 1)) % service.cities;
+        commands[i] = "search " + SyntheticFlights.city(origin) + " " + SyntheticFlights.city(dest) + " " + direct + " "
+                      + (1 + random.nextInt(31)) + " " + service.itineraries;
+      }
+      return commands;
+    }
+
+    private String[] monthSearches(Random random, Service service)
+    {
+      String[] commands = new String[SEARCH_COMMANDS];
+      for (int i = 0; i < commands.length; i++)
+      {
+        int origin = random.nextInt(service.cities);
+        int dest = (origin + 1 + random.nextInt(service.cities - 1)) % service.cities;
+        commands[i] = "searchrange " + SyntheticFlights.city(origin) + " " + SyntheticFlights.city(dest) + " 0 1 31 "
+                      + service.itineraries;
+      }
+      return commands;
+    }
+
+    private String[] routeSearches(Random random, Service service)
+    {
+      String[] commands = new String[SEARCH_COMMANDS];
+      for (int i = 0; i < commands.length; i++)
+      {
+        int origin = random.nextInt(service.cities);
+        int dest = (origin + 1 + random.nextInt(service.cities - 1)) % service.cities;
+        commands[i] = "route " + SyntheticFlights.city(origin) + " " + SyntheticFlights.city(dest) + " " + service.routeLegs + " "
+                      + (1 + random.nextInt(31)) + " " + service.itineraries;
+      }
+      return commands;
+    }
+
+    // Searches random city pairs on the given day until one has an itinerary
+    private void searchRoute(Service service, Random random, int day) throws Throwable
+    {
+      while (true)
+      {
+        int origin = random.nextInt(service.cities);
+        int dest = (origin + 1 + random.nextInt(service.cities - 1)) % service.cities;
+        String result = ServiceBridge.execute(session, "search " + SyntheticFlights.city(origin) + " "
+                                                       + SyntheticFlights.city(dest) + " 0 " + day + " 1");
+        if (result.startsWith("Itinerary"))
+          return;
+      }
+    }
+
+    String nextDirectSearch()
+    {
+      return directSearches[next++ & (SEARCH_COMMANDS - 1)];
+    }
+
+    String nextIndirectSearch()
+    {
+      return indirectSearches[next++ & (SEARCH_COMMANDS - 1)];
+    }
+
+    String nextCheapestSearch()
+    {
+      return cheapestSearches[next++ & (SEARCH_COMMANDS - 1)];
+    }
+
+    String nextMonthSearch()
+    {
+      return monthSearches[next++ & (SEARCH_COMMANDS - 1)];
+    }
+
+    String nextRouteSearch()
+    {
+      return routeSearches[next++ & (SEARCH_COMMANDS - 1)];
+    }
+  }
+
+  private static void expect(String response, String prefix)
+  {
+    if (!response.startsWith(prefix))
+      throw new IllegalStateException("Expected '" + prefix + "' but got: " + response);
+  }
+
+  private static String reservationId(String bookResponse)
+  {
+    expect(bookResponse, "Booked flight(s), reservation ID: ");
+    return bookResponse.substring(bookResponse.lastIndexOf(' ') + 1).trim();
+  }
+
+  @Benchmark
+  public String searchDirect(Session s) throws Throwable
+  {
+    return ServiceBridge.execute(s.session, s.nextDirectSearch());
+  }
+
+  @Benchmark
+  public String searchIndirect(Session s) throws Throwable
+  {
+    return ServiceBridge.execute(s.session, s.nextIndirectSearch());
+  }
+
+  /** The searchIndirect searches, ranked by fare instead of flight time. */
+  @Benchmark
+  public String searchCheapest(Session s) throws Throwable
+  {
+    return ServiceBridge.execute(s.session, s.nextCheapestSearch());
+  }
+
+  /** Direct and one-stop itineraries over all 31 days, compare with searchIndirect. */
+  @Benchmark
+  public String searchMonth(Session s) throws Throwable
+  {
+    return ServiceBridge.execute(s.session, s.nextMonthSearch());
+  }
+
+  /** Routes of up to routeLegs flights, never cached. */
+  @Benchmark
+  public String searchRoute(Session s) throws Throwable
+  {
+    return ServiceBridge.execute(s.session, s.nextRouteSearch());
+  }
+
+  @Benchmark
+  public String login(Service service, Session s) throws Throwable
+  {
+    return ServiceBridge.execute(ServiceBridge.newSession(service.engine), s.login);
+  }
+
+  @Benchmark
+  public String reservations(Session s) throws Throwable
+  {
+    return ServiceBridge.execute(s.session, "reservations");
+  }
+
+  @Benchmark
+  public String bookCancel(Session s) throws Throwable
+  {
+    String id = reservationId(ServiceBridge.execute(s.session, "book 0"));
+    return ServiceBridge.execute(s.session, "cancel " + id);
+  }
+
+  @Benchmark
+  public String bookPayCancel(Session s) throws Throwable
+  {
+    String id = reservationId(ServiceBridge.execute(s.session, "book 0"));
+    expect(ServiceBridge.execute(s.session, "pay " + id), "Paid reservation");
+    return ServiceBridge.execute(s.session, "cancel " + id);
+  }
+
+  /** Tokenizing and dispatch alone: a command that touches no database state. */
+  @Benchmark
+  public String dispatch(Session s) throws Throwable
+  {
+    return ServiceBridge.execute(s.session, "reservation \"City001\" City002 0 1 10");
+  }
+}
@@ -0,0 +1,189 @@
+package flightservice.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Decoding a command line into a command and its arguments, without running it.
+ *
+ * {@code legacy} is the path FlightService took before {@code CommandDecoder}: a regex
+ * tokenizer building a list of strings, a chain of {@code equals} on the command word and
+ * {@code Integer.parseInt}/{@code Double.parseDouble} on the arguments. {@code decoder}
+ * decodes the same lines with a reused {@code CommandDecoder} and asks it for the same
+ * arguments the service's handlers read. Both hand every argument to a blackhole.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DecoderBenchmarks
+{
+  private static final int LINES = 1024;
+
+  // CommandDecoder opcodes
+  private static final int LOGIN = 0;
+  private static final int CREATE = 1;
+  private static final int SEARCH = 2;
+  private static final int BOOK = 3;
+  private static final int PAY = 4;
+  private static final int CANCEL = 6;
+
+  @State(Scope.Thread)
+  public static class Lines
+  {
+    @Param("42")
+    public long seed;
+
+    String[] lines;
+    Object decoder;
+    int next;
+
+    @Setup(Level.Trial)
+    public void generate() throws Throwable
+    {
+      Random random = new Random(seed);
+      lines = new String[LINES];
+      for (int i = 0; i < LINES; i++)
+      {
+        switch (random.nextInt(8))
+        {
+          case 0:
+            lines[i] = "login bench" + random.nextInt(1000) + " pw";
+            break;
+          case 1:
+            lines[i] = "create bench" + random.nextInt(1000) + " pw " + random.nextInt(100000) + "." + random.nextInt(100);
+            break;
+          case 2:
+          case 3:
+            lines[i] = "search \"" + SyntheticFlights.city(random.nextInt(40)) + "\" \"" + SyntheticFlights.city(random.nextInt(40))
+                       + "\" " + random.nextInt(2) + " " + (1 + random.nextInt(31)) + " " + (1 + random.nextInt(20));
+            break;
+          case 4:
+            lines[i] = "book " + random.nextInt(20);
+            break;
+          case 5:
+            lines[i] = "pay " + random.nextInt(1000000);
+            break;
+          case 6:
+            lines[i] = "cancel " + random.nextInt(1000000);
+            break;
+          default:
+            lines[i] = "reservations";
+            break;
+        }
+      }
+      decoder = ServiceBridge.newDecoder();
+    }
+
+    String nextLine()
+    {
+      return lines[next++ & (LINES - 1)];
+    }
+  }
+
+  @Benchmark
+  public void legacy(Lines l, Blackhole bh)
+  {
+    String[] tokens = tokenize(l.nextLine());
+    if (tokens.length == 0)
+      bh.consume(-1);
+    else if (tokens[0].equals("login"))
+    {
+      bh.consume(tokens[1]);
+      bh.consume(tokens[2]);
+    }
+    else if (tokens[0].equals("create"))
+    {
+      bh.consume(tokens[1]);
+      bh.consume(tokens[2]);
+      bh.consume(Double.parseDouble(tokens[3]));
+    }
+    else if (tokens[0].equals("search"))
+    {
+      bh.consume(tokens[1]);
+      bh.consume(tokens[2]);
+      bh.consume(tokens[3].equals("1"));
+      bh.consume(Integer.valueOf(tokens[4]).intValue());
+      bh.consume(Integer.valueOf(tokens[5]).intValue());
+    }
+    else if (tokens[0].equals("book"))
+      bh.consume(Integer.parseInt(tokens[1]));
+    else if (tokens[0].equals("pay"))
+      bh.consume(Integer.parseInt(tokens[1]));
+    else if (tokens[0].equals("reservations"))
+      bh.consume(tokens.length);
+    else if (tokens[0].equals("cancel"))
+      bh.consume(Integer.parseInt(tokens[1]));
+    else
+      bh.consume(tokens[0]);
+  }
+
+  @Benchmark
+  public void decoder(Lines l, Blackhole bh) throws Throwable
+  {
+    Object d = l.decoder;
+    int op = ServiceBridge.decode(d, l.nextLine());
+    switch (op)
+    {
+      case LOGIN:
+        bh.consume(ServiceBridge.token(d, 1));
+        bh.consume(ServiceBridge.token(d, 2));
+        break;
+      case CREATE:
+        bh.consume(ServiceBridge.token(d, 1));
+        bh.consume(ServiceBridge.token(d, 2));
+        bh.consume(ServiceBridge.doubleArg(d, 3));
+        break;
+      case SEARCH:
+        bh.consume(ServiceBridge.token(d, 1));
+        bh.consume(ServiceBridge.token(d, 2));
+        bh.consume(ServiceBridge.tokenEquals(d, 3, "1"));
+        bh.consume(ServiceBridge.intArg(d, 4));
+        bh.consume(ServiceBridge.intArg(d, 5));
+        break;
+      case BOOK:
+      case PAY:
+      case CANCEL:
+        bh.consume(ServiceBridge.intArg(d, 1));
+        break;
+      default:
+        bh.consume(ServiceBridge.tokens(d));
+        break;
+    }
+  }
+
+  // FlightService.tokenize as it was before CommandDecoder
+  private static String[] tokenize(String command)
+  {
+    String regex = "\"([^\"]*)\"|(\\S+)";
+    Matcher m = Pattern.compile(regex).matcher(command);
+    List<String> tokens = new ArrayList<>();
+    while (m.find())
+    {
+      if (m.group(1) != null)
+        tokens.add(m.group(1));
+      else
+        tokens.add(m.group(2));
+    }
+    return tokens.toArray(new String[0]);
+  }
+}
@@ -0,0 +1,140 @@
+package flightservice.bench;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+/**
+ * Calls into the flight service from a named package.
+ *
+ * The service classes live in the default package, which Java code in any other package
+ * cannot name, while JMH requires benchmarks to be in a package. Every entry point is
+ * therefore bound once through a method handle; invoking it costs about the same as a
+ * direct call, so the bridge does not skew measurements.
+ */
+public final class ServiceBridge
+{
+  private static final MethodHandle OPEN;
+  private static final MethodHandle NEW_SESSION;
+  private static final MethodHandle CLEAR_TABLES;
+  private static final MethodHandle CLOSE;
+  private static final MethodHandle EXECUTE;
+  private static final MethodHandle NEW_DECODER;
+  private static final MethodHandle DECODE;
+  private static final MethodHandle TOKENS;
+  private static final MethodHandle TOKEN;
+  private static final MethodHandle TOKEN_EQUALS;
+  private static final MethodHandle INT_ARG;
+  private static final MethodHandle DOUBLE_ARG;
+
+  static
+  {
+    try
+    {
+      MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+      Class<?> engineClass = Class.forName("QueryEngine");
+      Class<?> queryClass = Class.forName("Query");
+      Class<?> serviceClass = Class.forName("FlightService");
+      Class<?> decoderClass = Class.forName("CommandDecoder");
+
+      OPEN = lookup.findStatic(engineClass, "open", MethodType.methodType(engineClass, String.class))
+                   .asType(MethodType.methodType(Object.class, String.class));
+      NEW_SESSION = lookup.findVirtual(engineClass, "newSession", MethodType.methodType(queryClass))
+                          .asType(MethodType.methodType(Object.class, Object.class));
+      CLEAR_TABLES = lookup.findVirtual(engineClass, "clearTables", MethodType.methodType(void.class))
+                           .asType(MethodType.methodType(void.class, Object.class));
+      CLOSE = lookup.findVirtual(engineClass, "close", MethodType.methodType(void.class))
+                    .asType(MethodType.methodType(void.class, Object.class));
+      EXECUTE = lookup.findStatic(serviceClass, "execute", MethodType.methodType(String.class, queryClass, String.class))
+                      .asType(MethodType.methodType(String.class, Object.class, String.class));
+
+      NEW_DECODER = lookup.findConstructor(decoderClass, MethodType.methodType(void.class))
+                          .asType(MethodType.methodType(Object.class));
+      DECODE = lookup.findVirtual(decoderClass, "decode", MethodType.methodType(int.class, CharSequence.class))
+                     .asType(MethodType.methodType(int.class, Object.class, String.class));
+      TOKENS = lookup.findVirtual(decoderClass, "tokens", MethodType.methodType(int.class))
+                     .asType(MethodType.methodType(int.class, Object.class));
+      TOKEN = lookup.findVirtual(decoderClass, "token", MethodType.methodType(String.class, int.class))
+                    .asType(MethodType.methodType(String.class, Object.class, int.class));
+      TOKEN_EQUALS = lookup.findVirtual(decoderClass, "tokenEquals", MethodType.methodType(boolean.class, int.class, String.class))
+                           .asType(MethodType.methodType(boolean.class, Object.class, int.class, String.class));
+      INT_ARG = lookup.findVirtual(decoderClass, "intArg", MethodType.methodType(long.class, int.class))
+                      .asType(MethodType.methodType(long.class, Object.class, int.class));
+      DOUBLE_ARG = lookup.findVirtual(decoderClass, "doubleArg", MethodType.methodType(double.class, int.class))
+                         .asType(MethodType.methodType(double.class, Object.class, int.class));
+    }
+    catch (ReflectiveOperationException e)
+    {
+      throw new ExceptionInInitializerError(e);
+    }
+  }
+
+  private ServiceBridge()
+  {
+  }
+
+  /** Opens a {@code QueryEngine} on the database described by a dbconn.properties file. */
+  public static Object openEngine(String configFilename) throws Throwable
+  {
+    return (Object) OPEN.invokeExact(configFilename);
+  }
+
+  /** Returns a new, logged out {@code Query} session on {@code engine}. */
+  public static Object newSession(Object engine) throws Throwable
+  {
+    return (Object) NEW_SESSION.invokeExact(engine);
+  }
+
+  public static void clearTables(Object engine) throws Throwable
+  {
+    CLEAR_TABLES.invokeExact(engine);
+  }
+
+  public static void closeEngine(Object engine) throws Throwable
+  {
+    CLOSE.invokeExact(engine);
+  }
+
+  /** Runs one command line on {@code session} exactly as the REPL would. */
+  public static String execute(Object session, String command) throws Throwable
+  {
+    return (String) EXECUTE.invokeExact(session, command);
+  }
+
+  /** Returns a new {@code CommandDecoder}. */
+  public static Object newDecoder() throws Throwable
+  {
+    return (Object) NEW_DECODER.invokeExact();
+  }
+
+  /** {@code CommandDecoder.decode}: decodes {@code line} and returns its opcode. */
+  public static int decode(Object decoder, String line) throws Throwable
+  {
+    return (int) DECODE.invokeExact(decoder, line);
+  }
+
+  public static int tokens(Object decoder) throws Throwable
+  {
+    return (int) TOKENS.invokeExact(decoder);
+  }
+
+  public static String token(Object decoder, int i) throws Throwable
+  {
+    return (String) TOKEN.invokeExact(decoder, i);
+  }
+
+  public static boolean tokenEquals(Object decoder, int i, String s) throws Throwable
+  {
+    return (boolean) TOKEN_EQUALS.invokeExact(decoder, i, s);
+  }
+
+  public static long intArg(Object decoder, int i) throws Throwable
+  {
+    return (long) INT_ARG.invokeExact(decoder, i);
+  }
+
+  public static double doubleArg(Object decoder, int i) throws Throwable
+  {
+    return (double) DOUBLE_ARG.invokeExact(decoder, i);
+  }
+}
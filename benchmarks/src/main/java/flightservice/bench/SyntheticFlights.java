@@ -0,0 +1,146 @@
+package flightservice.bench;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Random;
+
+/**
+ * An embedded H2 database with the flight service schema and a reproducible, randomly
+ * generated Flights table.
+ *
+ * The same seed, flight count and city count always produce the same rows. Flights are
+ * spread over every day of July 2015 and over random pairs of distinct cities named
+ * {@code City000}, {@code City001}, ..., so a search between two cities finds both direct
+ * and one-stop itineraries once there are enough flights per city pair and day.
+ */
+public final class SyntheticFlights implements AutoCloseable
+{
+  private static final String[] CARRIERS = {"AA", "AS", "B6", "DL", "HA", "NK", "UA", "WN"};
+
+  private final String url;
+  private final File config;
+  // Keeps the in-memory database alive until close
+  private final Connection keepAlive;
+
+  private SyntheticFlights(String url, File config, Connection keepAlive)
+  {
+    this.url = url;
+    this.config = config;
+    this.keepAlive = keepAlive;
+  }
+
+  /**
+   * Creates a fresh in-memory database holding {@code flights} flights between
+   * {@code cities} cities, and a dbconn.properties file pointing at it.
+   *
+   * @param poolSize connection pool size written to the properties file
+   * @param store flightservice.store written to the properties file, jdbc or memory
+   * @param settings further {@code name=value} lines for the properties file
+   */
+  public static SyntheticFlights create(int flights, int cities, long seed, int poolSize, String store, String... settings)
+    throws SQLException, IOException
+  {
+    String url = "jdbc:h2:mem:flights" + System.nanoTime() + ";MODE=MSSQLServer;DB_CLOSE_DELAY=-1;NON_KEYWORDS=YEAR";
+    Connection conn = DriverManager.getConnection(url, "sa", "");
+    createSchema(conn);
+    insertFlights(conn, flights, cities, seed);
+
+    File config = File.createTempFile("dbconn", ".properties");
+    config.deleteOnExit();
+    try (Writer w = new FileWriter(config))
+    {
+      w.write("flightservice.jdbc_driver=org.h2.Driver\n");
+      w.write("flightservice.url=" + url + "\n");
+      w.write("flightservice.sqlazure_username=sa\n");
+      w.write("flightservice.sqlazure_password=\n");
+      w.write("flightservice.pool_size=" + poolSize + "\n");
+      w.write("flightservice.store=" + store + "\n");
+      for (String setting : settings)
+        w.write(setting + "\n");
+    }
+    return new SyntheticFlights(url, config, conn);
+  }
+
+  private static void createSchema(Connection conn) throws SQLException
+  {
+    try (Statement s = conn.createStatement())
+    {
+      s.execute("CREATE TABLE Flights (fid INT PRIMARY KEY, year INT, month_id INT, day_of_month INT, "
+                + "carrier_id VARCHAR(7), flight_num VARCHAR(10), origin_city VARCHAR(34), dest_city VARCHAR(34), "
+                + "actual_time INT, capacity INT, price INT)");
+      s.execute("CREATE INDEX flights_origin_dest_day ON Flights (origin_city, dest_city, day_of_month)");
+      s.execute("CREATE TABLE Users (username VARCHAR(20) PRIMARY KEY, password VARCHAR(20), balance FLOAT)");
+      s.execute("CREATE TABLE Reservations (id INT PRIMARY KEY, username VARCHAR(20), fid1 INT, fid2 INT, paid INT)");
+      s.execute("CREATE INDEX reservations_username ON Reservations (username)");
+      s.execute("CREATE TABLE ResID (currID INT)");
+      s.execute("INSERT INTO ResID (currID) VALUES (0)");
+    }
+  }
+
+  private static void insertFlights(Connection conn, int flights, int cities, long seed) throws SQLException
+  {
+    Random random = new Random(seed);
+    conn.setAutoCommit(false);
+    try (PreparedStatement insert = conn.prepareStatement("INSERT INTO Flights VALUES (?, 2015, 7, ?, ?, ?, ?, ?, ?, ?, ?)"))
+    {
+      for (int fid = 1; fid <= flights; fid++)
+      {
+        int origin = random.nextInt(cities);
+        int dest = (origin + 1 + random.nextInt(cities - 1)) % cities;
+        insert.setInt(1, fid);
+        insert.setInt(2, 1 + random.nextInt(31));
+        insert.setString(3, CARRIERS[random.nextInt(CARRIERS.length)]);
+        insert.setString(4, Integer.toString(100 + random.nextInt(9000)));
+        insert.setString(5, city(origin));
+        insert.setString(6, city(dest));
+        insert.setInt(7, 30 + random.nextInt(400));
+        insert.setInt(8, 50 + random.nextInt(250));
+        insert.setInt(9, 50 + random.nextInt(950));
+        insert.addBatch();
+        if (fid % 1000 == 0)
+          insert.executeBatch();
+      }
+      insert.executeBatch();
+    }
+    conn.commit();
+    conn.setAutoCommit(true);
+  }
+
+  /** Name of the i-th synthetic city. */
+  public static String city(int i)
+  {
+    return String.format("City%03d", i);
+  }
+
+  /** Path of a dbconn.properties file for {@code QueryEngine.open}. */
+  public String configFilename()
+  {
+    return config.getPath();
+  }
+
+  public String url()
+  {
+    return url;
+  }
+
+  @Override
+  public void close() throws SQLException
+  {
+    try (Statement s = keepAlive.createStatement())
+    {
+      s.execute("SHUTDOWN");
+    }
+    finally
+    {
+      keepAlive.close();
+      config.delete();
+    }
+  }
+}
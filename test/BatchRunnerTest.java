@@ -0,0 +1,69 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Collections;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * The batch runner writes responses in input order while it is still reading, whatever
+ * order the sessions finish in.
+ */
+public class BatchRunnerTest
+{
+  private static final int SESSIONS = 3;
+
+  @Test
+  public void writesResponsesInInputOrderWhileReading() throws Exception
+  {
+    StringBuilder input = new StringBuilder();
+    StringBuilder expected = new StringBuilder();
+    for (int s = 0; s < SESSIONS; s++)
+    {
+      line(input, expected, s, "create u" + s + " pw 10", "Created user u" + s + "\n");
+      // consecutive commands of one session share a header
+      sameSession(input, expected, s, "login u" + s + " pw", "Logged in as u" + s + "\n");
+    }
+    for (int i = 0; i < 2 * BatchRunner.WINDOW; i++)
+      line(input, expected, (i + 1) % SESSIONS, "reservations", "No reservations found\n");
+
+    final StringWriter output = new StringWriter();
+    final int[] writtenBeforeEnd = new int[1];
+    BufferedReader in = new BufferedReader(new StringReader(input.toString()))
+    {
+      int lines;
+
+      @Override
+      public String readLine() throws IOException
+      {
+        if (++lines == BatchRunner.WINDOW + 1) writtenBeforeEnd[0] = output.getBuffer().length();
+        return super.readLine();
+      }
+    };
+
+    try (QueryEngine engine = new QueryEngine(new MemoryFlightStore(Collections.<Query.Flight>emptyList())))
+    {
+      new BatchRunner(engine, 4).run(in, output);
+    }
+    assertEquals(expected.toString(), output.toString());
+    assertTrue(writtenBeforeEnd[0] > 0, "nothing written before the window filled");
+  }
+
+  // Adds a command of session s, which follows another session's, and its expected response
+  private static void line(StringBuilder input, StringBuilder expected, int s, String command, String response)
+  {
+    expected.append("# session ").append(s).append('\n');
+    sameSession(input, expected, s, command, response);
+  }
+
+  // Adds a command of session s, which follows one of the same session, and its expected response
+  private static void sameSession(StringBuilder input, StringBuilder expected, int s, String command, String response)
+  {
+    input.append(s).append(' ').append(command).append('\n');
+    expected.append(response);
+  }
+}
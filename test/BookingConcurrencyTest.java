@@ -0,0 +1,154 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Concurrent bookings on a JDBC engine over H2.
+ *
+ * Sessions are logged in and have searched before they all book at once, so the bookings
+ * race through the seat counters, the booked-days check and the group commit of their
+ * reservations. Whatever the interleaving, a flight must never be booked beyond its
+ * capacity, a user must never hold two reservations on one day, and every booking
+ * reported as made must be in the Reservations table. The sessions of one user log in
+ * with different spellings of the name, which are all the same user.
+ */
+public class BookingConcurrencyTest
+{
+  private static final int SESSIONS = 16;
+  private static final int CAPACITY = 3;
+  private static final String ORIGIN = "Seattle WA";
+  private static final String DEST = "Boston MA";
+
+  @Test
+  public void capacityHoldsWithGroupCommit() throws Exception
+  {
+    checkCapacity();
+  }
+
+  @Test
+  public void capacityHoldsWithoutGroupCommit() throws Exception
+  {
+    checkCapacity("flightservice.booking_batch_size=1");
+  }
+
+  @Test
+  public void sameDayHoldsWithGroupCommit() throws Exception
+  {
+    checkSameDay();
+  }
+
+  @Test
+  public void sameDayHoldsWithoutGroupCommit() throws Exception
+  {
+    checkSameDay("flightservice.booking_batch_size=1");
+  }
+
+  // Every session is a different user booking the one flight of day 1
+  private void checkCapacity(String... settings) throws Exception
+  {
+    try (TestDatabase db = new TestDatabase(settings))
+    {
+      db.addFlight(1, 1, ORIGIN, DEST, 300, CAPACITY, 140);
+      try (QueryEngine engine = QueryEngine.open(db.configFilename()))
+      {
+        List<Query> sessions = new ArrayList<Query>();
+        for (int i = 0; i < SESSIONS; i++)
+        {
+          Query q = engine.newSession();
+          expect(FlightService.execute(q, "create user" + i + " pw 1000"), "Created user");
+          expect(FlightService.execute(q, "login user" + i + " pw"), "Logged in");
+          expect(FlightService.execute(q, "search \"" + ORIGIN + "\" \"" + DEST + "\" 1 1 1"), "Itinerary 0");
+          sessions.add(q);
+        }
+
+        int booked = 0;
+        for (String response : bookAtOnce(sessions, 0))
+          if (response.startsWith("Booked flight(s)")) booked++;
+        assertEquals(CAPACITY, booked);
+        assertEquals(CAPACITY, db.fids("SELECT COUNT(*) FROM Reservations WHERE fid1 = 1").get(0)[0]);
+      }
+    }
+  }
+
+  // Every session is the same user, in one of two spellings, booking one of two flights of day 2
+  private void checkSameDay(String... settings) throws Exception
+  {
+    try (TestDatabase db = new TestDatabase(settings))
+    {
+      db.addFlight(1, 2, ORIGIN, DEST, 300, 100, 140);
+      db.addFlight(2, 2, ORIGIN, DEST, 280, 100, 500);
+      try (QueryEngine engine = QueryEngine.open(db.configFilename()))
+      {
+        expect(FlightService.execute(engine.newSession(), "create alice pw 1000"), "Created user");
+        List<Query> sessions = new ArrayList<Query>();
+        for (int i = 0; i < SESSIONS; i++)
+        {
+          Query q = engine.newSession();
+          expect(FlightService.execute(q, "login " + (i % 2 == 0 ? "alice" : "ALICE") + " pw"), "Logged in");
+          expect(FlightService.execute(q, "search \"" + ORIGIN + "\" \"" + DEST + "\" 1 2 2"), "Itinerary 0");
+          sessions.add(q);
+        }
+
+        List<String> responses = bookAtOnce(sessions, 1);
+        int booked = 0;
+        for (String response : responses)
+        {
+          if (response.startsWith("Booked flight(s)"))
+            booked++;
+          else
+            assertEquals("You cannot book two flights in the same day\n", response);
+        }
+        assertEquals(1, booked);
+        assertEquals(1, db.fids("SELECT COUNT(*) FROM Reservations WHERE username = 'alice'").get(0)[0]);
+      }
+    }
+  }
+
+  // Releases every session's booking at the same moment; odd sessions book itinerary 1 when there are two
+  private static List<String> bookAtOnce(List<Query> sessions, final int alternate) throws Exception
+  {
+    final CountDownLatch start = new CountDownLatch(1);
+    ExecutorService pool = Executors.newFixedThreadPool(sessions.size());
+    try
+    {
+      List<Future<String>> futures = new ArrayList<Future<String>>();
+      for (int i = 0; i < sessions.size(); i++)
+      {
+        final Query q = sessions.get(i);
+        final int itinerary = i % 2 * alternate;
+        futures.add(pool.submit(new Callable<String>()
+        {
+          @Override
+          public String call() throws Exception
+          {
+            start.await();
+            return FlightService.execute(q, "book " + itinerary);
+          }
+        }));
+      }
+      start.countDown();
+      List<String> responses = new ArrayList<String>();
+      for (Future<String> f : futures)
+        responses.add(f.get());
+      return responses;
+    }
+    finally
+    {
+      pool.shutdown();
+    }
+  }
+
+  private static void expect(String response, String prefix)
+  {
+    assertTrue(response.startsWith(prefix), "Expected '" + prefix + "' but got: " + response);
+  }
+}
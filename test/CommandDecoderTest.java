@@ -0,0 +1,146 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * {@link CommandDecoder} splits and parses command lines as the regular expression
+ * tokenizer and the JDK parsers it replaced did.
+ */
+public class CommandDecoderTest
+{
+  // The tokenizer FlightService used before the decoder, run on the trimmed line
+  private static final Pattern TOKEN = Pattern.compile("\"([^\"]*)\"|(\\S+)");
+
+  private static final String[] LINES = {
+    "",
+    "   ",
+    "\t",
+    "login alice pw",
+    "  login   alice\tpw  ",
+    "search \"Seattle WA\" \"Boston MA\" 1 14 10",
+    "search \"Seattle WA\"\"Boston MA\" 1 14 10",
+    "search \"Seattle WA\" \"Boston MA 1 14 10",
+    "search Seattle\" WA\" 1",
+    "create \"\" pw 100",
+    "\"login\" alice pw",
+    "\"\" alice",
+    "logout alice",
+    "LOGIN alice pw",
+    "searchrange a b 0 1 31 5 7 2015",
+    "route a b 3 14 10",
+    "book\t0",
+    "pay 1\r",
+    "reservations",
+    "cancel -2",
+    "stats",
+    "quit",
+    "q\"uit",
+    "\"",
+    "\"\"\"",
+  };
+
+  private static final String[] NUMBERS = {
+    "0", "7", "-7", "+7", "-", "+", "007", "2147483647", "2147483648", "-2147483648", "-2147483649",
+    "99999999999999999999", "1.5", ".5", "5.", ".", "1e3", "1E-3", "0x1p3", "1d", "1f", "NaN", "Infinity",
+    "-Infinity", "-0", "-0.0", "123456789012345", "1234567890123456", "0.1234567890123456789", "12a", "",
+    "١٢", "1_000",
+  };
+
+  @Test
+  public void tokensMatchRegexTokenizer()
+  {
+    CommandDecoder decoder = new CommandDecoder();
+    for (String line : LINES)
+      check(decoder, line);
+
+    // random lines of the characters that matter to the tokenizer
+    String[] pieces = {" ", "\t", "\"", "a", "b", "1", "-", ".", "login", "search", "book", "\u000B", "\f"};
+    Random random = new Random(42);
+    for (int n = 0; n < 10000; n++)
+    {
+      StringBuilder line = new StringBuilder();
+      int length = random.nextInt(12);
+      for (int i = 0; i < length; i++)
+        line.append(pieces[random.nextInt(pieces.length)]);
+      check(decoder, line.toString());
+    }
+  }
+
+  @Test
+  public void numbersMatchJdkParsers()
+  {
+    CommandDecoder decoder = new CommandDecoder();
+    for (String number : NUMBERS)
+    {
+      decoder.decode("book \"" + number + "\"");
+      assertEquals(expectedInt(number), decoder.intArg(1), number);
+      assertEquals(expectedDouble(number), decoder.doubleArg(1), number);
+    }
+
+    Random random = new Random(42);
+    for (int n = 0; n < 10000; n++)
+    {
+      String number = random.nextInt(100) + "." + random.nextInt(1000);
+      decoder.decode("create u p " + number);
+      assertEquals(Double.parseDouble(number), decoder.doubleArg(3), number);
+    }
+  }
+
+  private static void check(CommandDecoder decoder, String line)
+  {
+    List<String> expected = new ArrayList<String>();
+    Matcher m = TOKEN.matcher(line.trim());
+    while (m.find())
+      expected.add(m.group(1) != null ? m.group(1) : m.group(2));
+
+    int op = decoder.decode(line);
+    List<String> tokens = new ArrayList<String>();
+    for (int i = 0; i < decoder.tokens(); i++)
+      tokens.add(decoder.token(i));
+    assertEquals(expected, tokens, line);
+
+    int expectedOp = CommandDecoder.EMPTY;
+    if (!expected.isEmpty())
+    {
+      expectedOp = Arrays.asList(CommandDecoder.NAMES).indexOf(expected.get(0));
+      if (expectedOp < 0) expectedOp = CommandDecoder.UNKNOWN;
+    }
+    assertEquals(expectedOp, op, line);
+
+    // the same line decodes alike from a char array
+    char[] padded = ("xx" + line + "yy").toCharArray();
+    assertEquals(op, decoder.decode(padded, 2, line.length()), line);
+    assertEquals(expected.size(), decoder.tokens(), line);
+  }
+
+  private static long expectedInt(String s)
+  {
+    try
+    {
+      return Integer.parseInt(s);
+    }
+    catch (NumberFormatException e)
+    {
+      return CommandDecoder.NOT_AN_INT;
+    }
+  }
+
+  private static double expectedDouble(String s)
+  {
+    try
+    {
+      return Double.parseDouble(s);
+    }
+    catch (NumberFormatException e)
+    {
+      return Double.NaN;
+    }
+  }
+}
@@ -0,0 +1,70 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Every row of a {@link FlightSnapshot} keeps its own spelling of its names, while
+ * searches find a city by any of its spellings.
+ */
+public class FlightSnapshotTest
+{
+  @Test
+  public void rowsKeepTheirSpelling() throws Exception
+  {
+    FlightSnapshot snapshot = FlightSnapshot.of(Arrays.asList(flight(1, "AS", "Seattle WA", "Boston MA"),
+                                                              flight(2, "as", "SEATTLE WA", "boston ma")));
+    check(snapshot);
+
+    // the spellings survive a round trip through a file
+    Path file = Files.createTempFile("flights", ".snapshot");
+    try
+    {
+      snapshot.write(file);
+      check(FlightSnapshot.map(file));
+    }
+    finally
+    {
+      Files.delete(file);
+    }
+  }
+
+  private static void check(FlightSnapshot snapshot)
+  {
+    int first = snapshot.row(1);
+    int second = snapshot.row(2);
+    assertEquals("AS", snapshot.flight(first).carrierId);
+    assertEquals("Seattle WA", snapshot.flight(first).originCity);
+    assertEquals("Boston MA", snapshot.flight(first).destCity);
+    assertEquals("as", snapshot.flight(second).carrierId);
+    assertEquals("SEATTLE WA", snapshot.flight(second).originCity);
+    assertEquals("boston ma", snapshot.flight(second).destCity);
+
+    // both spellings are the same city to a search
+    assertEquals(snapshot.origin(first), snapshot.origin(second));
+    assertEquals(snapshot.dest(first), snapshot.dest(second));
+    assertEquals(snapshot.origin(first), snapshot.cityCode("seattle wa"));
+    assertEquals(snapshot.dest(first), snapshot.cityCode("BOSTON MA"));
+    assertEquals(-1, snapshot.cityCode("Portland OR"));
+  }
+
+  private static Query.Flight flight(int fid, String carrier, String origin, String dest)
+  {
+    Query.Flight f = new Query.Flight();
+    f.fid = fid;
+    f.year = 2015;
+    f.monthId = 7;
+    f.dayOfMonth = 1;
+    f.carrierId = carrier;
+    f.flightNum = Integer.toString(100 + fid);
+    f.originCity = origin;
+    f.destCity = dest;
+    f.time = 300;
+    f.capacity = 10;
+    f.price = 140;
+    return f;
+  }
+}
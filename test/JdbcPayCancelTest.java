@@ -0,0 +1,101 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Paying and cancelling on a {@link JdbcFlightStore} change the balance and the
+ * reservation together or not at all.
+ */
+public class JdbcPayCancelTest
+{
+  @Test
+  public void payChargesAndMarksPaid() throws Exception
+  {
+    try (TestDatabase db = new TestDatabase(); JdbcFlightStore store = new JdbcFlightStore(db.pool(2), 10))
+    {
+      store.createUser("alice", "pw", 500);
+      store.insertReservation(1, "alice", 1, -1);
+
+      assertTrue(store.pay("alice", 1, 140));
+      assertEquals(360, balance(db));
+      assertEquals(1, paid(db, 1));
+    }
+  }
+
+  @Test
+  public void payBeyondBalanceChangesNothing() throws Exception
+  {
+    try (TestDatabase db = new TestDatabase(); JdbcFlightStore store = new JdbcFlightStore(db.pool(2), 10))
+    {
+      store.createUser("alice", "pw", 100);
+      store.insertReservation(1, "alice", 1, -1);
+
+      assertFalse(store.pay("alice", 1, 140));
+      assertEquals(100, balance(db));
+      assertEquals(0, paid(db, 1));
+
+      // a balance that covers the cost exactly is enough
+      assertTrue(store.pay("alice", 1, 100));
+      assertEquals(0, balance(db));
+    }
+  }
+
+  @Test
+  public void payInTransactionRollsBack() throws Exception
+  {
+    try (TestDatabase db = new TestDatabase(); JdbcFlightStore store = new JdbcFlightStore(db.pool(2), 10))
+    {
+      store.createUser("alice", "pw", 500);
+      store.insertReservation(1, "alice", 1, -1);
+
+      store.begin();
+      assertTrue(store.pay("alice", 1, 140));
+      store.rollback();
+      assertEquals(500, balance(db));
+      assertEquals(0, paid(db, 1));
+    }
+  }
+
+  @Test
+  public void refundedCancelRefundsAndDeletes() throws Exception
+  {
+    try (TestDatabase db = new TestDatabase(); JdbcFlightStore store = new JdbcFlightStore(db.pool(2), 10))
+    {
+      store.createUser("alice", "pw", 500);
+      store.insertReservation(1, "alice", 1, -1);
+      assertTrue(store.pay("alice", 1, 140));
+
+      store.cancel("alice", 1, 140);
+      assertEquals(500, balance(db));
+      assertTrue(db.fids("SELECT id FROM Reservations").isEmpty());
+    }
+  }
+
+  @Test
+  public void unpaidCancelOnlyDeletes() throws Exception
+  {
+    try (TestDatabase db = new TestDatabase(); JdbcFlightStore store = new JdbcFlightStore(db.pool(2), 10))
+    {
+      store.createUser("alice", "pw", 500);
+      store.insertReservation(1, "alice", 1, -1);
+      store.insertReservation(2, "alice", 1, -1);
+
+      store.cancel("alice", 1, 0);
+      assertEquals(500, balance(db));
+      assertEquals(1, db.fids("SELECT id FROM Reservations").size());
+      assertEquals(2, db.fids("SELECT id FROM Reservations").get(0)[0]);
+    }
+  }
+
+  private static int balance(TestDatabase db) throws Exception
+  {
+    return db.fids("SELECT CAST(balance AS INT) FROM Users WHERE username = ?", "alice").get(0)[0];
+  }
+
+  private static int paid(TestDatabase db, int id) throws Exception
+  {
+    return db.fids("SELECT paid FROM Reservations WHERE id = ?", id).get(0)[0];
+  }
+}
@@ -0,0 +1,65 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Batches of reservations in a {@link MemoryFlightStore} are inserted as a whole or not
+ * at all, as they are in a database transaction, so that a booking whose batch failed
+ * leaves no reservation and no booked seat behind.
+ */
+public class MemoryFlightStoreTest
+{
+  @Test
+  public void failedBatchLeavesNothingInserted() throws Exception
+  {
+    MemoryFlightStore store = new MemoryFlightStore(Arrays.asList(flight(1), flight(2)));
+    final List<FlightStore.Booking> batch = Arrays.asList(new FlightStore.Booking(1, "alice", 1, -1),
+                                                          new FlightStore.Booking(2, "bob", 1, 2),
+                                                          new FlightStore.Booking(3, "carol", 99, -1));
+    assertThrows(SQLException.class, () -> store.insertReservations(batch));
+
+    assertEquals(0, store.bookedSeats(1));
+    assertEquals(0, store.bookedSeats(2));
+    assertTrue(store.reservations("alice").isEmpty());
+    assertTrue(store.reservations("bob").isEmpty());
+  }
+
+  @Test
+  public void duplicateIdInBatchLeavesNothingInserted() throws Exception
+  {
+    MemoryFlightStore store = new MemoryFlightStore(Collections.singletonList(flight(1)));
+    store.insertReservation(7, "alice", 1, -1);
+    final List<FlightStore.Booking> batch = Arrays.asList(new FlightStore.Booking(8, "bob", 1, -1),
+                                                          new FlightStore.Booking(8, "bob", 1, -1));
+    assertThrows(SQLException.class, () -> store.insertReservations(batch));
+
+    // the reservation inserted before the batch stays
+    assertEquals(1, store.bookedSeats(1));
+    assertEquals(1, store.reservations("alice").size());
+    assertTrue(store.reservations("bob").isEmpty());
+  }
+
+  private static Query.Flight flight(int fid)
+  {
+    Query.Flight f = new Query.Flight();
+    f.fid = fid;
+    f.year = 2015;
+    f.monthId = 7;
+    f.dayOfMonth = 1;
+    f.carrierId = "AS";
+    f.flightNum = Integer.toString(100 + fid);
+    f.originCity = "Seattle WA";
+    f.destCity = "Boston MA";
+    f.time = 300;
+    f.capacity = 5;
+    f.price = 140;
+    return f;
+  }
+}
@@ -0,0 +1,80 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Reservation IDs are consecutive from 1 across leased blocks, and never handed out twice
+ * however many sessions ask at once.
+ */
+public class ReservationIdAllocatorTest
+{
+  private static final int BLOCK = 3;
+
+  @Test
+  public void leasesNextBlockWhenOneRunsOut() throws Exception
+  {
+    try (TestDatabase db = new TestDatabase(); ConnectionPool pool = db.pool(1))
+    {
+      ReservationIdAllocator ids = new ReservationIdAllocator(BLOCK);
+      for (int expected = 1; expected <= 3 * BLOCK + 1; expected++)
+      {
+        try (PooledConnection c = pool.acquire())
+        {
+          assertEquals(expected, ids.next(c));
+        }
+        // ResID holds the end of the block the ID came from
+        assertEquals((expected + BLOCK - 1) / BLOCK * BLOCK, db.fids("SELECT currID FROM ResID").get(0)[0]);
+      }
+    }
+  }
+
+  @Test
+  public void concurrentSessionsGetEveryIdOnce() throws Exception
+  {
+    final int threads = 8;
+    final int perThread = 200;
+    try (TestDatabase db = new TestDatabase(); final ConnectionPool pool = db.pool(4))
+    {
+      final ReservationIdAllocator ids = new ReservationIdAllocator(BLOCK);
+      ExecutorService executor = Executors.newFixedThreadPool(threads);
+      try
+      {
+        List<Future<List<Integer>>> results = new ArrayList<Future<List<Integer>>>();
+        for (int t = 0; t < threads; t++)
+          results.add(executor.submit(new Callable<List<Integer>>()
+          {
+            @Override
+            public List<Integer> call() throws Exception
+            {
+              List<Integer> got = new ArrayList<Integer>();
+              for (int i = 0; i < perThread; i++)
+                try (PooledConnection c = pool.acquire())
+                {
+                  got.add(ids.next(c));
+                }
+              return got;
+            }
+          }));
+
+        List<Integer> all = new ArrayList<Integer>();
+        for (Future<List<Integer>> result : results)
+          all.addAll(result.get());
+        Collections.sort(all);
+        for (int i = 0; i < all.size(); i++)
+          assertEquals(i + 1, (int) all.get(i));
+      }
+      finally
+      {
+        executor.shutdown();
+      }
+    }
+  }
+}
@@ -0,0 +1,241 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Search results against the SQL the service ran before the in-memory indexes.
+ *
+ * Every search runs through {@code FlightService.execute} on a JDBC engine over H2, so
+ * it goes through the route index, the connection search, the search cache and the
+ * formatter, and must list the same flights in the same order as the SQL queries below.
+ * Random flights with narrow ranges of times and prices make ties common, so the fid
+ * tie-breaks are checked as well as the ordering itself.
+ */
+public class SearchOrderTest
+{
+  private static final int CITIES = 8;
+  private static final int DAYS = 4;
+  private static final int SEARCHES = 300;
+
+  private static final String DIRECT = "SELECT TOP (?) fid FROM Flights "
+          + "WHERE origin_city = ? AND dest_city = ? AND day_of_month BETWEEN ? AND ? AND actual_time IS NOT NULL "
+          + "ORDER BY %s";
+
+  private static final String ONE_STOP = "SELECT TOP (?) f.fid, f2.fid FROM Flights f, Flights f2 "
+          + "WHERE f.origin_city = ? AND f.dest_city = f2.origin_city AND f2.dest_city = ? "
+          + "AND f.day_of_month BETWEEN ? AND ? AND f2.day_of_month = f.day_of_month "
+          + "AND f.actual_time IS NOT NULL AND f2.actual_time IS NOT NULL "
+          + "ORDER BY %s";
+
+  // Routes of at most two flights, with the service's default connection time for the second
+  private static final String ROUTE = "SELECT TOP (?) fid1, fid2 FROM ("
+          + "SELECT fid AS fid1, 0 AS fid2, actual_time AS elapsed, 1 AS legs FROM Flights "
+          + "WHERE origin_city = ? AND dest_city = ? AND day_of_month = ? AND actual_time IS NOT NULL "
+          + "UNION ALL SELECT f.fid, f2.fid, f.actual_time + " + QueryEngine.DEFAULT_MIN_CONNECTION_MINUTES
+          + " + f2.actual_time, 2 FROM Flights f, Flights f2 "
+          + "WHERE f.origin_city = ? AND f.dest_city = f2.origin_city AND f2.dest_city = ? "
+          + "AND f.day_of_month = ? AND f2.day_of_month = f.day_of_month "
+          + "AND f.actual_time IS NOT NULL AND f2.actual_time IS NOT NULL"
+          + ") r ORDER BY elapsed, legs, fid1, fid2";
+
+  private static final String BY_TIME = "actual_time, fid";
+  private static final String BY_PRICE = "price, fid";
+  private static final String BY_TOTAL_TIME = "f.actual_time + f2.actual_time, f.fid, f2.fid";
+  private static final String BY_TOTAL_PRICE = "f.price + f2.price, f.fid, f2.fid";
+
+  private static TestDatabase db;
+  private static QueryEngine engine;
+
+  @BeforeAll
+  static void open() throws Exception
+  {
+    db = new TestDatabase();
+    db.addRandomFlights(1500, CITIES, DAYS, 42);
+    engine = QueryEngine.open(db.configFilename());
+  }
+
+  @AfterAll
+  static void close() throws Exception
+  {
+    engine.close();
+    db.close();
+  }
+
+  @Test
+  public void searchMatchesSql() throws Exception
+  {
+    check(false);
+  }
+
+  @Test
+  public void cheapestSearchMatchesSql() throws Exception
+  {
+    check(true);
+  }
+
+  // Searches random city pairs, each twice so the second answer comes from the search cache
+  private void check(boolean cheapest) throws Exception
+  {
+    Query q = engine.newSession();
+    Random random = new Random(cheapest ? 2 : 1);
+    for (int i = 0; i < SEARCHES; i++)
+    {
+      String origin = TestDatabase.city(random.nextInt(CITIES));
+      String dest = TestDatabase.city(random.nextInt(CITIES));
+      boolean direct = random.nextBoolean();
+      int day = 1 + random.nextInt(DAYS);
+      int k = 1 + random.nextInt(15);
+
+      String command = "search \"" + origin + "\" \"" + dest + "\" " + (direct ? 1 : 0) + " " + day + " " + k
+                       + (cheapest ? " cheapest" : "");
+      String expected = render(expected(origin, dest, direct, day, day, k, cheapest));
+      assertEquals(expected, render(itineraries(FlightService.execute(q, command))), command);
+      assertEquals(expected, render(itineraries(FlightService.execute(q, command))), command + " (cached)");
+    }
+  }
+
+  @Test
+  public void rangeSearchMatchesSql() throws Exception
+  {
+    Query q = engine.newSession();
+    Random random = new Random(3);
+    for (int i = 0; i < SEARCHES; i++)
+    {
+      String origin = TestDatabase.city(random.nextInt(CITIES));
+      String dest = TestDatabase.city(random.nextInt(CITIES));
+      boolean direct = random.nextBoolean();
+      int first = 1 + random.nextInt(DAYS);
+      int last = first + random.nextInt(DAYS + 1 - first);
+      int k = 1 + random.nextInt(15);
+
+      String command = "searchrange \"" + origin + "\" \"" + dest + "\" " + (direct ? 1 : 0) + " " + first + " " + last
+                       + " " + k + " 7 2015";
+      assertEquals(render(expected(origin, dest, direct, first, last, k, false)),
+                   render(itineraries(FlightService.execute(q, command))), command);
+    }
+  }
+
+  @Test
+  public void routeSearchMatchesSql() throws Exception
+  {
+    Query q = engine.newSession();
+    Random random = new Random(4);
+    for (int i = 0; i < SEARCHES; i++)
+    {
+      String origin = TestDatabase.city(random.nextInt(CITIES));
+      String dest = TestDatabase.city(random.nextInt(CITIES));
+      int day = 1 + random.nextInt(DAYS);
+      int k = 1 + random.nextInt(15);
+
+      String command = "route \"" + origin + "\" \"" + dest + "\" 2 " + day + " " + k;
+      List<int[]> expected = origin.equals(dest) ? new ArrayList<int[]>() : routes(k, origin, dest, day);
+      assertEquals(render(expected), render(itineraries(FlightService.execute(q, command))), command);
+    }
+  }
+
+  @Test
+  public void hugeCountsReturnEverything() throws Exception
+  {
+    Query q = engine.newSession();
+    for (int i = 0; i < CITIES; i++)
+    {
+      String origin = TestDatabase.city(i);
+      String dest = TestDatabase.city((i + 3) % CITIES);
+      String command = "search \"" + origin + "\" \"" + dest + "\" 0 1 " + Integer.MAX_VALUE;
+      assertEquals(render(expected(origin, dest, false, 1, 1, Integer.MAX_VALUE, false)),
+                   render(itineraries(FlightService.execute(q, command))), command);
+
+      command = "search \"" + origin + "\" \"" + dest + "\" 0 1 " + Integer.MAX_VALUE + " cheapest";
+      assertEquals(render(expected(origin, dest, false, 1, 1, Integer.MAX_VALUE, true)),
+                   render(itineraries(FlightService.execute(q, command))), command);
+
+      command = "searchrange \"" + origin + "\" \"" + dest + "\" 0 1 " + DAYS + " " + Integer.MAX_VALUE;
+      assertEquals(render(expected(origin, dest, false, 1, DAYS, Integer.MAX_VALUE, false)),
+                   render(itineraries(FlightService.execute(q, command))), command);
+
+      command = "route \"" + origin + "\" \"" + dest + "\" 2 1 " + Integer.MAX_VALUE;
+      assertEquals(render(routes(Integer.MAX_VALUE, origin, dest, 1)),
+                   render(itineraries(FlightService.execute(q, command))), command);
+    }
+  }
+
+  @Test
+  public void cityNamesIgnoreCase() throws Exception
+  {
+    Query q = engine.newSession();
+    for (int i = 0; i < CITIES; i++)
+    {
+      String origin = TestDatabase.city(i);
+      String dest = TestDatabase.city((i + 1) % CITIES);
+      String command = " 0 1 10";
+      String exact = FlightService.execute(q, "search \"" + origin + "\" \"" + dest + "\"" + command);
+      assertEquals(exact, FlightService.execute(q, "search \"" + origin.toLowerCase(Locale.ROOT) + "\" \"" + dest.toUpperCase(Locale.ROOT) + "\"" + command));
+    }
+  }
+
+  // Direct flights first, then one-stop flights for the rest, as the service ranks them
+  private static List<int[]> expected(String origin, String dest, boolean direct, int first, int last, int k,
+                                      boolean cheapest) throws Exception
+  {
+    List<int[]> itineraries = db.fids(String.format(DIRECT, cheapest ? BY_PRICE : BY_TIME), k, origin, dest, first, last);
+    if (!direct && itineraries.size() < k)
+      itineraries.addAll(db.fids(String.format(ONE_STOP, cheapest ? BY_TOTAL_PRICE : BY_TOTAL_TIME),
+                                 k - itineraries.size(), origin, dest, first, last));
+    return itineraries;
+  }
+
+  // Routes of the ROUTE query, without the 0 that stands for no second flight
+  private static List<int[]> routes(int k, String origin, String dest, int day) throws Exception
+  {
+    List<int[]> routes = new ArrayList<int[]>();
+    for (int[] fids : db.fids(ROUTE, k, origin, dest, day, origin, dest, day))
+      routes.add(fids[1] == 0 ? new int[] { fids[0] } : fids);
+    return routes;
+  }
+
+  // The fids of each itinerary of a search response
+  private static List<int[]> itineraries(String response)
+  {
+    List<int[]> itineraries = new ArrayList<int[]>();
+    List<Integer> fids = null;
+    for (String line : response.split("\n"))
+    {
+      if (line.startsWith("Itinerary "))
+      {
+        if (fids != null) itineraries.add(toArray(fids));
+        fids = new ArrayList<Integer>();
+      }
+      else if (line.startsWith("ID: "))
+        fids.add(Integer.parseInt(line.substring(4, line.indexOf(' ', 4))));
+    }
+    if (fids != null) itineraries.add(toArray(fids));
+    return itineraries;
+  }
+
+  private static int[] toArray(List<Integer> fids)
+  {
+    int[] array = new int[fids.size()];
+    for (int i = 0; i < array.length; i++)
+      array[i] = fids.get(i);
+    return array;
+  }
+
+  private static String render(List<int[]> itineraries)
+  {
+    StringBuilder sb = new StringBuilder();
+    for (int[] fids : itineraries)
+    {
+      for (int fid : fids)
+        sb.append(fid).append(' ');
+      sb.append('\n');
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,162 @@
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * An embedded H2 database with the flight service schema, for tests.
+ *
+ * H2 runs in MSSQLServer mode, so the service's SQL runs unchanged, compares strings
+ * regardless of case, as SQL Server's default collation does, and the database lives
+ * until {@link #close()}. Tests add flights with {@link #addFlight} or
+ * {@link #addRandomFlights}, then open engines on {@link #configFilename()}.
+ */
+final class TestDatabase implements AutoCloseable
+{
+  private final String url;
+  private final Connection conn;
+  private final File config;
+
+  /**
+   * @param settings further {@code name=value} lines for the properties file
+   */
+  TestDatabase(String... settings) throws SQLException, IOException
+  {
+    url = "jdbc:h2:mem:test" + System.nanoTime() + ";MODE=MSSQLServer;DB_CLOSE_DELAY=-1;NON_KEYWORDS=YEAR;IGNORECASE=TRUE";
+    conn = DriverManager.getConnection(url, "sa", "");
+    try (Statement s = conn.createStatement())
+    {
+      s.execute("CREATE TABLE Flights (fid INT PRIMARY KEY, year INT, month_id INT, day_of_month INT, "
+                + "carrier_id VARCHAR(7), flight_num VARCHAR(10), origin_city VARCHAR(34), dest_city VARCHAR(34), "
+                + "actual_time INT, capacity INT, price INT)");
+      s.execute("CREATE TABLE Users (username VARCHAR(20) PRIMARY KEY, password VARCHAR(20), balance FLOAT)");
+      s.execute("CREATE TABLE Reservations (id INT PRIMARY KEY, username VARCHAR(20), fid1 INT, fid2 INT, paid INT)");
+      s.execute("CREATE TABLE ResID (currID INT)");
+      s.execute("INSERT INTO ResID (currID) VALUES (0)");
+    }
+
+    config = File.createTempFile("dbconn", ".properties");
+    config.deleteOnExit();
+    try (Writer w = new FileWriter(config))
+    {
+      w.write("flightservice.jdbc_driver=org.h2.Driver\n");
+      w.write("flightservice.url=" + url + "\n");
+      w.write("flightservice.sqlazure_username=sa\n");
+      w.write("flightservice.sqlazure_password=\n");
+      for (String setting : settings)
+        w.write(setting + "\n");
+    }
+  }
+
+  /**
+   * Adds a flight of July 2015.
+   *
+   * @param time actual_time, or null for a cancelled flight
+   */
+  void addFlight(int fid, int dayOfMonth, String origin, String dest, Integer time, int capacity, int price)
+          throws SQLException
+  {
+    try (PreparedStatement insert = conn.prepareStatement("INSERT INTO Flights VALUES (?, 2015, 7, ?, ?, ?, ?, ?, ?, ?, ?)"))
+    {
+      insert.setInt(1, fid);
+      insert.setInt(2, dayOfMonth);
+      insert.setString(3, "AS");
+      insert.setString(4, Integer.toString(100 + fid));
+      insert.setString(5, origin);
+      insert.setString(6, dest);
+      if (time == null)
+        insert.setNull(7, Types.INTEGER);
+      else
+        insert.setInt(7, time);
+      insert.setInt(8, capacity);
+      insert.setInt(9, price);
+      insert.executeUpdate();
+    }
+  }
+
+  /**
+   * Adds {@code flights} random flights between {@code cities} cities on days 1 to
+   * {@code days}. Times and prices are drawn from narrow ranges, so that searches meet
+   * many ties, and every 20th flight is cancelled.
+   */
+  void addRandomFlights(int flights, int cities, int days, long seed) throws SQLException
+  {
+    Random random = new Random(seed);
+    for (int fid = 1; fid <= flights; fid++)
+    {
+      int origin = random.nextInt(cities);
+      int dest = (origin + 1 + random.nextInt(cities - 1)) % cities;
+      addFlight(fid, 1 + random.nextInt(days), city(origin), city(dest),
+                random.nextInt(20) == 0 ? null : 60 + random.nextInt(30), 10, 100 + random.nextInt(30));
+    }
+  }
+
+  /** Name of the i-th city of {@link #addRandomFlights}. */
+  static String city(int i)
+  {
+    return String.format("City%02d", i);
+  }
+
+  /** A {@link ConnectionPool} of at most {@code size} connections to the database. */
+  ConnectionPool pool(int size)
+  {
+    return new ConnectionPool(url, "sa", "", size);
+  }
+
+  /** Path of a dbconn.properties file for {@code QueryEngine.open}. */
+  String configFilename()
+  {
+    return config.getPath();
+  }
+
+  /**
+   * Runs a query whose rows are fids, and returns each row's fids.
+   *
+   * @param args the query's int and string parameters, in order
+   */
+  List<int[]> fids(String sql, Object... args) throws SQLException
+  {
+    try (PreparedStatement query = conn.prepareStatement(sql))
+    {
+      for (int i = 0; i < args.length; i++)
+        query.setObject(i + 1, args[i]);
+      List<int[]> rows = new ArrayList<int[]>();
+      try (ResultSet rs = query.executeQuery())
+      {
+        int columns = rs.getMetaData().getColumnCount();
+        while (rs.next())
+        {
+          int[] row = new int[columns];
+          for (int c = 0; c < columns; c++)
+            row[c] = rs.getInt(c + 1);
+          rows.add(row);
+        }
+      }
+      return rows;
+    }
+  }
+
+  @Override
+  public void close() throws SQLException
+  {
+    try (Statement s = conn.createStatement())
+    {
+      s.execute("SHUTDOWN");
+    }
+    finally
+    {
+      conn.close();
+      config.delete();
+    }
+  }
+}
@@ -0,0 +1,100 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.sql.SQLException;
+import java.sql.SQLTransactionRollbackException;
+import java.util.Collections;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * The runner retries exactly the failures another transaction caused, up to its number
+ * of attempts.
+ */
+public class TransactionRunnerTest
+{
+  private static final int ATTEMPTS = 3;
+
+  @Test
+  public void classifiesRetryableFailures()
+  {
+    assertTrue(TransactionRunner.retryable(new SQLException("serialization failure", "40001")));
+    assertTrue(TransactionRunner.retryable(new SQLException("deadlock", "40P01")));
+    assertTrue(TransactionRunner.retryable(new SQLException("deadlock victim", "S0001", 1205)));
+    assertTrue(TransactionRunner.retryable(new SQLException("update conflict", "S0001", 3960)));
+    assertTrue(TransactionRunner.retryable(new SQLTransactionRollbackException("rolled back")));
+
+    assertFalse(TransactionRunner.retryable(new SQLException("duplicate key", "23000", 2627)));
+    assertFalse(TransactionRunner.retryable(new SQLException("no state")));
+
+    // a deadlock further down the chain still counts
+    SQLException chained = new SQLException("batch failed", "HY000");
+    chained.setNextException(new SQLException("deadlock victim", "S0001", 1205));
+    assertTrue(TransactionRunner.retryable(chained));
+  }
+
+  @Test
+  public void retriesUntilAnAttemptSucceeds() throws Exception
+  {
+    TransactionRunner runner = runner();
+    FailingWork work = new FailingWork(ATTEMPTS - 1, new SQLException("serialization failure", "40001"));
+    assertEquals("done", runner.run(work));
+    assertEquals(ATTEMPTS, work.runs);
+    assertEquals(1, runner.commits());
+    assertEquals(ATTEMPTS - 1, runner.retries());
+    assertEquals(0, runner.aborts());
+  }
+
+  @Test
+  public void givesUpAfterTheLastAttempt() throws Exception
+  {
+    TransactionRunner runner = runner();
+    SQLException deadlock = new SQLException("deadlock victim", "S0001", 1205);
+    FailingWork work = new FailingWork(ATTEMPTS, deadlock);
+    assertSame(deadlock, assertThrows(SQLException.class, () -> runner.retry(work)));
+    assertEquals(ATTEMPTS, work.runs);
+    assertEquals(0, runner.commits());
+    assertEquals(ATTEMPTS - 1, runner.retries());
+    assertEquals(1, runner.aborts());
+  }
+
+  @Test
+  public void doesNotRetryOtherFailures() throws Exception
+  {
+    TransactionRunner runner = runner();
+    FailingWork work = new FailingWork(1, new SQLException("duplicate key", "23000", 2627));
+    assertThrows(SQLException.class, () -> runner.run(work));
+    assertEquals(1, work.runs);
+    assertEquals(0, runner.retries());
+    assertEquals(1, runner.aborts());
+  }
+
+  private static TransactionRunner runner()
+  {
+    return new TransactionRunner(new MemoryFlightStore(Collections.<Query.Flight>emptyList()), ATTEMPTS, 0);
+  }
+
+  /** Work whose first runs throw a failure. */
+  private static final class FailingWork implements TransactionRunner.Work<String>
+  {
+    final int failures;
+    final SQLException failure;
+    int runs;
+
+    FailingWork(int failures, SQLException failure)
+    {
+      this.failures = failures;
+      this.failure = failure;
+    }
+
+    @Override
+    public String run() throws SQLException
+    {
+      if (++runs <= failures) throw failure;
+      return "done";
+    }
+  }
+}
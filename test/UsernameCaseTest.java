@@ -0,0 +1,112 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Usernames are unique regardless of case, so every spelling of a name is the same user
+ * to the engine's caches as it is to the store.
+ */
+public class UsernameCaseTest
+{
+  private static final String ORIGIN = "Seattle WA";
+  private static final String DEST = "Boston MA";
+
+  @Test
+  public void loginSeesUserCreatedAfterFailedLoginJdbc() throws Exception
+  {
+    try (TestDatabase db = new TestDatabase(); QueryEngine engine = QueryEngine.open(db.configFilename()))
+    {
+      checkLoginAfterCreate(engine);
+    }
+  }
+
+  @Test
+  public void loginSeesUserCreatedAfterFailedLoginMemory() throws Exception
+  {
+    try (QueryEngine engine = new QueryEngine(new MemoryFlightStore(Collections.<Query.Flight>emptyList())))
+    {
+      checkLoginAfterCreate(engine);
+    }
+  }
+
+  @Test
+  public void sameDayHoldsAcrossSpellingsJdbc() throws Exception
+  {
+    try (TestDatabase db = new TestDatabase())
+    {
+      db.addFlight(1, 2, ORIGIN, DEST, 300, 10, 140);
+      db.addFlight(2, 3, ORIGIN, DEST, 300, 10, 140);
+      try (QueryEngine engine = QueryEngine.open(db.configFilename()))
+      {
+        checkSameDay(engine);
+      }
+    }
+  }
+
+  @Test
+  public void sameDayHoldsAcrossSpellingsMemory() throws Exception
+  {
+    try (QueryEngine engine = new QueryEngine(new MemoryFlightStore(Arrays.asList(flight(1, 2), flight(2, 3)))))
+    {
+      checkSameDay(engine);
+    }
+  }
+
+  // Each spelling's session books in turn; the second booking of day 2 must see the first
+  private static void checkSameDay(QueryEngine engine)
+  {
+    assertEquals("Created user alice\n", FlightService.execute(engine.newSession(), "create alice pw 1000"));
+    Query upper = engine.newSession();
+    Query lower = engine.newSession();
+    assertEquals("Logged in as ALICE\n", FlightService.execute(upper, "login ALICE pw"));
+    assertEquals("Logged in as alice\n", FlightService.execute(lower, "login alice pw"));
+
+    search(upper, 3);
+    assertEquals("Booked flight(s), reservation ID: 1\n", FlightService.execute(upper, "book 0"));
+    search(lower, 2);
+    assertEquals("Booked flight(s), reservation ID: 2\n", FlightService.execute(lower, "book 0"));
+    search(upper, 2);
+    assertEquals("You cannot book two flights in the same day\n", FlightService.execute(upper, "book 0"));
+
+    // a cancel in one spelling frees the day for the other
+    assertEquals("Canceled reservation 2\n", FlightService.execute(upper, "cancel 2"));
+    assertEquals("Booked flight(s), reservation ID: 3\n", FlightService.execute(upper, "book 0"));
+  }
+
+  private static void search(Query q, int day)
+  {
+    String response = FlightService.execute(q, "search \"" + ORIGIN + "\" \"" + DEST + "\" 1 " + day + " 1");
+    assertEquals("Itinerary 0", response.substring(0, "Itinerary 0".length()), response);
+  }
+
+  private static Query.Flight flight(int fid, int dayOfMonth)
+  {
+    Query.Flight f = new Query.Flight();
+    f.fid = fid;
+    f.year = 2015;
+    f.monthId = 7;
+    f.dayOfMonth = dayOfMonth;
+    f.carrierId = "AS";
+    f.flightNum = Integer.toString(100 + fid);
+    f.originCity = ORIGIN;
+    f.destCity = DEST;
+    f.time = 300;
+    f.capacity = 10;
+    f.price = 140;
+    return f;
+  }
+
+  // A failed login caches that no such user exists, until the user is created in another spelling
+  private static void checkLoginAfterCreate(QueryEngine engine)
+  {
+    Query q = engine.newSession();
+    assertEquals("Login failed\n", FlightService.execute(q, "login ALICE pw"));
+    assertEquals("Created user Alice\n", FlightService.execute(engine.newSession(), "create Alice pw 100"));
+    assertEquals("Failed to create user\n", FlightService.execute(engine.newSession(), "create alice pw 100"));
+    assertEquals("Login failed\n", FlightService.execute(q, "login ALICE wrong"));
+    assertEquals("Logged in as ALICE\n", FlightService.execute(q, "login ALICE pw"));
+  }
+}